@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.benchmark;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.presence.PresenceEntityContext;
+import com.whizzosoftware.hobson.api.presence.PresenceLocationContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.condition.*;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of converting a trigger condition into rule assumptions for each condition class.
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssumptionJSONBenchmark {
+    @Param({
+        DeviceTurnsOnConditionClass.ID,
+        DeviceTurnsOffConditionClass.ID,
+        DeviceIndoorTempAboveConditionClass.ID,
+        DeviceIndoorTempBelowConditionClass.ID,
+        DeviceUnavailableConditionClass.ID,
+        PresenceArrivalConditionClass.ID,
+        PresenceDepartureConditionClass.ID
+    })
+    public String conditionClass;
+
+    @Param({"1", "50"})
+    public int deviceCount;
+
+    private AbstractRuleConditionClass cc;
+    private PropertyContainer condition;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Map<String,Object> values = new HashMap<>();
+        List<DeviceContext> devices = new ArrayList<>();
+        for (int i=0; i < deviceCount; i++) {
+            devices.add(RuleFixture.createDeviceContext(i));
+        }
+
+        switch (conditionClass) {
+            case DeviceTurnsOnConditionClass.ID:
+                cc = new DeviceTurnsOnConditionClass(RuleFixture.PLUGIN_CTX);
+                break;
+            case DeviceTurnsOffConditionClass.ID:
+                cc = new DeviceTurnsOffConditionClass(RuleFixture.PLUGIN_CTX);
+                break;
+            case DeviceIndoorTempAboveConditionClass.ID:
+                cc = new DeviceIndoorTempAboveConditionClass(RuleFixture.PLUGIN_CTX);
+                values.put(VariableConstants.INDOOR_TEMP_F, "80");
+                break;
+            case DeviceIndoorTempBelowConditionClass.ID:
+                cc = new DeviceIndoorTempBelowConditionClass(RuleFixture.PLUGIN_CTX);
+                values.put(VariableConstants.INDOOR_TEMP_F, "60");
+                break;
+            case DeviceUnavailableConditionClass.ID:
+                cc = new DeviceUnavailableConditionClass(RuleFixture.PLUGIN_CTX);
+                break;
+            case PresenceArrivalConditionClass.ID:
+                cc = new PresenceArrivalConditionClass(RuleFixture.PLUGIN_CTX);
+                break;
+            case PresenceDepartureConditionClass.ID:
+                cc = new PresenceDepartureConditionClass(RuleFixture.PLUGIN_CTX);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown condition class: " + conditionClass);
+        }
+
+        values.put("devices", devices);
+        values.put("person", PresenceEntityContext.createLocal("person1"));
+        values.put("location", PresenceLocationContext.createLocal("location1"));
+        condition = new PropertyContainer(cc.getContext(), values);
+    }
+
+    @Benchmark
+    public JSONArray createAssumptionJSON() {
+        return cc.createAssumptionJSON(condition);
+    }
+}
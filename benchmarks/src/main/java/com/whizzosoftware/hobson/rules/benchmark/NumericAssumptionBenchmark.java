@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.benchmark;
+
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.condition.ConditionConstants;
+import com.whizzosoftware.hobson.rules.indexed.RuleAssumption;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the typed numeric assumption path (threshold parsed at compile time, event value converted once per
+ * event) against the previous object path (value unboxed or parsed and threshold parsed on every comparison).
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumericAssumptionBenchmark {
+    private static final String THRESHOLD = "80";
+
+    @Param({"double", "string"})
+    public String valueType;
+
+    private RuleAssumption assumption;
+    private JREEventContext ctx;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        assumption = RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, ">", THRESHOLD);
+        Object value = "double".equals(valueType) ? (Object)81.5 : "81.5";
+        ctx = new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(RuleFixture.createDeviceContext(1), VariableConstants.INDOOR_TEMP_F), null, value));
+    }
+
+    @Benchmark
+    public boolean typed() {
+        return assumption.evaluate(ctx);
+    }
+
+    @Benchmark
+    public boolean untyped() {
+        Object left = ctx.variableValue();
+        if (left == null) {
+            return false;
+        }
+        double d;
+        if (left instanceof Number) {
+            d = ((Number)left).doubleValue();
+        } else {
+            try {
+                d = Double.parseDouble(left.toString());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return Double.compare(d, Double.parseDouble(THRESHOLD)) > 0;
+    }
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.benchmark;
+
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.RuleEngineType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures event evaluation throughput as the number of rules grows. Run with "-prof gc" to report the allocation
+ * rate per event (gc.alloc.rate.norm). filterEvent and filterUnrelatedEvent measure the event pre-filter alone for
+ * events that a rule uses and events for devices that no rule uses.
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessEventBenchmark {
+    private static final int EVENT_COUNT = 1024;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int ruleCount;
+
+    @Param({"JRULEENGINE", "INDEXED", "COMPILED"})
+    public RuleEngineType engine;
+
+    private RuleFixture fixture;
+    private HobsonEvent[] events;
+    private HobsonEvent[] unrelatedEvents;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = RuleFixture.create(ruleCount, engine);
+        events = fixture.createEvents(EVENT_COUNT, 42);
+        unrelatedEvents = new HobsonEvent[EVENT_COUNT];
+        for (int i=0; i < EVENT_COUNT; i++) {
+            DeviceVariableUpdate update = new DeviceVariableUpdate(DeviceVariableContext.create(RuleFixture.createDeviceContext(ruleCount + i), VariableConstants.ON), false, true);
+            unrelatedEvents[i] = new DeviceVariablesUpdateEvent(System.currentTimeMillis(), update);
+        }
+    }
+
+    @Benchmark
+    public void processEvent() {
+        fixture.getProvider().processEvent(events[next++ & (EVENT_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public boolean filterEvent() {
+        return fixture.getProvider().isEventRelevant(events[next++ & (EVENT_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public boolean filterUnrelatedEvent() {
+        return fixture.getProvider().isEventRelevant(unrelatedEvents[next++ & (EVENT_COUNT - 1)]);
+    }
+}
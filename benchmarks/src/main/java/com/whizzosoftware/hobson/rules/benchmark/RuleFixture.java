@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.benchmark;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.hub.HubContext;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.property.PropertyContainerSet;
+import com.whizzosoftware.hobson.api.task.HobsonTask;
+import com.whizzosoftware.hobson.api.task.MockTaskManager;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.RuleEngineType;
+import com.whizzosoftware.hobson.rules.condition.DeviceIndoorTempAboveConditionClass;
+import com.whizzosoftware.hobson.rules.condition.DeviceTurnsOnConditionClass;
+import com.whizzosoftware.hobson.rules.jruleengine.JRETaskProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Builds a task provider populated with a given number of rules for use by the benchmarks. Half the rules are
+ * "turns on" rules and half are "temperature above" rules, each monitoring a different device.
+ *
+ * @author Dan Noguerol
+ */
+public class RuleFixture {
+    public static final PluginContext PLUGIN_CTX = PluginContext.createLocal("com.whizzosoftware.hobson.hub.hobson-hub-rules");
+    public static final PluginContext DEVICE_PLUGIN_CTX = PluginContext.createLocal("com.whizzosoftware.hobson.hub.hobson-hub-zwave");
+
+    private final CountingTaskManager taskManager;
+    private final JRETaskProvider provider;
+    private final List<TaskContext> taskContexts;
+    private final File rulesFile;
+    private final int ruleCount;
+
+    private RuleFixture(CountingTaskManager taskManager, JRETaskProvider provider, List<TaskContext> taskContexts, File rulesFile, int ruleCount) {
+        this.taskManager = taskManager;
+        this.provider = provider;
+        this.taskContexts = taskContexts;
+        this.rulesFile = rulesFile;
+        this.ruleCount = ruleCount;
+    }
+
+    /**
+     * Creates a fixture.
+     *
+     * @param ruleCount the number of rules to create
+     * @param engineType the rule engine to use
+     *
+     * @return a RuleFixture
+     * @throws IOException on failure
+     */
+    public static RuleFixture create(int ruleCount, RuleEngineType engineType) throws IOException {
+        DeviceTurnsOnConditionClass turnsOn = new DeviceTurnsOnConditionClass(PLUGIN_CTX);
+        DeviceIndoorTempAboveConditionClass tempAbove = new DeviceIndoorTempAboveConditionClass(PLUGIN_CTX);
+
+        CountingTaskManager taskManager = new CountingTaskManager();
+        taskManager.publishConditionClass(turnsOn);
+        taskManager.publishConditionClass(tempAbove);
+
+        File rulesFile = File.createTempFile("hobson-rules-benchmark", ".json");
+        rulesFile.deleteOnExit();
+
+        JRETaskProvider provider = new JRETaskProvider(PLUGIN_CTX, taskManager);
+        provider.setTaskManager(taskManager);
+        provider.setRuleEngineType(engineType);
+        provider.setRulesFile(rulesFile);
+
+        HubContext hctx = HubContext.createLocal();
+        for (int i=0; i < ruleCount; i++) {
+            Map<String,Object> values = new HashMap<>();
+            values.put("devices", Collections.singletonList(createDeviceContext(i)));
+            PropertyContainer condition;
+            if (i % 2 == 0) {
+                condition = new PropertyContainer(turnsOn.getContext(), values);
+            } else {
+                values.put(VariableConstants.INDOOR_TEMP_F, "80");
+                condition = new PropertyContainer(tempAbove.getContext(), values);
+            }
+            taskManager.createTask(hctx, "task" + i, null, Collections.singletonList(condition), new PropertyContainerSet("actionset1", null));
+        }
+
+        List<TaskContext> taskContexts = new ArrayList<>();
+        for (HobsonTask task : taskManager.getTasks(hctx)) {
+            taskContexts.add(task.getContext());
+        }
+        provider.onRegisterTasks(taskContexts);
+
+        return new RuleFixture(taskManager, provider, taskContexts, rulesFile, ruleCount);
+    }
+
+    public static DeviceContext createDeviceContext(int i) {
+        return DeviceContext.create(DEVICE_PLUGIN_CTX, "device" + i);
+    }
+
+    public JRETaskProvider getProvider() {
+        return provider;
+    }
+
+    public MockTaskManager getTaskManager() {
+        return taskManager;
+    }
+
+    public List<TaskContext> getTaskContexts() {
+        return taskContexts;
+    }
+
+    public File getRulesFile() {
+        return rulesFile;
+    }
+
+    public long getTriggerCount() {
+        return taskManager.triggerCount;
+    }
+
+    /**
+     * Creates a set of events that address random devices covered by the fixture's rules. Roughly half of the
+     * events match a rule.
+     *
+     * @param count the number of events
+     * @param seed the random seed
+     *
+     * @return an array of events
+     */
+    public HobsonEvent[] createEvents(int count, long seed) {
+        Random r = new Random(seed);
+        HobsonEvent[] events = new HobsonEvent[count];
+        for (int i=0; i < count; i++) {
+            int device = r.nextInt(ruleCount);
+            DeviceVariableUpdate update;
+            if (device % 2 == 0) {
+                update = new DeviceVariableUpdate(DeviceVariableContext.create(createDeviceContext(device), VariableConstants.ON), false, r.nextBoolean());
+            } else {
+                update = new DeviceVariableUpdate(DeviceVariableContext.create(createDeviceContext(device), VariableConstants.INDOOR_TEMP_F), 80.0, 70.0 + r.nextInt(21));
+            }
+            events[i] = new DeviceVariablesUpdateEvent(System.currentTimeMillis(), update);
+        }
+        return events;
+    }
+
+    /**
+     * A task manager that only counts triggers so long benchmark runs don't accumulate execution history.
+     */
+    static class CountingTaskManager extends MockTaskManager {
+        long triggerCount;
+
+        @Override
+        public void fireTaskTrigger(TaskContext ctx) {
+            triggerCount++;
+        }
+    }
+}
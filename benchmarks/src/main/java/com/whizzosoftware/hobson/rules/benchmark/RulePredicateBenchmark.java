@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.benchmark;
+
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.rules.RuleEngineType;
+import com.whizzosoftware.hobson.rules.indexed.RuleAssumption;
+import com.whizzosoftware.hobson.rules.indexed.RulePredicate;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares interpreting each rule's full assumption list (RuleAssumption.evaluate() in a loop) with evaluating the
+ * same list compiled into a RulePredicate. Each operation tests one event update against every rule, as a linear
+ * scan such as JRuleEngine's would, and returns the number of matches. ProcessEventBenchmark compares the engines
+ * end to end.
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RulePredicateBenchmark {
+    private static final int EVENT_COUNT = 1024;
+
+    @Param({"100", "1000"})
+    public int ruleCount;
+
+    private RuleAssumption[][] assumptions;
+    private RulePredicate[] predicates;
+    private JREEventContext[] ctxs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        RuleFixture fixture = RuleFixture.create(ruleCount, RuleEngineType.INDEXED);
+        List<JSONObject> rules = fixture.getProvider().getRules();
+        assumptions = new RuleAssumption[rules.size()][];
+        predicates = new RulePredicate[rules.size()];
+        for (int i=0; i < rules.size(); i++) {
+            JSONArray aj = rules.get(i).getJSONArray("assumptions");
+            assumptions[i] = new RuleAssumption[aj.length()];
+            for (int j=0; j < aj.length(); j++) {
+                JSONObject o = aj.getJSONObject(j);
+                assumptions[i][j] = RuleAssumption.create(o.getString("leftTerm"), o.getString("op"), o.getString("rightTerm"));
+            }
+            predicates[i] = RulePredicate.compile(assumptions[i]);
+        }
+
+        HobsonEvent[] events = fixture.createEvents(EVENT_COUNT, 42);
+        ctxs = new JREEventContext[EVENT_COUNT];
+        for (int i=0; i < EVENT_COUNT; i++) {
+            ctxs[i] = new JREEventContext(((DeviceVariablesUpdateEvent)events[i]).getUpdates().get(0));
+        }
+    }
+
+    @Benchmark
+    public int interpreted() {
+        JREEventContext ctx = ctxs[next++ & (EVENT_COUNT - 1)];
+        int matches = 0;
+        for (RuleAssumption[] rule : assumptions) {
+            boolean match = true;
+            for (RuleAssumption a : rule) {
+                if (!a.evaluate(ctx)) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int compiled() {
+        JREEventContext ctx = ctxs[next++ & (EVENT_COUNT - 1)];
+        int matches = 0;
+        for (RulePredicate p : predicates) {
+            if (p.test(ctx)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
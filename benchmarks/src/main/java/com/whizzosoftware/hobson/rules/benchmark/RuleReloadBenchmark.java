@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.benchmark;
+
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.rules.RuleEngineType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of re-building the rule set. registerAll re-compiles every task, writes the rules file
+ * and loads the new rule set; updateOne measures the cost of a single task edit.
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RuleReloadBenchmark {
+    @Param({"10", "100", "1000"})
+    public int ruleCount;
+
+    @Param({"JRULEENGINE", "INDEXED"})
+    public RuleEngineType engine;
+
+    private RuleFixture fixture;
+    private TaskContext updateContext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = RuleFixture.create(ruleCount, engine);
+        updateContext = fixture.getTaskContexts().get(ruleCount / 2);
+    }
+
+    @Benchmark
+    public void registerAll() {
+        fixture.getProvider().onRegisterTasks(fixture.getTaskContexts());
+    }
+
+    @Benchmark
+    public void updateOne() {
+        fixture.getProvider().onUpdateTask(updateContext);
+    }
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.benchmark;
+
+import com.whizzosoftware.hobson.rules.RuleEngineType;
+import com.whizzosoftware.hobson.rules.snapshot.RuleSnapshotFormat;
+import com.whizzosoftware.hobson.rules.snapshot.RuleSnapshots;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JSON and binary rules file formats. write measures encoding the rules and writing the snapshot
+ * file; load measures reading the file back and decoding its rules. The size of each snapshot is reported as the
+ * snapshotBytes counter alongside the timings.
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RuleSnapshotBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int ruleCount;
+
+    @Param({"JSON", "BINARY"})
+    public RuleSnapshotFormat format;
+
+    private List<JSONObject> rules;
+    private File file;
+    private long snapshotBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        RuleFixture fixture = RuleFixture.create(ruleCount, RuleEngineType.INDEXED);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        fixture.getProvider().exportRules(baos);
+        rules = RuleSnapshots.decode(ByteBuffer.wrap(baos.toByteArray()));
+
+        file = File.createTempFile("hobson-rules-snapshot", ".bin");
+        file.deleteOnExit();
+        snapshotBytes = RuleSnapshots.write(file, rules, format);
+    }
+
+    @Benchmark
+    public long write(SnapshotSize size) throws Exception {
+        return RuleSnapshots.write(file, rules, format);
+    }
+
+    @Benchmark
+    public List<JSONObject> load(SnapshotSize size) throws Exception {
+        return RuleSnapshots.read(file);
+    }
+
+    /**
+     * Reports the size of the snapshot file in the benchmark results.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class SnapshotSize {
+        public long snapshotBytes;
+
+        @Setup(Level.Iteration)
+        public void setUp(RuleSnapshotBenchmark benchmark) {
+            snapshotBytes = benchmark.snapshotBytes;
+        }
+    }
+}
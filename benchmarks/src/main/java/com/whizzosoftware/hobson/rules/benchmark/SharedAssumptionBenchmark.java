@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.benchmark;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.condition.ConditionConstants;
+import com.whizzosoftware.hobson.rules.condition.DeviceIndoorTempAboveConditionClass;
+import com.whizzosoftware.hobson.rules.condition.DeviceTurnsOnConditionClass;
+import com.whizzosoftware.hobson.rules.indexed.AssumptionNetwork;
+import com.whizzosoftware.hobson.rules.indexed.IndexedRule;
+import com.whizzosoftware.hobson.rules.indexed.IndexedRuleSet;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures matching when many rules watch the same few devices and differ only in the value they test for, with
+ * and without an AssumptionNetwork sharing identical assumptions between them. Rules are built from the
+ * assumptions that the device condition classes create and every rule is a candidate for every event. The number
+ * of distinct and shared assumption nodes is reported as the nodes and sharedNodes counters alongside the timings.
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedAssumptionBenchmark {
+    private static final int EVENT_COUNT = 1024;
+    private static final int DEVICE_COUNT = 4;
+    private static final String[] THRESHOLDS = {"70", "75", "80", "85"};
+
+    @Param({"100", "1000"})
+    public int ruleCount;
+
+    @Param({"false", "true"})
+    public boolean shared;
+
+    private IndexedRuleSet rules;
+    private AssumptionNetwork network;
+    private JREEventContext[] ctxs;
+    private Set<IndexedRule> matches = new HashSet<>();
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        DeviceTurnsOnConditionClass turnsOn = new DeviceTurnsOnConditionClass(RuleFixture.PLUGIN_CTX);
+        DeviceIndoorTempAboveConditionClass tempAbove = new DeviceIndoorTempAboveConditionClass(RuleFixture.PLUGIN_CTX);
+        List<DeviceContext> devices = new ArrayList<>();
+        for (int i=0; i < DEVICE_COUNT; i++) {
+            devices.add(RuleFixture.createDeviceContext(i));
+        }
+
+        List<IndexedRule> compiled = new ArrayList<>(ruleCount);
+        for (int i=0; i < ruleCount; i++) {
+            Map<String,Object> values = new HashMap<>();
+            values.put("devices", devices);
+            JSONArray assumptions;
+            if (i % 2 == 0) {
+                assumptions = turnsOn.createAssumptionJSON(new PropertyContainer(turnsOn.getContext(), values));
+            } else {
+                values.put(VariableConstants.INDOOR_TEMP_F, THRESHOLDS[(i / 2) % THRESHOLDS.length]);
+                assumptions = tempAbove.createAssumptionJSON(new PropertyContainer(tempAbove.getContext(), values));
+            }
+            compiled.add(IndexedRuleSet.compileRule(createRuleJSON("task" + i, assumptions), true));
+        }
+
+        network = shared ? new AssumptionNetwork(true) : null;
+        rules = new IndexedRuleSet(network);
+        rules.addAll(compiled);
+
+        Random r = new Random(42);
+        ctxs = new JREEventContext[EVENT_COUNT];
+        for (int i=0; i < EVENT_COUNT; i++) {
+            DeviceContext dctx = devices.get(r.nextInt(DEVICE_COUNT));
+            DeviceVariableUpdate update;
+            if (i % 2 == 0) {
+                update = new DeviceVariableUpdate(DeviceVariableContext.create(dctx, VariableConstants.ON), false, r.nextBoolean());
+            } else {
+                update = new DeviceVariableUpdate(DeviceVariableContext.create(dctx, VariableConstants.INDOOR_TEMP_F), 80.0, 65.0 + r.nextInt(26));
+            }
+            ctxs[i] = new JREEventContext(update);
+        }
+    }
+
+    @Benchmark
+    public int match(NodeCounts counts) {
+        matches.clear();
+        rules.match(ctxs[next++ & (EVENT_COUNT - 1)], matches);
+        return matches.size();
+    }
+
+    /**
+     * Reports the number of assumption nodes in the benchmark results (both are zero when assumptions aren't
+     * shared).
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class NodeCounts {
+        public int nodes;
+        public int sharedNodes;
+
+        @Setup(Level.Iteration)
+        public void setUp(SharedAssumptionBenchmark benchmark) {
+            AssumptionNetwork network = benchmark.network;
+            nodes = (network != null) ? network.getNodeCount() : 0;
+            sharedNodes = (network != null) ? network.getSharedNodeCount() : 0;
+        }
+    }
+
+    private JSONObject createRuleJSON(String name, JSONArray assumptions) {
+        JSONObject rule = new JSONObject();
+        rule.put("name", name);
+        rule.put("assumptions", assumptions);
+        JSONArray actions = new JSONArray();
+        JSONObject action = new JSONObject();
+        action.put("method", ConditionConstants.FIRE_TRIGGER);
+        action.put("arg1", name);
+        actions.put(action);
+        rule.put("actions", actions);
+        return rule;
+    }
+}
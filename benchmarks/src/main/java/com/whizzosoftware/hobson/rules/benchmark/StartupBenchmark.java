@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.benchmark;
+
+import com.whizzosoftware.hobson.rules.RuleEngineType;
+import com.whizzosoftware.hobson.rules.jruleengine.JRETaskProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cold start: creating a task provider and registering every task with it, as happens when the plugin
+ * starts. A registration thread count of 1 compiles tasks on the registering thread.
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+    @Param({"100", "1000", "5000"})
+    public int ruleCount;
+
+    @Param({"JRULEENGINE", "INDEXED"})
+    public RuleEngineType engine;
+
+    @Param({"1", "4"})
+    public int registrationThreads;
+
+    private RuleFixture fixture;
+    private ForkJoinPool pool;
+    private File rulesFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = RuleFixture.create(ruleCount, engine);
+        if (registrationThreads > 1) {
+            pool = new ForkJoinPool(registrationThreads);
+        }
+        rulesFile = File.createTempFile("hobson-rules-startup", ".json");
+        rulesFile.deleteOnExit();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public JRETaskProvider registerAll() {
+        JRETaskProvider provider = new JRETaskProvider(RuleFixture.PLUGIN_CTX, fixture.getTaskManager());
+        provider.setTaskManager(fixture.getTaskManager());
+        provider.setRuleEngineType(engine);
+        provider.setRegistrationPool(pool);
+        provider.setRulesFile(rulesFile);
+        provider.onRegisterTasks(fixture.getTaskContexts());
+        return provider;
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.benchmark;
+
+import com.whizzosoftware.hobson.rules.queue.ExecutionMode;
+import com.whizzosoftware.hobson.rules.queue.TriggerDispatcher;
+import com.whizzosoftware.hobson.rules.queue.VirtualThreads;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the classic (platform thread pool) and virtual thread execution modes by firing a burst of triggers for
+ * different tasks, each of which blocks for a while as a task talking to a slow device would. Each operation
+ * submits the whole burst and waits for the last trigger to finish. The platform thread count is ignored in the
+ * virtual mode, and the virtual mode fails its trials on runtimes older than Java 21.
+ *
+ * @author Dan Noguerol
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TriggerDispatchBenchmark {
+    @Param({"1000"})
+    public int triggerCount;
+
+    @Param({"CLASSIC", "VIRTUAL"})
+    public ExecutionMode mode;
+
+    @Param({"2", "64"})
+    public int threadCount;
+
+    @Param({"5"})
+    public int blockMillis;
+
+    private TriggerDispatcher dispatcher;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (mode == ExecutionMode.VIRTUAL && !VirtualThreads.isAvailable()) {
+            throw new IllegalStateException("Virtual threads require a Java 21 or later runtime");
+        }
+        dispatcher = new TriggerDispatcher(threadCount, triggerCount, mode);
+        dispatcher.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        dispatcher.stop(1, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public long fireBurst() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(triggerCount);
+        Runnable trigger = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(blockMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+        for (int i=0; i < triggerCount; i++) {
+            if (!dispatcher.submit("task" + i, trigger)) {
+                done.countDown();
+            }
+        }
+        done.await();
+        return dispatcher.getDispatchedCount();
+    }
+}
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules;
+
+/**
+ * The rule engines available for matching events against rules.
+ *
+ * @author Dan Noguerol
+ */
+public enum RuleEngineType {
+    /**
+     * Rules are evaluated by JRuleEngine using JSR-94 sessions.
+     */
+    JRULEENGINE,
+    /**
+     * Rules are compiled into hash indexes and evaluated natively. JRuleEngine is used if a rule set can't be
+     * compiled.
+     */
+    INDEXED,
+    /**
+     * Rules are indexed as with INDEXED and each rule's remaining assumptions are compiled into a specialized
+     * predicate instead of being interpreted. JRuleEngine is used if a rule set can't be compiled.
+     */
+    COMPILED
+}
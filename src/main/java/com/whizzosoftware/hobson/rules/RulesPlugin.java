@@ -21,11 +21,26 @@ import com.whizzosoftware.hobson.api.property.PropertyContainerClassContext;
 import com.whizzosoftware.hobson.api.property.TypedProperty;
 import com.whizzosoftware.hobson.api.task.condition.*;
 import com.whizzosoftware.hobson.rules.condition.*;
+import com.whizzosoftware.hobson.rules.indexed.AssumptionNetwork;
 import com.whizzosoftware.hobson.rules.jruleengine.JRETaskProvider;
+import com.whizzosoftware.hobson.rules.metrics.RuleMetrics;
+import com.whizzosoftware.hobson.rules.queue.EventCoalescer;
+import com.whizzosoftware.hobson.rules.queue.EventProcessor;
+import com.whizzosoftware.hobson.rules.queue.EventQueue;
+import com.whizzosoftware.hobson.rules.queue.ExecutionMode;
+import com.whizzosoftware.hobson.rules.queue.OverflowPolicy;
+import com.whizzosoftware.hobson.rules.queue.TriggerDispatcher;
+import com.whizzosoftware.hobson.rules.queue.VirtualThreads;
+import com.whizzosoftware.hobson.rules.snapshot.RuleSnapshotFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A plugin that provides event-based tasks using the JRuleEngine library.
@@ -35,7 +50,34 @@ import java.io.File;
 public class RulesPlugin extends AbstractHobsonPlugin implements TaskConditionClassProvider {
     private final static Logger logger = LoggerFactory.getLogger(RulesPlugin.class);
 
+    public static final String PROP_SESSION_POOL_SIZE = "sessionPoolSize";
+    public static final String PROP_RULE_ENGINE = "ruleEngine";
+    public static final String PROP_EVENT_QUEUE_CAPACITY = "eventQueueCapacity";
+    public static final String PROP_EVENT_QUEUE_THREADS = "eventQueueThreads";
+    public static final String PROP_EVENT_QUEUE_OVERFLOW = "eventQueueOverflow";
+    public static final String PROP_COALESCE_WINDOW_MS = "coalesceWindowMs";
+    public static final String PROP_BATCH_EVALUATION = "batchEvaluation";
+    public static final String PROP_TRIGGER_DISPATCH_CAPACITY = "triggerDispatchCapacity";
+    public static final String PROP_TRIGGER_DISPATCH_THREADS = "triggerDispatchThreads";
+    public static final String PROP_REGISTRATION_THREADS = "registrationThreads";
+    public static final String PROP_EVALUATION_SHARDS = "evaluationShards";
+    public static final String PROP_EXECUTION_MODE = "executionMode";
+    public static final String PROP_EVENT_FILTER = "eventFilter";
+    public static final String PROP_SHARED_ASSUMPTIONS = "sharedAssumptions";
+
+    public static final int DEFAULT_EVENT_QUEUE_CAPACITY = 1000;
+    public static final int DEFAULT_EVENT_QUEUE_THREADS = 1;
+    public static final int DEFAULT_TRIGGER_DISPATCH_CAPACITY = 1000;
+    public static final int DEFAULT_TRIGGER_DISPATCH_THREADS = 2;
+
     private JRETaskProvider taskProvider;
+    private ExecutorService snapshotExecutor;
+    private ForkJoinPool registrationPool;
+    private ForkJoinPool evaluationPool;
+    private volatile EventQueue eventQueue;
+    private volatile EventCoalescer eventCoalescer;
+    private volatile boolean eventFilter = true;
+    private TriggerDispatcher triggerDispatcher;
 
     public RulesPlugin(String pluginId, String version, String description) {
         super(pluginId, version, description);
@@ -51,15 +93,37 @@ public class RulesPlugin extends AbstractHobsonPlugin implements TaskConditionCl
         // set up the task provider
         taskProvider = new JRETaskProvider(getContext(), this);
         taskProvider.setTaskManager(getTaskManager());
+        taskProvider.setSessionPoolSize(getIntegerConfigValue(config, PROP_SESSION_POOL_SIZE, JRETaskProvider.DEFAULT_SESSION_POOL_SIZE));
+        taskProvider.setRuleEngineType(getRuleEngineType(config));
+        taskProvider.setBatchEvaluation(getBooleanConfigValue(config, PROP_BATCH_EVALUATION, true));
+        eventFilter = getBooleanConfigValue(config, PROP_EVENT_FILTER, true);
+        taskProvider.setSharedAssumptions(getBooleanConfigValue(config, PROP_SHARED_ASSUMPTIONS, true));
+        configureEvaluationShards(config);
 
-        File rulesFile = getDataFile("rules.json");
-        rulesFile.deleteOnExit();
-        logger.debug("Using local rules file: {}", rulesFile.getAbsolutePath());
-        taskProvider.setRulesFile(rulesFile);
+        // rule file snapshots are written in the background so task changes don't wait on file I/O
+        snapshotExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Rules Snapshot Writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        taskProvider.setSnapshotExecutor(snapshotExecutor);
 
-        setTaskProvider(taskProvider);
+        // tasks are compiled in parallel when they're registered so large installs start quickly
+        int registrationThreads = getIntegerConfigValue(config, PROP_REGISTRATION_THREADS, Runtime.getRuntime().availableProcessors());
+        if (registrationThreads > 1) {
+            registrationPool = new ForkJoinPool(registrationThreads);
+            taskProvider.setRegistrationPool(registrationPool);
+        }
 
-        // publish condition classes
+        // rules are restored from the last snapshot and journal so they don't all need to be re-built on startup
+        File rulesFile = getDataFile("rules.snapshot");
+        logger.debug("Using local rules file: {}", rulesFile.getAbsolutePath());
+        taskProvider.setRulesFile(rulesFile, RuleSnapshotFormat.BINARY, getDataFile("rules.journal"));
+
+        // publish condition classes before the task provider so tasks registered with it can be resolved
         publishTaskConditionClass(new DeviceIndoorTempAboveConditionClass(getContext()));
         publishTaskConditionClass(new DeviceIndoorTempBelowConditionClass(getContext()));
         publishTaskConditionClass(new DeviceTurnsOnConditionClass(getContext()));
@@ -68,6 +132,13 @@ public class RulesPlugin extends AbstractHobsonPlugin implements TaskConditionCl
         publishTaskConditionClass(new PresenceArrivalConditionClass(getContext()));
         publishTaskConditionClass(new PresenceDepartureConditionClass(getContext()));
 
+        setTaskProvider(taskProvider);
+
+        // start evaluating events off the event bus thread
+        startTriggerDispatcher(config);
+        startEventQueue(config);
+        startEventCoalescer(config);
+
         // set the plugin status to running
         setStatus(PluginStatus.running());
         logger.debug("Rules plugin has started");
@@ -75,10 +146,51 @@ public class RulesPlugin extends AbstractHobsonPlugin implements TaskConditionCl
 
     @Override
     public void onShutdown() {
+        stopEventCoalescer();
+        stopEventQueue();
+        stopTriggerDispatcher();
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdown();
+            try {
+                if (!snapshotExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    logger.warn("Timed out waiting for rules snapshot to complete");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            snapshotExecutor = null;
+        }
+        if (registrationPool != null) {
+            registrationPool.shutdown();
+            registrationPool = null;
+        }
+        if (evaluationPool != null) {
+            evaluationPool.shutdown();
+            evaluationPool = null;
+        }
+
+        // the provider compacts its journal when stopped so this must follow any pending snapshot
+        if (taskProvider != null) {
+            taskProvider.stop();
+        }
     }
 
     @Override
     public void onPluginConfigurationUpdate(PropertyContainer config) {
+        if (taskProvider != null) {
+            taskProvider.setSessionPoolSize(getIntegerConfigValue(config, PROP_SESSION_POOL_SIZE, JRETaskProvider.DEFAULT_SESSION_POOL_SIZE));
+            taskProvider.setRuleEngineType(getRuleEngineType(config));
+            taskProvider.setBatchEvaluation(getBooleanConfigValue(config, PROP_BATCH_EVALUATION, true));
+            eventFilter = getBooleanConfigValue(config, PROP_EVENT_FILTER, true);
+            taskProvider.setSharedAssumptions(getBooleanConfigValue(config, PROP_SHARED_ASSUMPTIONS, true));
+            configureEvaluationShards(config);
+            stopEventCoalescer();
+            stopEventQueue();
+            stopTriggerDispatcher();
+            startTriggerDispatcher(config);
+            startEventQueue(config);
+            startEventCoalescer(config);
+        }
     }
 
     @Override
@@ -96,7 +208,22 @@ public class RulesPlugin extends AbstractHobsonPlugin implements TaskConditionCl
 
     @Override
     protected TypedProperty[] getConfigurationPropertyTypes() {
-        return null;
+        return new TypedProperty[] {
+            new TypedProperty.Builder(PROP_SESSION_POOL_SIZE, "Session Pool Size", "The number of rule sessions to keep ready for event processing", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_RULE_ENGINE, "Rule Engine", "The engine used to match events against rules (jruleengine, indexed or compiled)", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder(PROP_EVENT_QUEUE_CAPACITY, "Event Queue Capacity", "The maximum number of events waiting for evaluation (0 evaluates events on the event bus thread)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_EVENT_QUEUE_THREADS, "Event Queue Threads", "The number of threads evaluating queued events", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_EVENT_QUEUE_OVERFLOW, "Event Queue Overflow Policy", "What to do when the event queue is full (block, drop_oldest or coalesce)", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder(PROP_COALESCE_WINDOW_MS, "Coalescing Window", "Merge updates to the same device variable that arrive within this many milliseconds (0 disables)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_EVENT_FILTER, "Event Filter", "Discard events for devices, people and variables that no rule uses before they are evaluated", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_BATCH_EVALUATION, "Batch Evaluation", "Evaluate all updates in an event together so a task fires at most once per event", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_TRIGGER_DISPATCH_CAPACITY, "Trigger Dispatch Capacity", "The maximum number of task triggers waiting to be fired (0 fires triggers on the evaluating thread)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_TRIGGER_DISPATCH_THREADS, "Trigger Dispatch Threads", "The number of threads firing task triggers", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_EXECUTION_MODE, "Execution Mode", "The kind of threads evaluating queued events and firing task triggers (classic or virtual; virtual requires Java 21 or later)", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder(PROP_SHARED_ASSUMPTIONS, "Shared Assumptions", "Evaluate assumptions that several rules have in common once per event and share the result between them (indexed and compiled engines only)", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder(PROP_EVALUATION_SHARDS, "Evaluation Shards", "The number of shards the indexed engine splits rules into so an event's updates can be matched on several cores (1 disables sharding)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder(PROP_REGISTRATION_THREADS, "Registration Threads", "The number of threads compiling tasks when they are registered at startup (1 compiles them on the registering thread)", TypedProperty.Type.NUMBER).build()
+        };
     }
 
     @EventHandler
@@ -105,10 +232,252 @@ public class RulesPlugin extends AbstractHobsonPlugin implements TaskConditionCl
         if (event instanceof DeviceVariablesUpdateEvent ||
             event instanceof DeviceUnavailableEvent ||
             event instanceof PresenceUpdateNotificationEvent) {
+            // discard events that no rule could match before paying to queue or evaluate them
+            if (eventFilter && !taskProvider.isEventRelevant(event)) {
+                taskProvider.getMetrics().recordFilteredEvent();
+                return;
+            }
+            EventCoalescer coalescer = eventCoalescer;
+            if (coalescer != null) {
+                coalescer.processEvent(event);
+            } else {
+                dispatchEvent(event);
+            }
+        }
+    }
+
+    /**
+     * Hands an event to the event queue for evaluation or evaluates it directly if there is no queue.
+     *
+     * @param event the event
+     */
+    private void dispatchEvent(HobsonEvent event) {
+        EventQueue queue = eventQueue;
+        if (queue != null) {
+            try {
+                // whatever the queue doesn't accept (possibly only part of a split event) is evaluated inline
+                if (!queue.submit(event, taskProvider)) {
+                    logger.debug("Event queue is stopped; evaluated event inline");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while queueing event {}", event);
+            }
+        } else {
             taskProvider.processEvent(event);
         }
     }
 
+    /**
+     * Returns the timing and match statistics for rule evaluation.
+     *
+     * @return a RuleMetrics instance (or null if the plugin has not been started)
+     */
+    public RuleMetrics getRuleMetrics() {
+        return (taskProvider != null) ? taskProvider.getMetrics() : null;
+    }
+
+    /**
+     * Returns the network of assumptions shared by the current rules, whose counts show how many assumption nodes
+     * are shared between rules.
+     *
+     * @return an AssumptionNetwork (or null if the plugin has not been started, the JRuleEngine engine is active or
+     *         assumptions aren't shared)
+     */
+    public AssumptionNetwork getAssumptionNetwork() {
+        return (taskProvider != null) ? taskProvider.getAssumptionNetwork() : null;
+    }
+
+    /**
+     * Returns the stage that coalesces redundant variable updates.
+     *
+     * @return an EventCoalescer (or null if coalescing is disabled)
+     */
+    public EventCoalescer getEventCoalescer() {
+        return eventCoalescer;
+    }
+
+    private void startEventCoalescer(PropertyContainer config) {
+        int windowMs = getIntegerConfigValue(config, PROP_COALESCE_WINDOW_MS, 0);
+        if (windowMs > 0) {
+            eventCoalescer = new EventCoalescer(new EventProcessor() {
+                @Override
+                public void processEvent(HobsonEvent event) {
+                    dispatchEvent(event);
+                }
+            }, windowMs);
+            logger.debug("Coalescing variable updates within {}ms", windowMs);
+        }
+    }
+
+    private void stopEventCoalescer() {
+        EventCoalescer coalescer = eventCoalescer;
+        if (coalescer != null) {
+            eventCoalescer = null;
+            coalescer.stop();
+        }
+    }
+
+    /**
+     * Returns the queue used to evaluate events asynchronously. This can be used to query queue depth and latency.
+     *
+     * @return an EventQueue (or null if events are evaluated synchronously)
+     */
+    public EventQueue getEventQueue() {
+        return eventQueue;
+    }
+
+    private void startEventQueue(PropertyContainer config) {
+        int capacity = getIntegerConfigValue(config, PROP_EVENT_QUEUE_CAPACITY, DEFAULT_EVENT_QUEUE_CAPACITY);
+        if (capacity > 0) {
+            EventQueue queue = new EventQueue(
+                taskProvider,
+                capacity,
+                Math.max(1, getIntegerConfigValue(config, PROP_EVENT_QUEUE_THREADS, DEFAULT_EVENT_QUEUE_THREADS)),
+                getOverflowPolicy(config),
+                getExecutionMode(config)
+            );
+            queue.setWaitHistogram(taskProvider.getMetrics().getQueueWait());
+            queue.start();
+            eventQueue = queue;
+            logger.debug("Started event queue with capacity {} and {} {} thread(s)", capacity, queue.getLaneCount(), queue.getExecutionMode());
+        }
+    }
+
+    private void stopEventQueue() {
+        EventQueue queue = eventQueue;
+        if (queue != null) {
+            eventQueue = null;
+            try {
+                if (!queue.stop(5, TimeUnit.SECONDS)) {
+                    logger.warn("Timed out waiting for queued events to be evaluated");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the dispatcher that fires task triggers after evaluation.
+     *
+     * @return a TriggerDispatcher (or null if triggers are fired on the evaluating thread)
+     */
+    public TriggerDispatcher getTriggerDispatcher() {
+        return triggerDispatcher;
+    }
+
+    private void configureEvaluationShards(PropertyContainer config) {
+        int shards = Math.max(1, getIntegerConfigValue(config, PROP_EVALUATION_SHARDS, 1));
+        if (shards > 1 && evaluationPool == null) {
+            evaluationPool = new ForkJoinPool(Math.min(shards, Runtime.getRuntime().availableProcessors()));
+        }
+        taskProvider.setEvaluationPool(shards > 1 ? evaluationPool : null);
+        taskProvider.setEvaluationShards(shards);
+    }
+
+    private void startTriggerDispatcher(PropertyContainer config) {
+        int capacity = getIntegerConfigValue(config, PROP_TRIGGER_DISPATCH_CAPACITY, DEFAULT_TRIGGER_DISPATCH_CAPACITY);
+        if (capacity > 0) {
+            TriggerDispatcher dispatcher = new TriggerDispatcher(
+                Math.max(1, getIntegerConfigValue(config, PROP_TRIGGER_DISPATCH_THREADS, DEFAULT_TRIGGER_DISPATCH_THREADS)),
+                capacity,
+                getExecutionMode(config)
+            );
+            dispatcher.setLagHistogram(taskProvider.getMetrics().getDispatchLag());
+            dispatcher.start();
+            triggerDispatcher = dispatcher;
+            taskProvider.setTriggerDispatcher(dispatcher);
+            if (dispatcher.getExecutionMode() == ExecutionMode.VIRTUAL) {
+                logger.debug("Started trigger dispatcher with capacity {} and virtual threads", capacity);
+            } else {
+                logger.debug("Started trigger dispatcher with capacity {} and {} thread(s)", capacity, dispatcher.getThreadCount());
+            }
+        }
+    }
+
+    private void stopTriggerDispatcher() {
+        TriggerDispatcher dispatcher = triggerDispatcher;
+        if (dispatcher != null) {
+            triggerDispatcher = null;
+            if (taskProvider != null) {
+                taskProvider.setTriggerDispatcher(null);
+            }
+            try {
+                if (!dispatcher.stop(5, TimeUnit.SECONDS)) {
+                    logger.warn("Timed out waiting for task triggers to be fired");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private OverflowPolicy getOverflowPolicy(PropertyContainer config) {
+        Object o = (config != null) ? config.getPropertyValue(PROP_EVENT_QUEUE_OVERFLOW) : null;
+        if (o != null && o.toString().length() > 0) {
+            try {
+                return OverflowPolicy.valueOf(o.toString().trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown event queue overflow policy \"{}\"; using block", o);
+            }
+        }
+        return OverflowPolicy.BLOCK;
+    }
+
+    private ExecutionMode getExecutionMode(PropertyContainer config) {
+        Object o = (config != null) ? config.getPropertyValue(PROP_EXECUTION_MODE) : null;
+        if (o != null && o.toString().length() > 0) {
+            try {
+                ExecutionMode mode = ExecutionMode.valueOf(o.toString().trim().toUpperCase());
+                if (mode == ExecutionMode.VIRTUAL && !VirtualThreads.isAvailable()) {
+                    logger.warn("Virtual threads are not supported by this runtime; using classic execution mode");
+                    return ExecutionMode.CLASSIC;
+                }
+                return mode;
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown execution mode \"{}\"; using classic", o);
+            }
+        }
+        return ExecutionMode.CLASSIC;
+    }
+
+    private int getIntegerConfigValue(PropertyContainer config, String name, int defaultValue) {
+        Object o = (config != null) ? config.getPropertyValue(name) : null;
+        if (o instanceof Number) {
+            return ((Number)o).intValue();
+        } else if (o instanceof String && ((String)o).length() > 0) {
+            try {
+                return Integer.parseInt((String)o);
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for configuration property {}: {}", name, o);
+            }
+        }
+        return defaultValue;
+    }
+
+    private boolean getBooleanConfigValue(PropertyContainer config, String name, boolean defaultValue) {
+        Object o = (config != null) ? config.getPropertyValue(name) : null;
+        if (o instanceof Boolean) {
+            return (Boolean)o;
+        } else if (o instanceof String && ((String)o).length() > 0) {
+            return Boolean.parseBoolean((String)o);
+        }
+        return defaultValue;
+    }
+
+    private RuleEngineType getRuleEngineType(PropertyContainer config) {
+        Object o = (config != null) ? config.getPropertyValue(PROP_RULE_ENGINE) : null;
+        if (o != null && o.toString().length() > 0) {
+            try {
+                return RuleEngineType.valueOf(o.toString().trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown rule engine \"{}\"; using JRuleEngine", o);
+            }
+        }
+        return RuleEngineType.JRULEENGINE;
+    }
+
     @Override
     public TaskConditionClass getConditionClass(PropertyContainerClassContext ctx) {
         return getTaskManager().getConditionClass(ctx);
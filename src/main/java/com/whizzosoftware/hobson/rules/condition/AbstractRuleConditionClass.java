@@ -7,13 +7,18 @@
  *******************************************************************************/
 package com.whizzosoftware.hobson.rules.condition;
 
+import com.whizzosoftware.hobson.api.HobsonRuntimeException;
+import com.whizzosoftware.hobson.api.device.DeviceContext;
 import com.whizzosoftware.hobson.api.property.PropertyContainer;
 import com.whizzosoftware.hobson.api.property.PropertyContainerClassContext;
+import com.whizzosoftware.hobson.api.property.TypedProperty;
 import com.whizzosoftware.hobson.api.task.condition.TaskConditionClass;
 import org.jruleengine.rule.Assumption;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -36,6 +41,111 @@ abstract public class AbstractRuleConditionClass extends TaskConditionClass {
         return json;
     }
 
+    /**
+     * Creates the "containsatleastone" list term for a set of devices. The matching device set is interned at
+     * the same time so the indexed engine never needs to parse the term.
+     *
+     * @param ctxs the device contexts
+     *
+     * @return the list term (e.g. "[ctx1,ctx2]")
+     */
+    protected String createDeviceListTerm(Collection<DeviceContext> ctxs) {
+        return DeviceSets.createTerm(ctxs);
+    }
+
+    /**
+     * Creates a gate that restricts a task using this condition to firing only when a threshold is crossed. The
+     * default implementation returns null, meaning the task fires every time its rule matches.
+     *
+     * @param condition the trigger condition
+     *
+     * @return a ThresholdGate (or null)
+     */
+    public ThresholdGate createThresholdGate(PropertyContainer condition) {
+        return null;
+    }
+
+    /**
+     * Creates a threshold gate for a temperature-style condition if the condition has edge triggering enabled.
+     *
+     * @param condition the trigger condition
+     * @param variableName the name of the monitored variable
+     * @param above whether the condition fires when the value rises above the threshold
+     *
+     * @return a ThresholdGate (or null if edge triggering is disabled)
+     */
+    protected ThresholdGate createThresholdGate(PropertyContainer condition, String variableName, boolean above) {
+        if (isTrue(condition.getPropertyValue(ConditionConstants.EDGE_TRIGGERED))) {
+            try {
+                double threshold = Double.parseDouble(condition.getStringPropertyValue(variableName));
+                Object h = condition.getPropertyValue(ConditionConstants.HYSTERESIS);
+                double hysteresis = (h != null && h.toString().length() > 0) ? Double.parseDouble(h.toString()) : 0;
+                Collection<DeviceContext> dctxs = (Collection<DeviceContext>)condition.getPropertyValue("devices");
+                return new ThresholdGate(variableName, DeviceSets.forTerm(createDeviceListTerm(dctxs)), above, threshold, hysteresis);
+            } catch (NumberFormatException e) {
+                throw new HobsonRuntimeException("Invalid threshold or hysteresis for condition: " + condition, e);
+            }
+        }
+        return null;
+    }
+
+    protected TypedProperty createEdgeTriggeredProperty() {
+        return new TypedProperty.Builder(ConditionConstants.EDGE_TRIGGERED, "Only On Crossing", "Only fire when the value crosses the threshold rather than on every report beyond it", TypedProperty.Type.BOOLEAN).build();
+    }
+
+    protected TypedProperty createHysteresisProperty() {
+        return new TypedProperty.Builder(ConditionConstants.HYSTERESIS, "Hysteresis", "How far the value must move back past the threshold before the condition can fire again", TypedProperty.Type.NUMBER).build();
+    }
+
+    /**
+     * Creates the debounce, minimum interval and rate limits for a task using this condition.
+     *
+     * @param condition the trigger condition
+     *
+     * @return a TriggerThrottle (or null if no limits are set)
+     * @throws HobsonRuntimeException if a limit is not a non-negative number
+     */
+    public TriggerThrottle createTriggerThrottle(PropertyContainer condition) {
+        TriggerThrottle t = new TriggerThrottle(
+            getLimitValue(condition, ConditionConstants.DEBOUNCE_MS),
+            getLimitValue(condition, ConditionConstants.MIN_INTERVAL_MS),
+            (int)getLimitValue(condition, ConditionConstants.RATE_LIMIT),
+            (int)getLimitValue(condition, ConditionConstants.RATE_BURST)
+        );
+        return t.isEnabled() ? t : null;
+    }
+
+    protected List<TypedProperty> createThrottleProperties() {
+        List<TypedProperty> props = new ArrayList<>();
+        props.add(new TypedProperty.Builder(ConditionConstants.DEBOUNCE_MS, "Debounce", "Only fire once the condition has stopped matching for this many milliseconds", TypedProperty.Type.NUMBER).build());
+        props.add(new TypedProperty.Builder(ConditionConstants.MIN_INTERVAL_MS, "Minimum Interval", "Don't fire again until at least this many milliseconds have passed", TypedProperty.Type.NUMBER).build());
+        props.add(new TypedProperty.Builder(ConditionConstants.RATE_LIMIT, "Rate Limit", "The maximum number of times to fire per minute", TypedProperty.Type.NUMBER).build());
+        props.add(new TypedProperty.Builder(ConditionConstants.RATE_BURST, "Rate Limit Burst", "The number of times the rate limit allows firing in quick succession", TypedProperty.Type.NUMBER).build());
+        return props;
+    }
+
+    private long getLimitValue(PropertyContainer condition, String name) {
+        Object o = condition.getPropertyValue(name);
+        long l = 0;
+        if (o instanceof Number) {
+            l = ((Number)o).longValue();
+        } else if (o != null && o.toString().trim().length() > 0) {
+            try {
+                l = (long)Double.parseDouble(o.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new HobsonRuntimeException("Invalid " + name + " for condition: " + condition, e);
+            }
+        }
+        if (l < 0) {
+            throw new HobsonRuntimeException("Invalid " + name + " for condition: " + condition);
+        }
+        return l;
+    }
+
+    private boolean isTrue(Object o) {
+        return (o instanceof Boolean) ? (Boolean)o : (o != null && Boolean.parseBoolean(o.toString()));
+    }
+
     abstract public List<Assumption> createConditionAssumptions(PropertyContainer condition);
     abstract public JSONArray createAssumptionJSON(PropertyContainer condition);
 }
@@ -12,10 +12,17 @@ public class ConditionConstants {
     public static final String DEVICE_CTX = "com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.deviceCtx";
     public static final String VARIABLE_NAME = "com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.variableName";
     public static final String VARIABLE_VALUE = "com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.variableValue";
+    public static final String VARIABLE_OLD_VALUE = "com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.variableOldValue";
     public static final String OLD_LOCATION_CTX = "com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.oldLocationCtx";
     public static final String NEW_LOCATION_CTX = "com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.newLocationCtx";
     public static final String PERSON_CTX = "com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.personCtx";
     public static final String SET_ACTIONSET = "com.whizzosoftware.hobson.rules.jruleengine.JRETaskContext.setActionSet";
     public static final String TASK_CTX = "com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.taskCtx";
+    public static final String EDGE_TRIGGERED = "edgeTriggered";
+    public static final String HYSTERESIS = "hysteresis";
+    public static final String DEBOUNCE_MS = "debounceMs";
+    public static final String MIN_INTERVAL_MS = "minIntervalMs";
+    public static final String RATE_LIMIT = "rateLimit";
+    public static final String RATE_BURST = "rateBurst";
     public static final String FIRE_TRIGGER = "com.whizzosoftware.hobson.rules.jruleengine.JRETaskContext.fireTaskTrigger";
 }
@@ -14,7 +14,6 @@ import com.whizzosoftware.hobson.api.property.*;
 import com.whizzosoftware.hobson.api.task.condition.ConditionClassType;
 import com.whizzosoftware.hobson.api.task.condition.ConditionEvaluationContext;
 import com.whizzosoftware.hobson.api.variable.VariableConstants;
-import org.apache.commons.lang3.StringUtils;
 import org.jruleengine.rule.Assumption;
 import org.json.JSONArray;
 
@@ -51,15 +50,23 @@ public class DeviceIndoorTempBelowConditionClass extends AbstractRuleConditionCl
             constraint(PropertyConstraintType.required, true).
             build()
         );
+        props.add(createEdgeTriggeredProperty());
+        props.add(createHysteresisProperty());
+        props.addAll(createThrottleProperties());
         return props;
     }
 
+    @Override
+    public ThresholdGate createThresholdGate(PropertyContainer condition) {
+        return createThresholdGate(condition, VariableConstants.INDOOR_TEMP_F, false);
+    }
+
     @Override
     public List<Assumption> createConditionAssumptions(PropertyContainer condition) {
         List<Assumption> assumpList = new ArrayList<>();
         Collection<DeviceContext> dctxs = (Collection<DeviceContext>)condition.getPropertyValue("devices");
         assumpList.add(new Assumption(ConditionConstants.EVENT_ID, "=", DeviceVariablesUpdateEvent.ID));
-        assumpList.add(new Assumption("event.deviceCtx", "containsatleastone", "[" + StringUtils.join(dctxs, ',') + "]"));
+        assumpList.add(new Assumption("event.deviceCtx", "containsatleastone", createDeviceListTerm(dctxs)));
         assumpList.add(new Assumption("event.variableName", "<", VariableConstants.INDOOR_TEMP_F));
         return assumpList;
     }
@@ -69,7 +76,7 @@ public class DeviceIndoorTempBelowConditionClass extends AbstractRuleConditionCl
         JSONArray a = new JSONArray();
         a.put(createJSONCondition(ConditionConstants.EVENT_ID, "=", DeviceVariablesUpdateEvent.ID));
         Collection<DeviceContext> ctx = (Collection<DeviceContext>)condition.getPropertyValue("devices");
-        a.put(createJSONCondition(ConditionConstants.DEVICE_CTX, "containsatleastone", "[" + StringUtils.join(ctx, ',') + "]"));
+        a.put(createJSONCondition(ConditionConstants.DEVICE_CTX, "containsatleastone", createDeviceListTerm(ctx)));
         a.put(createJSONCondition(ConditionConstants.VARIABLE_NAME, "=", VariableConstants.INDOOR_TEMP_F));
         a.put(createJSONCondition(ConditionConstants.VARIABLE_VALUE, "<", condition.getStringPropertyValue(VariableConstants.INDOOR_TEMP_F)));
         return a;
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.condition;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interned device sets for "containsatleastone" assumptions. Rules store a device list as a JRuleEngine list
+ * term (e.g. "[ctx1,ctx2]"); this class maps each distinct term to a single shared, immutable hash set so that
+ * membership checks are O(1), a term is only parsed once and rules monitoring the same devices share one set.
+ *
+ * The table is bounded by keeping two generations of terms. New terms go into the current generation; once it is
+ * full it becomes the previous generation and the one before it is dropped. A term found in the previous
+ * generation is moved back into the current one, so terms that are still in use survive while unused ones age out.
+ * Compiled rules hold on to their own sets, so a term dropped from the table only costs a re-parse.
+ *
+ * @author Dan Noguerol
+ */
+public class DeviceSets {
+    static final int MAX_SETS = 4096;
+
+    private static volatile ConcurrentHashMap<String,Set<String>> current = new ConcurrentHashMap<>();
+    private static volatile ConcurrentHashMap<String,Set<String>> previous = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a list term for a collection of devices and interns its set. A null collection produces "[null]",
+     * as the condition classes always have.
+     *
+     * @param ctxs the device contexts
+     *
+     * @return the list term
+     */
+    public static String createTerm(Collection<DeviceContext> ctxs) {
+        if (ctxs == null) {
+            return "[null]";
+        }
+        Set<String> set = new HashSet<>();
+        StringBuilder sb = new StringBuilder("[");
+        boolean first = true;
+        for (DeviceContext ctx : ctxs) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            if (ctx != null) {
+                String s = ctx.toString();
+                sb.append(s);
+                set.add(s);
+            }
+        }
+        String term = sb.append(']').toString();
+        if (lookup(term) == null) {
+            intern(term, Collections.unmodifiableSet(set));
+        }
+        return term;
+    }
+
+    /**
+     * Returns the shared set for a list term, parsing it if it hasn't been seen before.
+     *
+     * @param term the list term
+     *
+     * @return an unmodifiable Set of device context strings
+     */
+    public static Set<String> forTerm(String term) {
+        if (term == null) {
+            return Collections.emptySet();
+        }
+        Set<String> set = lookup(term);
+        if (set == null) {
+            set = intern(term, Collections.unmodifiableSet(parse(term)));
+        }
+        return set;
+    }
+
+    /**
+     * Returns the number of distinct sets currently interned.
+     *
+     * @return an int
+     */
+    public static int getSetCount() {
+        Map<String,Set<String>> c = current;
+        int count = c.size();
+        for (String term : previous.keySet()) {
+            if (!c.containsKey(term)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Parses a JRuleEngine list value (e.g. "[a,b,c]").
+     *
+     * @param s the list string
+     *
+     * @return a Set of String
+     */
+    static Set<String> parse(String s) {
+        String body = s.trim();
+        if (body.startsWith("[") && body.endsWith("]")) {
+            body = body.substring(1, body.length() - 1);
+        }
+        Set<String> results = new HashSet<>();
+        for (String v : body.split(",")) {
+            v = v.trim();
+            if (v.length() > 0) {
+                results.add(v);
+            }
+        }
+        return results;
+    }
+
+    private static Set<String> lookup(String term) {
+        Set<String> set = current.get(term);
+        if (set == null) {
+            set = previous.get(term);
+            if (set != null) {
+                set = intern(term, set);
+            }
+        }
+        return set;
+    }
+
+    private static Set<String> intern(String term, Set<String> set) {
+        ConcurrentHashMap<String,Set<String>> c = current;
+        if (c.size() >= MAX_SETS / 2) {
+            synchronized (DeviceSets.class) {
+                if (current == c) {
+                    previous = c;
+                    current = new ConcurrentHashMap<>();
+                }
+                c = current;
+            }
+        }
+        Set<String> existing = c.putIfAbsent(term, set);
+        return (existing != null) ? existing : set;
+    }
+}
@@ -15,13 +15,11 @@ import com.whizzosoftware.hobson.api.property.*;
 import com.whizzosoftware.hobson.api.task.condition.ConditionClassType;
 import com.whizzosoftware.hobson.api.task.condition.ConditionEvaluationContext;
 import com.whizzosoftware.hobson.api.variable.VariableConstants;
-import org.apache.commons.lang3.StringUtils;
 import org.jruleengine.rule.Assumption;
 import org.json.JSONArray;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 
 public class DeviceTurnsOnConditionClass extends AbstractRuleConditionClass {
@@ -43,11 +41,14 @@ public class DeviceTurnsOnConditionClass extends AbstractRuleConditionClass {
 
     @Override
     protected List<TypedProperty> createProperties() {
-        return Collections.singletonList(new TypedProperty.Builder("devices", "Devices", "The device(s) to monitor", TypedProperty.Type.DEVICES).
+        List<TypedProperty> props = new ArrayList<>();
+        props.add(new TypedProperty.Builder("devices", "Devices", "The device(s) to monitor", TypedProperty.Type.DEVICES).
             constraint(PropertyConstraintType.required, true).
             constraint(PropertyConstraintType.deviceVariable, VariableConstants.ON).
             build()
         );
+        props.addAll(createThrottleProperties());
+        return props;
     }
 
     @Override
@@ -56,7 +57,7 @@ public class DeviceTurnsOnConditionClass extends AbstractRuleConditionClass {
         Collection<DeviceContext> dctxs = (Collection<DeviceContext>)condition.getPropertyValue("devices");
         if (dctxs != null) {
             assumpList.add(new Assumption(ConditionConstants.EVENT_ID, "=", DeviceVariablesUpdateEvent.ID));
-            assumpList.add(new Assumption("event.deviceCtx", "containsatleastone", "[" + StringUtils.join(dctxs, ',') + "]"));
+            assumpList.add(new Assumption("event.deviceCtx", "containsatleastone", createDeviceListTerm(dctxs)));
             assumpList.add(new Assumption("event.variableName", "=", VariableConstants.ON));
             assumpList.add(new Assumption("event.variableValue", "=", DeviceTurnsOnConditionClass.ID.equals(getContext().getContainerClassId()) ? "true" : "false"));
             return assumpList;
@@ -71,7 +72,7 @@ public class DeviceTurnsOnConditionClass extends AbstractRuleConditionClass {
         PropertyContainerClassContext tccc = condition.getContainerClassContext();
         a.put(createJSONCondition(ConditionConstants.EVENT_ID, "=", DeviceVariablesUpdateEvent.ID));
         Collection<DeviceContext> ctx = (Collection<DeviceContext>)condition.getPropertyValue("devices");
-        a.put(createJSONCondition(ConditionConstants.DEVICE_CTX, "containsatleastone", "[" + StringUtils.join(ctx, ',') + "]"));
+        a.put(createJSONCondition(ConditionConstants.DEVICE_CTX, "containsatleastone", createDeviceListTerm(ctx)));
         a.put(createJSONCondition(ConditionConstants.VARIABLE_NAME, "=", VariableConstants.ON));
         a.put(createJSONCondition(ConditionConstants.VARIABLE_VALUE, "=", (tccc.getContainerClassId().equals(DeviceTurnsOnConditionClass.ID)) ? "true" : "false"));
         return a;
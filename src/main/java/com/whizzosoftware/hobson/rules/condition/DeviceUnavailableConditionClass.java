@@ -13,13 +13,11 @@ import com.whizzosoftware.hobson.api.plugin.PluginContext;
 import com.whizzosoftware.hobson.api.property.*;
 import com.whizzosoftware.hobson.api.task.condition.ConditionClassType;
 import com.whizzosoftware.hobson.api.task.condition.ConditionEvaluationContext;
-import org.apache.commons.lang3.StringUtils;
 import org.jruleengine.rule.Assumption;
 import org.json.JSONArray;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -45,10 +43,13 @@ public class DeviceUnavailableConditionClass extends AbstractRuleConditionClass
 
     @Override
     protected List<TypedProperty> createProperties() {
-        return Collections.singletonList(new TypedProperty.Builder("devices", "Devices", "The device(s) to monitor", TypedProperty.Type.DEVICES).
+        List<TypedProperty> props = new ArrayList<>();
+        props.add(new TypedProperty.Builder("devices", "Devices", "The device(s) to monitor", TypedProperty.Type.DEVICES).
             constraint(PropertyConstraintType.required, true).
             build()
         );
+        props.addAll(createThrottleProperties());
+        return props;
     }
 
     @Override
@@ -56,7 +57,7 @@ public class DeviceUnavailableConditionClass extends AbstractRuleConditionClass
         List<Assumption> assumpList = new ArrayList<>();
         Collection<DeviceContext> dctxs = (Collection<DeviceContext>)condition.getPropertyValue("devices");
         assumpList.add(new Assumption(ConditionConstants.EVENT_ID, "=", DeviceUnavailableEvent.ID));
-        assumpList.add(new Assumption("event.deviceCtx", "containsatleastone", "[" + StringUtils.join(dctxs, ',') + "]"));
+        assumpList.add(new Assumption("event.deviceCtx", "containsatleastone", createDeviceListTerm(dctxs)));
         return assumpList;
     }
 
@@ -65,7 +66,7 @@ public class DeviceUnavailableConditionClass extends AbstractRuleConditionClass
         JSONArray a = new JSONArray();
         a.put(createJSONCondition(ConditionConstants.EVENT_ID, "=", DeviceUnavailableEvent.ID));
         Collection<DeviceContext> ctx = (Collection<DeviceContext>)condition.getPropertyValue("devices");
-        a.put(createJSONCondition(ConditionConstants.DEVICE_CTX, "containsatleastone", "[" + StringUtils.join(ctx, ',') + "]"));
+        a.put(createJSONCondition(ConditionConstants.DEVICE_CTX, "containsatleastone", createDeviceListTerm(ctx)));
         return a;
     }
 }
@@ -54,6 +54,7 @@ public class PresenceArrivalConditionClass extends AbstractRuleConditionClass {
             constraint(PropertyConstraintType.required, true).
             build()
         );
+        props.addAll(createThrottleProperties());
         return props;
     }
 
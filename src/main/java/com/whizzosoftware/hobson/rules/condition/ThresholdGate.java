@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.condition;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks per-device threshold state so that a threshold condition only fires when a device's value crosses the
+ * threshold rather than on every report beyond it.
+ *
+ * A device becomes "active" when its value crosses the threshold, at which point a single crossing is available
+ * to fire the task. It remains active (and suppressed) until its value moves back past the threshold by at least
+ * the hysteresis band, which re-arms it for the next crossing.
+ *
+ * Every update for a monitored device must be observed (not just the ones that match the rule) so the gate can
+ * see the value return. Updates for a single device are expected to be observed in order.
+ *
+ * @author Dan Noguerol
+ */
+public class ThresholdGate {
+    private final String variableName;
+    private final Set<String> devices;
+    private final boolean above;
+    private final double threshold;
+    private final double hysteresis;
+    private final ConcurrentHashMap<String,DeviceState> states = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param variableName the name of the monitored variable
+     * @param devices the device context strings being monitored
+     * @param above true if the condition fires when the value rises above the threshold, false if it fires when
+     *              the value falls below it
+     * @param threshold the threshold
+     * @param hysteresis how far the value must move back past the threshold before the gate re-arms
+     */
+    public ThresholdGate(String variableName, Set<String> devices, boolean above, double threshold, double hysteresis) {
+        this.variableName = variableName;
+        this.devices = devices;
+        this.above = above;
+        this.threshold = threshold;
+        this.hysteresis = Math.max(0, hysteresis);
+    }
+
+    public String getVariableName() {
+        return variableName;
+    }
+
+    public Set<String> getDevices() {
+        return devices;
+    }
+
+    public boolean isAbove() {
+        return above;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public double getHysteresis() {
+        return hysteresis;
+    }
+
+    /**
+     * Indicates whether another gate monitors the same variable and devices with the same threshold and
+     * hysteresis. Per-device state is not compared.
+     *
+     * @param other the other gate
+     *
+     * @return a boolean
+     */
+    public boolean isEquivalent(ThresholdGate other) {
+        return (other != null &&
+            above == other.above &&
+            Double.compare(threshold, other.threshold) == 0 &&
+            Double.compare(hysteresis, other.hysteresis) == 0 &&
+            variableName.equals(other.variableName) &&
+            devices.equals(other.devices));
+    }
+
+    /**
+     * Observes a variable update.
+     *
+     * @param deviceCtx the device context string
+     * @param name the variable name
+     * @param value the new value
+     */
+    public void observe(String deviceCtx, String name, Object value) {
+        if (variableName.equals(name) && devices.contains(deviceCtx)) {
+            double v = toDouble(value);
+            if (!Double.isNaN(v)) {
+                DeviceState state = states.get(deviceCtx);
+                if (state == null) {
+                    state = new DeviceState();
+                    DeviceState existing = states.putIfAbsent(deviceCtx, state);
+                    if (existing != null) {
+                        state = existing;
+                    }
+                }
+                state.update(v);
+            }
+        }
+    }
+
+    /**
+     * Consumes the crossing produced by the device's most recent update, if there was one.
+     *
+     * @param deviceCtx the device context string
+     *
+     * @return true if the device's last update crossed the threshold and the crossing hadn't yet been consumed
+     */
+    public boolean consumeCrossing(String deviceCtx) {
+        DeviceState state = (deviceCtx != null) ? states.get(deviceCtx) : null;
+        if (state != null && state.crossed) {
+            state.crossed = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the last value observed for a device.
+     *
+     * @param deviceCtx the device context string
+     *
+     * @return the value (or NaN if no value has been observed)
+     */
+    public double getLastValue(String deviceCtx) {
+        DeviceState state = states.get(deviceCtx);
+        return (state != null) ? state.lastValue : Double.NaN;
+    }
+
+    /**
+     * Returns the number of devices the gate is holding state for.
+     *
+     * @return an int
+     */
+    public int getStateCount() {
+        return states.size();
+    }
+
+    private double toDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number)value).doubleValue();
+        } else if (value != null) {
+            try {
+                return Double.parseDouble(value.toString());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return Double.NaN;
+    }
+
+    private class DeviceState {
+        volatile double lastValue;
+        volatile boolean active;
+        volatile boolean crossed;
+
+        void update(double v) {
+            lastValue = v;
+            if (above) {
+                if (!active && v > threshold) {
+                    active = true;
+                    crossed = true;
+                    return;
+                } else if (active && v <= threshold - hysteresis) {
+                    active = false;
+                }
+            } else {
+                if (!active && v < threshold) {
+                    active = true;
+                    crossed = true;
+                    return;
+                } else if (active && v >= threshold + hysteresis) {
+                    active = false;
+                }
+            }
+            crossed = false;
+        }
+    }
+}
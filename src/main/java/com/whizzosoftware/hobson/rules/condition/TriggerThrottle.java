@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.condition;
+
+/**
+ * The limits placed on how often a task's trigger may fire. This is useful for conditions monitoring devices that
+ * flap (e.g. a switch reporting on/off/on or a presence sensor bouncing between locations).
+ *
+ * A debounce delays firing until no further matches have occurred for the debounce period. A minimum interval
+ * suppresses any firing that occurs too soon after the previous one. A rate limit is a token bucket that allows
+ * up to "burst" firings at once and refills at the given number of firings per minute. Any combination of the
+ * three may be used; a value of zero disables that limit.
+ *
+ * @author Dan Noguerol
+ */
+public class TriggerThrottle {
+    private final long debounceMillis;
+    private final long minIntervalMillis;
+    private final int ratePerMinute;
+    private final int burst;
+
+    /**
+     * Constructor.
+     *
+     * @param debounceMillis how long the trigger must be quiet before it fires (0 to disable)
+     * @param minIntervalMillis the minimum time between firings (0 to disable)
+     * @param ratePerMinute the sustained number of firings allowed per minute (0 to disable)
+     * @param burst the number of firings allowed at once when the rate limit is enabled (defaults to 1)
+     */
+    public TriggerThrottle(long debounceMillis, long minIntervalMillis, int ratePerMinute, int burst) {
+        this.debounceMillis = Math.max(0, debounceMillis);
+        this.minIntervalMillis = Math.max(0, minIntervalMillis);
+        this.ratePerMinute = Math.max(0, ratePerMinute);
+        this.burst = Math.max(1, burst);
+    }
+
+    public long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    public long getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    public int getRatePerMinute() {
+        return ratePerMinute;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public boolean hasDebounce() {
+        return (debounceMillis > 0);
+    }
+
+    public boolean hasRateLimit() {
+        return (ratePerMinute > 0);
+    }
+
+    /**
+     * Indicates whether any limit is enabled.
+     *
+     * @return a boolean
+     */
+    public boolean isEnabled() {
+        return (debounceMillis > 0 || minIntervalMillis > 0 || ratePerMinute > 0);
+    }
+
+    @Override
+    public String toString() {
+        return "debounce=" + debounceMillis + "ms, minInterval=" + minIntervalMillis + "ms, rate=" + ratePerMinute + "/min, burst=" + burst;
+    }
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * A network of assumption nodes shared by the rules of an indexed rule set. The event ID, context and variable
+ * name assumptions are already shared through the rule set's indexes; this network covers the assumptions that
+ * remain once a rule is a candidate. Identical assumptions (same field, operator and right term) map to a single
+ * node no matter how many rules use them, so while an event context is being matched each node is evaluated at
+ * most once and its result is re-used by every other rule that references it.
+ *
+ * A network is either interpreted or compiled to match the engine it serves: an interpreted network evaluates each
+ * node with RuleAssumption.evaluate() and a compiled one evaluates it with a RulePredicate.
+ *
+ * Nodes are reference counted by the rules attached to them. A node's ID is re-used once no rule references it;
+ * results are remembered per thread and are checked against the node itself, so a rule that was detached while
+ * it was being matched still gets its own results.
+ *
+ * @author Dan Noguerol
+ */
+public class AssumptionNetwork {
+    private static final Node[] NO_NODES = new Node[0];
+
+    private final boolean compiled;
+    private final Map<String,Node> nodes = new HashMap<>();
+    private final Map<IndexedRule,Node[]> attached = new IdentityHashMap<>();
+    private final Deque<Integer> freeIds = new ArrayDeque<>();
+    private final ThreadLocal<Evaluation> evaluation = new ThreadLocal<Evaluation>() {
+        @Override
+        protected Evaluation initialValue() {
+            return new Evaluation();
+        }
+    };
+    private int nextId;
+    private int sharedNodeCount;
+    private int referenceCount;
+
+    /**
+     * Constructor for an interpreted network.
+     */
+    public AssumptionNetwork() {
+        this(false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param compiled whether nodes are evaluated with compiled RulePredicates rather than interpreted
+     */
+    public AssumptionNetwork(boolean compiled) {
+        this.compiled = compiled;
+    }
+
+    /**
+     * Indicates whether nodes are evaluated with compiled RulePredicates.
+     *
+     * @return a boolean
+     */
+    public boolean isCompiled() {
+        return compiled;
+    }
+
+    /**
+     * Attaches a rule's assumptions to the network, creating any nodes that don't already exist. Attaching a rule
+     * that is already attached does nothing.
+     *
+     * @param rule the rule
+     */
+    synchronized public void attach(IndexedRule rule) {
+        if (attached.containsKey(rule)) {
+            return;
+        }
+        RuleAssumption[] assumptions = rule.getAssumptions();
+        Node[] ruleNodes = assumptions.length > 0 ? new Node[assumptions.length] : NO_NODES;
+        for (int i=0; i < assumptions.length; i++) {
+            String key = createKey(assumptions[i]);
+            Node node = nodes.get(key);
+            if (node == null) {
+                node = new Node(freeIds.isEmpty() ? nextId++ : freeIds.pop(), key, assumptions[i], compiled ? RulePredicate.compile(assumptions[i]) : null);
+                nodes.put(key, node);
+            }
+            if (++node.refCount == 2) {
+                sharedNodeCount++;
+            }
+            referenceCount++;
+            ruleNodes[i] = node;
+        }
+        attached.put(rule, ruleNodes);
+        rule.setNodes(ruleNodes);
+    }
+
+    /**
+     * Detaches a rule from the network, removing any nodes that no other rule references. Detaching a rule that
+     * isn't attached does nothing.
+     *
+     * @param rule the rule
+     */
+    synchronized public void detach(IndexedRule rule) {
+        Node[] ruleNodes = attached.remove(rule);
+        if (ruleNodes != null) {
+            for (Node node : ruleNodes) {
+                if (--node.refCount == 1) {
+                    sharedNodeCount--;
+                } else if (node.refCount == 0) {
+                    nodes.remove(node.key);
+                    freeIds.push(node.id);
+                }
+                referenceCount--;
+            }
+        }
+    }
+
+    /**
+     * Removes all rules and nodes from the network.
+     */
+    synchronized public void clear() {
+        nodes.clear();
+        attached.clear();
+        freeIds.clear();
+        nextId = 0;
+        sharedNodeCount = 0;
+        referenceCount = 0;
+    }
+
+    /**
+     * Starts matching a new event context on the calling thread. Node results remembered for a previous context
+     * are discarded.
+     *
+     * @return the Evaluation to use while matching the context
+     */
+    public Evaluation begin() {
+        Evaluation e = evaluation.get();
+        e.begin();
+        return e;
+    }
+
+    synchronized public int getRuleCount() {
+        return attached.size();
+    }
+
+    /**
+     * Returns the number of distinct assumption nodes.
+     *
+     * @return an int
+     */
+    synchronized public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Returns the number of nodes referenced by more than one rule.
+     *
+     * @return an int
+     */
+    synchronized public int getSharedNodeCount() {
+        return sharedNodeCount;
+    }
+
+    /**
+     * Returns the total number of rule references to nodes (i.e. the number of assumption evaluations a match of
+     * every rule would take without the network).
+     *
+     * @return an int
+     */
+    synchronized public int getReferenceCount() {
+        return referenceCount;
+    }
+
+    synchronized public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("compiled", compiled);
+        json.put("rules", attached.size());
+        json.put("nodes", nodes.size());
+        json.put("sharedNodes", sharedNodeCount);
+        json.put("references", referenceCount);
+        return json;
+    }
+
+    private String createKey(RuleAssumption a) {
+        return a.getField() + " " + a.getOperator() + " " + a.getRightTerm();
+    }
+
+    /**
+     * A single distinct assumption.
+     */
+    static final class Node {
+        final int id;
+        final String key;
+        final RuleAssumption assumption;
+        final RulePredicate predicate;
+        int refCount;
+
+        Node(int id, String key, RuleAssumption assumption, RulePredicate predicate) {
+            this.id = id;
+            this.key = key;
+            this.assumption = assumption;
+            this.predicate = predicate;
+        }
+
+        boolean test(JREEventContext ctx) {
+            return (predicate != null) ? predicate.test(ctx) : assumption.evaluate(ctx);
+        }
+    }
+
+    /**
+     * The node results remembered by a single thread for the event context it is currently matching.
+     */
+    public static final class Evaluation {
+        private int generation;
+        private int[] stamps = new int[16];
+        private boolean[] results = new boolean[16];
+        private Node[] owners = new Node[16];
+
+        void begin() {
+            if (++generation == 0) {
+                Arrays.fill(stamps, 0);
+                generation = 1;
+            }
+        }
+
+        /**
+         * Evaluates a node against the current event context, or returns its result if another rule has already
+         * evaluated it.
+         *
+         * @param node the node
+         * @param ctx the event context
+         *
+         * @return a boolean
+         */
+        boolean test(Node node, JREEventContext ctx) {
+            int id = node.id;
+            if (id >= stamps.length) {
+                int size = Math.max(id + 1, stamps.length * 2);
+                stamps = Arrays.copyOf(stamps, size);
+                results = Arrays.copyOf(results, size);
+                owners = Arrays.copyOf(owners, size);
+            } else if (stamps[id] == generation && owners[id] == node) {
+                return results[id];
+            }
+            boolean r = node.test(ctx);
+            stamps[id] = generation;
+            results[id] = r;
+            owners[id] = node;
+            return r;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.rules.condition.ConditionConstants;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+
+/**
+ * The event context fields that a rule assumption can reference. Each constant maps a JRuleEngine left term to a
+ * direct accessor so no reflection is needed at evaluation time.
+ *
+ * @author Dan Noguerol
+ */
+public enum EventField {
+    EVENT_ID(ConditionConstants.EVENT_ID) {
+        @Override
+        public Object get(JREEventContext ctx) {
+            return ctx.eventId();
+        }
+    },
+    DEVICE_CTX(ConditionConstants.DEVICE_CTX) {
+        @Override
+        public Object get(JREEventContext ctx) {
+            return ctx.deviceCtx();
+        }
+    },
+    VARIABLE_NAME(ConditionConstants.VARIABLE_NAME) {
+        @Override
+        public Object get(JREEventContext ctx) {
+            return ctx.variableName();
+        }
+    },
+    VARIABLE_OLD_VALUE(ConditionConstants.VARIABLE_OLD_VALUE) {
+        @Override
+        public Object get(JREEventContext ctx) {
+            return ctx.variableOldValue();
+        }
+
+        @Override
+        public double getNumber(JREEventContext ctx) {
+            return ctx.variableOldNumber();
+        }
+    },
+    VARIABLE_VALUE(ConditionConstants.VARIABLE_VALUE) {
+        @Override
+        public Object get(JREEventContext ctx) {
+            return ctx.variableValue();
+        }
+
+        @Override
+        public double getNumber(JREEventContext ctx) {
+            return ctx.variableNumber();
+        }
+    },
+    PERSON_CTX(ConditionConstants.PERSON_CTX) {
+        @Override
+        public Object get(JREEventContext ctx) {
+            return ctx.personCtx();
+        }
+    },
+    OLD_LOCATION_CTX(ConditionConstants.OLD_LOCATION_CTX) {
+        @Override
+        public Object get(JREEventContext ctx) {
+            return ctx.oldLocationCtx();
+        }
+    },
+    NEW_LOCATION_CTX(ConditionConstants.NEW_LOCATION_CTX) {
+        @Override
+        public Object get(JREEventContext ctx) {
+            return ctx.newLocationCtx();
+        }
+    };
+
+    private final String leftTerm;
+
+    EventField(String leftTerm) {
+        this.leftTerm = leftTerm;
+    }
+
+    public String getLeftTerm() {
+        return leftTerm;
+    }
+
+    abstract public Object get(JREEventContext ctx);
+
+    /**
+     * Returns the field's value as a number. Variable values are pre-converted by the event context; other fields
+     * are converted on demand.
+     *
+     * @param ctx the event context
+     *
+     * @return the value (or NaN if it isn't numeric)
+     */
+    public double getNumber(JREEventContext ctx) {
+        return JREEventContext.toNumber(get(ctx));
+    }
+
+    /**
+     * Returns the field referenced by a JRuleEngine left term.
+     *
+     * @param leftTerm the left term
+     *
+     * @return an EventField (or null if the term isn't recognized)
+     */
+    public static EventField forLeftTerm(String leftTerm) {
+        for (EventField f : values()) {
+            if (f.leftTerm.equals(leftTerm)) {
+                return f;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.api.HobsonRuntimeException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An exact set of the (event ID, device or person context, variable name) keys that any rule uses, so that events
+ * no rule can match are rejected before they're queued or evaluated. Rules that don't use a context or variable
+ * name are filed under a wildcard for that part of the key, just as they are in the indexed rule set.
+ *
+ * Keys are reference counted by the rules that use them and are updated as rules are added and removed. A rule
+ * that can't be indexed (e.g. one without an event ID assumption) could match anything, so the filter accepts
+ * every event while such a rule exists.
+ *
+ * Updates are serialized while lookups are lock-free and don't allocate.
+ *
+ * @author Dan Noguerol
+ */
+public class EventFilter {
+    private final ConcurrentHashMap<String,ConcurrentHashMap<String,ConcurrentHashMap<String,AtomicInteger>>> keys = new ConcurrentHashMap<>();
+    private final Map<String,List<String[]>> keysByRule = new HashMap<>();
+    private final AtomicInteger keyCount = new AtomicInteger();
+    private volatile int unindexedRuleCount;
+
+    /**
+     * Adds a rule's keys to the filter. If a rule with the same name was already added, its keys are replaced.
+     *
+     * @param rule the rule JSON
+     */
+    synchronized public void put(JSONObject rule) {
+        String name = rule.getString("name");
+        List<String[]> ruleKeys;
+        try {
+            ruleKeys = getKeys(IndexedRuleSet.compileRule(rule));
+        } catch (HobsonRuntimeException e) {
+            ruleKeys = null;
+        }
+
+        // the new keys are added before the old ones are released so a key shared by both is never absent
+        if (ruleKeys != null) {
+            for (String[] key : ruleKeys) {
+                retain(key);
+            }
+        } else {
+            unindexedRuleCount++;
+        }
+        boolean existed = keysByRule.containsKey(name);
+        release(keysByRule.put(name, ruleKeys), existed);
+    }
+
+    /**
+     * Removes a rule's keys from the filter.
+     *
+     * @param name the rule name
+     */
+    synchronized public void remove(String name) {
+        if (keysByRule.containsKey(name)) {
+            release(keysByRule.remove(name), true);
+        }
+    }
+
+    /**
+     * Removes every rule from the filter except the named ones.
+     *
+     * @param names the names of the rules to keep
+     */
+    synchronized public void retainAll(Collection<String> names) {
+        Iterator<Map.Entry<String,List<String[]>>> it = keysByRule.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String,List<String[]>> e = it.next();
+            if (!names.contains(e.getKey())) {
+                it.remove();
+                release(e.getValue(), true);
+            }
+        }
+    }
+
+    /**
+     * Removes all rules from the filter.
+     */
+    synchronized public void clear() {
+        keys.clear();
+        keysByRule.clear();
+        keyCount.set(0);
+        unindexedRuleCount = 0;
+    }
+
+    /**
+     * Indicates whether any rule could match an event context.
+     *
+     * @param eventId the event ID
+     * @param ctx the device or person context string (or null if the event has neither)
+     * @param variableName the variable name (or null if the event doesn't update a variable)
+     *
+     * @return a boolean
+     */
+    public boolean accepts(String eventId, String ctx, String variableName) {
+        if (unindexedRuleCount > 0) {
+            return true;
+        }
+        Map<String,ConcurrentHashMap<String,AtomicInteger>> ctxMap = keys.get(eventId);
+        if (ctxMap != null) {
+            if (ctx != null && accepts(ctxMap.get(ctx), variableName)) {
+                return true;
+            }
+            return accepts(ctxMap.get(IndexedRuleSet.ANY), variableName);
+        }
+        return false;
+    }
+
+    private boolean accepts(Map<String,AtomicInteger> varMap, String variableName) {
+        return (varMap != null && ((variableName != null && varMap.containsKey(variableName)) || varMap.containsKey(IndexedRuleSet.ANY)));
+    }
+
+    synchronized public int getRuleCount() {
+        return keysByRule.size();
+    }
+
+    /**
+     * Returns the number of distinct keys in the filter.
+     *
+     * @return an int
+     */
+    public int getKeyCount() {
+        return keyCount.get();
+    }
+
+    /**
+     * Returns the number of rules that couldn't be indexed and so cause every event to be accepted.
+     *
+     * @return an int
+     */
+    public int getUnindexedRuleCount() {
+        return unindexedRuleCount;
+    }
+
+    private List<String[]> getKeys(IndexedRule rule) {
+        String varKey = rule.getVariableName() != null ? rule.getVariableName() : IndexedRuleSet.ANY;
+        Collection<String> ctxKeys = IndexedRuleSet.getContextKeys(rule);
+        List<String[]> result = new ArrayList<>(ctxKeys.size());
+        for (String ctxKey : ctxKeys) {
+            result.add(new String[] {rule.getEventId(), ctxKey, varKey});
+        }
+        return result;
+    }
+
+    private void retain(String[] key) {
+        ConcurrentHashMap<String,ConcurrentHashMap<String,AtomicInteger>> ctxMap = keys.get(key[0]);
+        if (ctxMap == null) {
+            ctxMap = new ConcurrentHashMap<>();
+            keys.put(key[0], ctxMap);
+        }
+        ConcurrentHashMap<String,AtomicInteger> varMap = ctxMap.get(key[1]);
+        if (varMap == null) {
+            varMap = new ConcurrentHashMap<>();
+            ctxMap.put(key[1], varMap);
+        }
+        AtomicInteger count = varMap.get(key[2]);
+        if (count == null) {
+            varMap.put(key[2], new AtomicInteger(1));
+            keyCount.incrementAndGet();
+        } else {
+            count.incrementAndGet();
+        }
+    }
+
+    private void release(List<String[]> ruleKeys, boolean existed) {
+        if (ruleKeys != null) {
+            for (String[] key : ruleKeys) {
+                release(key);
+            }
+        } else if (existed) {
+            unindexedRuleCount--;
+        }
+    }
+
+    private void release(String[] key) {
+        Map<String,ConcurrentHashMap<String,AtomicInteger>> ctxMap = keys.get(key[0]);
+        Map<String,AtomicInteger> varMap = (ctxMap != null) ? ctxMap.get(key[1]) : null;
+        AtomicInteger count = (varMap != null) ? varMap.get(key[2]) : null;
+        if (count != null && count.decrementAndGet() == 0) {
+            varMap.remove(key[2]);
+            keyCount.decrementAndGet();
+            if (varMap.isEmpty()) {
+                ctxMap.remove(key[1]);
+                if (ctxMap.isEmpty()) {
+                    keys.remove(key[0]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+
+import java.util.List;
+
+/**
+ * A compiled rule. The index keys a rule was filed under (event ID, device/person context and variable name) are
+ * not repeated here; only the remaining assumptions need to be checked once a rule has been selected as a
+ * candidate.
+ *
+ * @author Dan Noguerol
+ */
+public class IndexedRule {
+    private final String name;
+    private final boolean enabled;
+    private final String eventId;
+    private final RuleAssumption contextAssumption;
+    private final String variableName;
+    private final RuleAssumption[] assumptions;
+    private final boolean compile;
+    private final List<String> triggers;
+    private volatile RulePredicate predicate;
+    private volatile AssumptionNetwork.Node[] nodes;
+
+    /**
+     * Constructor.
+     *
+     * @param name the rule name (the task ID)
+     * @param enabled whether the rule is enabled
+     * @param eventId the event ID the rule is indexed under
+     * @param contextAssumption the device or person assumption the rule is indexed under (or null for any)
+     * @param variableName the variable name the rule is indexed under (or null for any)
+     * @param assumptions the remaining assumptions
+     * @param triggers the task contexts to fire when the rule matches
+     */
+    public IndexedRule(String name, boolean enabled, String eventId, RuleAssumption contextAssumption, String variableName, List<RuleAssumption> assumptions, List<String> triggers) {
+        this(name, enabled, eventId, contextAssumption, variableName, assumptions, triggers, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the rule name (the task ID)
+     * @param enabled whether the rule is enabled
+     * @param eventId the event ID the rule is indexed under
+     * @param contextAssumption the device or person assumption the rule is indexed under (or null for any)
+     * @param variableName the variable name the rule is indexed under (or null for any)
+     * @param assumptions the remaining assumptions
+     * @param triggers the task contexts to fire when the rule matches
+     * @param compile whether to compile the remaining assumptions into a RulePredicate rather than interpret them
+     *                (the predicate is only built if the rule is evaluated on its own rather than through an
+     *                AssumptionNetwork)
+     */
+    public IndexedRule(String name, boolean enabled, String eventId, RuleAssumption contextAssumption, String variableName, List<RuleAssumption> assumptions, List<String> triggers, boolean compile) {
+        this.name = name;
+        this.enabled = enabled;
+        this.eventId = eventId;
+        this.contextAssumption = contextAssumption;
+        this.variableName = variableName;
+        this.assumptions = assumptions.toArray(new RuleAssumption[assumptions.size()]);
+        this.triggers = triggers;
+        this.compile = compile;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getEventId() {
+        return eventId;
+    }
+
+    public RuleAssumption getContextAssumption() {
+        return contextAssumption;
+    }
+
+    public String getVariableName() {
+        return variableName;
+    }
+
+    /**
+     * Indicates whether the rule's assumptions are compiled into a RulePredicate when it is evaluated on its own.
+     *
+     * @return a boolean
+     */
+    public boolean isCompiled() {
+        return compile;
+    }
+
+    /**
+     * Indicates whether the rule's RulePredicate has been built.
+     *
+     * @return a boolean
+     */
+    boolean hasPredicate() {
+        return (predicate != null);
+    }
+
+    RuleAssumption[] getAssumptions() {
+        return assumptions;
+    }
+
+    void setNodes(AssumptionNetwork.Node[] nodes) {
+        this.nodes = nodes;
+    }
+
+    AssumptionNetwork.Node[] getNodes() {
+        return nodes;
+    }
+
+    public List<String> getTriggers() {
+        return triggers;
+    }
+
+    /**
+     * Evaluates the non-indexed assumptions against an event context.
+     *
+     * @param ctx the event context
+     *
+     * @return a boolean
+     */
+    public boolean matches(JREEventContext ctx) {
+        if (compile) {
+            RulePredicate p = predicate;
+            if (p == null) {
+                p = RulePredicate.compile(assumptions);
+                predicate = p;
+            }
+            return p.test(ctx);
+        }
+        for (RuleAssumption a : assumptions) {
+            if (!a.evaluate(ctx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates the non-indexed assumptions against an event context using the shared nodes the rule was
+     * attached to. If the rule isn't attached to a network, its own assumptions are evaluated.
+     *
+     * @param ctx the event context
+     * @param evaluation the node results for the context (or null if the rule set has no network)
+     *
+     * @return a boolean
+     */
+    boolean matches(JREEventContext ctx, AssumptionNetwork.Evaluation evaluation) {
+        AssumptionNetwork.Node[] n = nodes;
+        if (evaluation == null || n == null) {
+            return matches(ctx);
+        }
+        for (int i=0; i < n.length; i++) {
+            if (!evaluation.test(n[i], ctx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
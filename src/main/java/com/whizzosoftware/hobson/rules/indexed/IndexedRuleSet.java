@@ -0,0 +1,499 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.api.HobsonRuntimeException;
+import com.whizzosoftware.hobson.rules.condition.ConditionConstants;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+import com.whizzosoftware.hobson.rules.jruleengine.JRETaskContext;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * A rule set that compiles JRuleEngine rule JSON into hash indexes keyed by event ID, then device (or person)
+ * context, then variable name. Matching an event only evaluates the rules filed under its keys rather than
+ * scanning every rule's assumptions.
+ *
+ * Rules can be added and removed individually so that a single task change doesn't require the whole set to be
+ * re-compiled. The indexes are copy-on-write: a change copies only the maps and lists along the paths it touches
+ * and then publishes the new indexes, so matching never takes a lock and never waits on a change. Changes are
+ * serialized with respect to each other.
+ *
+ * A rule set can optionally be given an AssumptionNetwork so that assumptions shared by several candidate rules
+ * are evaluated once per event context rather than once per rule.
+ *
+ * @author Dan Noguerol
+ */
+public class IndexedRuleSet {
+    static final String ANY = "*";
+
+    private final AssumptionNetwork network;
+    private volatile Index current = new Index(new HashMap<String,Map<String,Map<String,List<IndexedRule>>>>(), new HashMap<String,IndexedRule>());
+
+    /**
+     * Constructor.
+     */
+    public IndexedRuleSet() {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param network the network used to share assumption results between rules (or null to evaluate each rule's
+     *                assumptions on their own)
+     */
+    public IndexedRuleSet(AssumptionNetwork network) {
+        this.network = network;
+    }
+
+    /**
+     * Compiles a JRuleEngine rule set JSON document.
+     *
+     * @param json the rule set JSON
+     *
+     * @return an IndexedRuleSet
+     * @throws HobsonRuntimeException if any rule uses an unsupported term, operator or action
+     */
+    public static IndexedRuleSet compile(JSONObject json) {
+        return compile(json, false);
+    }
+
+    /**
+     * Compiles a JRuleEngine rule set JSON document.
+     *
+     * @param json the rule set JSON
+     * @param predicates whether to compile each rule's remaining assumptions into a RulePredicate
+     *
+     * @return an IndexedRuleSet
+     * @throws HobsonRuntimeException if any rule uses an unsupported term, operator or action
+     */
+    public static IndexedRuleSet compile(JSONObject json, boolean predicates) {
+        IndexedRuleSet rs = new IndexedRuleSet();
+        rs.addAll(compileRules(json, predicates));
+        return rs;
+    }
+
+    /**
+     * Compiles the rules of a JRuleEngine rule set JSON document without adding them to a rule set.
+     *
+     * @param json the rule set JSON
+     * @param predicates whether to compile each rule's remaining assumptions into a RulePredicate
+     *
+     * @return a List of IndexedRule objects
+     * @throws HobsonRuntimeException if any rule uses an unsupported term, operator or action
+     */
+    public static List<IndexedRule> compileRules(JSONObject json, boolean predicates) {
+        JSONArray rules = json.optJSONArray("rules");
+        List<IndexedRule> compiled = new ArrayList<>(rules != null ? rules.length() : 0);
+        if (rules != null) {
+            for (int i=0; i < rules.length(); i++) {
+                compiled.add(compileRule(rules.getJSONObject(i), predicates));
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Compiles a single JRuleEngine rule JSON object.
+     *
+     * @param json the rule JSON
+     *
+     * @return an IndexedRule
+     * @throws HobsonRuntimeException if the rule uses an unsupported term, operator or action
+     */
+    public static IndexedRule compileRule(JSONObject json) {
+        return compileRule(json, false);
+    }
+
+    /**
+     * Compiles a single JRuleEngine rule JSON object.
+     *
+     * @param json the rule JSON
+     * @param predicate whether to compile the rule's remaining assumptions into a RulePredicate
+     *
+     * @return an IndexedRule
+     * @throws HobsonRuntimeException if the rule uses an unsupported term, operator or action
+     */
+    public static IndexedRule compileRule(JSONObject json, boolean predicate) {
+        String name = json.getString("name");
+        String eventId = null;
+        RuleAssumption contextAssumption = null;
+        String variableName = null;
+        List<RuleAssumption> assumptions = new ArrayList<>();
+
+        JSONArray aj = json.optJSONArray("assumptions");
+        if (aj != null) {
+            for (int i=0; i < aj.length(); i++) {
+                JSONObject o = aj.getJSONObject(i);
+                RuleAssumption a = RuleAssumption.create(o.getString("leftTerm"), o.getString("op"), o.getString("rightTerm"));
+                if (eventId == null && a.getField() == EventField.EVENT_ID && a.getOperator() == Operator.EQUALS) {
+                    eventId = a.getRightTerm();
+                } else if (contextAssumption == null && isContextAssumption(a)) {
+                    contextAssumption = a;
+                } else if (variableName == null && a.getField() == EventField.VARIABLE_NAME && a.getOperator() == Operator.EQUALS) {
+                    variableName = a.getRightTerm();
+                } else {
+                    assumptions.add(a);
+                }
+            }
+        }
+
+        if (eventId == null) {
+            throw new HobsonRuntimeException("Unable to index rule without an event ID assumption: " + name);
+        }
+
+        List<String> triggers = new ArrayList<>();
+        JSONArray actions = json.optJSONArray("actions");
+        if (actions != null) {
+            for (int i=0; i < actions.length(); i++) {
+                JSONObject action = actions.getJSONObject(i);
+                String method = action.getString("method");
+                if (ConditionConstants.FIRE_TRIGGER.equals(method)) {
+                    triggers.add(action.get("arg1").toString());
+                } else if (!ConditionConstants.SET_ACTIONSET.equals(method)) {
+                    throw new HobsonRuntimeException("Unsupported rule action: " + method);
+                }
+            }
+        }
+
+        return new IndexedRule(name, json.optBoolean("enabled", true), eventId, contextAssumption, variableName, assumptions, triggers, predicate);
+    }
+
+    private static boolean isContextAssumption(RuleAssumption a) {
+        return ((a.getField() == EventField.DEVICE_CTX || a.getField() == EventField.PERSON_CTX) &&
+            (a.getOperator() == Operator.EQUALS || a.getOperator() == Operator.CONTAINS_AT_LEAST_ONE));
+    }
+
+    /**
+     * Returns the number of rules in the set.
+     *
+     * @return an int
+     */
+    public int getRuleCount() {
+        return current.rulesByName.size();
+    }
+
+    /**
+     * Returns the network used to share assumption results between rules.
+     *
+     * @return an AssumptionNetwork (or null if the rule set doesn't share assumptions)
+     */
+    public AssumptionNetwork getAssumptionNetwork() {
+        return network;
+    }
+
+    /**
+     * Adds a compiled rule to the indexes. If a rule with the same name already exists, it is replaced.
+     *
+     * @param rule the rule to add
+     */
+    public void add(IndexedRule rule) {
+        addAll(Collections.singletonList(rule));
+    }
+
+    /**
+     * Adds a batch of compiled rules to the indexes, replacing any existing rules with the same names. The batch
+     * is published as a single change so the indexes are only copied once.
+     *
+     * @param rules the rules to add
+     */
+    synchronized public void addAll(Collection<IndexedRule> rules) {
+        Editor editor = new Editor(current);
+        for (IndexedRule rule : rules) {
+            // the new rule is attached before the old one is detached so nodes they share are kept
+            if (network != null) {
+                network.attach(rule);
+            }
+            IndexedRule old = editor.rulesByName.put(rule.getName(), rule);
+            if (old != null) {
+                editor.unindex(old);
+                if (network != null && old != rule) {
+                    network.detach(old);
+                }
+            }
+            editor.index(rule);
+        }
+        current = editor.toIndex();
+    }
+
+    /**
+     * Removes a rule from the indexes.
+     *
+     * @param name the rule name
+     *
+     * @return the removed rule (or null if no rule with that name exists)
+     */
+    synchronized public IndexedRule remove(String name) {
+        if (!current.rulesByName.containsKey(name)) {
+            return null;
+        }
+        Editor editor = new Editor(current);
+        IndexedRule rule = editor.rulesByName.remove(name);
+        editor.unindex(rule);
+        current = editor.toIndex();
+        if (network != null) {
+            network.detach(rule);
+        }
+        return rule;
+    }
+
+    /**
+     * Removes a batch of rules from the indexes. The batch is published as a single change so the indexes are only
+     * copied once.
+     *
+     * @param names the rule names
+     */
+    synchronized public void removeAll(Collection<String> names) {
+        Editor editor = null;
+        List<IndexedRule> removed = new ArrayList<>();
+        for (String name : names) {
+            if ((editor != null ? editor.rulesByName : current.rulesByName).containsKey(name)) {
+                if (editor == null) {
+                    editor = new Editor(current);
+                }
+                IndexedRule rule = editor.rulesByName.remove(name);
+                editor.unindex(rule);
+                removed.add(rule);
+            }
+        }
+        if (editor != null) {
+            current = editor.toIndex();
+            if (network != null) {
+                for (IndexedRule rule : removed) {
+                    network.detach(rule);
+                }
+            }
+        }
+    }
+
+    static Collection<String> getContextKeys(IndexedRule rule) {
+        RuleAssumption a = rule.getContextAssumption();
+        if (a == null) {
+            return Collections.singletonList(ANY);
+        } else if (a.getOperator() == Operator.CONTAINS_AT_LEAST_ONE) {
+            return a.getRightSet();
+        } else {
+            return Collections.singletonList(a.getRightTerm());
+        }
+    }
+
+    /**
+     * Collects all rules that match an event context.
+     *
+     * @param ctx the event context
+     * @param results the collection to add matching rules to
+     */
+    public void match(JREEventContext ctx, Collection<IndexedRule> results) {
+        match(ctx, results, network != null ? network.begin() : null);
+    }
+
+    /**
+     * Collects all rules that match an event context using node results that may already hold the results of
+     * other rules matched against the same context.
+     *
+     * @param ctx the event context
+     * @param results the collection to add matching rules to
+     * @param evaluation the node results for the context (or null to evaluate each rule on its own)
+     */
+    void match(JREEventContext ctx, Collection<IndexedRule> results, AssumptionNetwork.Evaluation evaluation) {
+        Map<String,Map<String,List<IndexedRule>>> ctxMap = current.rules.get(ctx.eventId());
+        if (ctxMap != null) {
+            String ctxKey = ctx.deviceCtx() != null ? ctx.deviceCtx() : ctx.personCtx();
+            if (ctxKey != null) {
+                match(ctxMap.get(ctxKey), ctx, results, evaluation);
+            }
+            match(ctxMap.get(ANY), ctx, results, evaluation);
+        }
+    }
+
+    private void match(Map<String,List<IndexedRule>> varMap, JREEventContext ctx, Collection<IndexedRule> results, AssumptionNetwork.Evaluation evaluation) {
+        if (varMap != null) {
+            if (ctx.variableName() != null) {
+                match(varMap.get(ctx.variableName()), ctx, results, evaluation);
+            }
+            match(varMap.get(ANY), ctx, results, evaluation);
+        }
+    }
+
+    private void match(List<IndexedRule> candidates, JREEventContext ctx, Collection<IndexedRule> results, AssumptionNetwork.Evaluation evaluation) {
+        if (candidates != null) {
+            for (int i=0; i < candidates.size(); i++) {
+                IndexedRule rule = candidates.get(i);
+                if (rule.isEnabled() && rule.matches(ctx, evaluation)) {
+                    results.add(rule);
+                }
+            }
+        }
+    }
+
+    /**
+     * Matches an event context and fires the triggers of all matching rules.
+     *
+     * @param ctx the event context
+     * @param taskCtx the task context used to fire triggers
+     *
+     * @return the number of rules that matched
+     */
+    public int execute(JREEventContext ctx, JRETaskContext taskCtx) {
+        return execute(ctx, taskCtx, new LinkedHashSet<IndexedRule>());
+    }
+
+    /**
+     * Matches an event context and fires the triggers of all matching rules using a caller-supplied set to
+     * collect matches. This allows callers to re-use the set across events.
+     *
+     * @param ctx the event context
+     * @param taskCtx the task context used to fire triggers
+     * @param matches the set used to collect matching rules (its contents are replaced)
+     *
+     * @return the number of rules that matched
+     */
+    public int execute(JREEventContext ctx, JRETaskContext taskCtx, Set<IndexedRule> matches) {
+        matches.clear();
+        match(ctx, matches);
+        return fire(matches, taskCtx);
+    }
+
+    /**
+     * Matches a batch of event contexts (e.g. all the updates in a single event) and fires the triggers of each
+     * matching rule once, no matter how many of the contexts it matched.
+     *
+     * @param ctxs the event contexts
+     * @param taskCtx the task context used to fire triggers
+     *
+     * @return the number of distinct rules that matched
+     */
+    public int execute(List<JREEventContext> ctxs, JRETaskContext taskCtx) {
+        return execute(ctxs, taskCtx, new LinkedHashSet<IndexedRule>());
+    }
+
+    /**
+     * Matches a batch of event contexts using a caller-supplied set to collect matches.
+     *
+     * @param ctxs the event contexts
+     * @param taskCtx the task context used to fire triggers
+     * @param matches the set used to collect matching rules (its contents are replaced)
+     *
+     * @return the number of distinct rules that matched
+     */
+    public int execute(List<JREEventContext> ctxs, JRETaskContext taskCtx, Set<IndexedRule> matches) {
+        matches.clear();
+        for (int i=0; i < ctxs.size(); i++) {
+            match(ctxs.get(i), matches);
+        }
+        return fire(matches, taskCtx);
+    }
+
+    int fire(Set<IndexedRule> matches, JRETaskContext taskCtx) {
+        if (matches.isEmpty()) {
+            return 0;
+        }
+        for (IndexedRule rule : matches) {
+            for (String trigger : rule.getTriggers()) {
+                taskCtx.fireTaskTrigger(trigger);
+            }
+        }
+        return matches.size();
+    }
+
+    /**
+     * A published, immutable set of indexes.
+     */
+    private static class Index {
+        final Map<String,Map<String,Map<String,List<IndexedRule>>>> rules;
+        final Map<String,IndexedRule> rulesByName;
+
+        Index(Map<String,Map<String,Map<String,List<IndexedRule>>>> rules, Map<String,IndexedRule> rulesByName) {
+            this.rules = rules;
+            this.rulesByName = rulesByName;
+        }
+    }
+
+    /**
+     * Builds a new Index from an existing one. Each map or list is copied the first time the editor modifies it;
+     * anything it doesn't modify is shared with the existing Index.
+     */
+    private static class Editor {
+        final Map<String,Map<String,Map<String,List<IndexedRule>>>> rules;
+        final Map<String,IndexedRule> rulesByName;
+        private final Set<Object> owned = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+
+        Editor(Index base) {
+            this.rules = new HashMap<>(base.rules);
+            this.rulesByName = new HashMap<>(base.rulesByName);
+        }
+
+        Index toIndex() {
+            return new Index(rules, rulesByName);
+        }
+
+        void index(IndexedRule rule) {
+            Map<String,Map<String,List<IndexedRule>>> ctxMap = own(rules.get(rule.getEventId()));
+            rules.put(rule.getEventId(), ctxMap);
+            String varKey = rule.getVariableName() != null ? rule.getVariableName() : ANY;
+            for (String ctxKey : getContextKeys(rule)) {
+                Map<String,List<IndexedRule>> varMap = own(ctxMap.get(ctxKey));
+                ctxMap.put(ctxKey, varMap);
+                List<IndexedRule> list = own(varMap.get(varKey));
+                varMap.put(varKey, list);
+                list.add(rule);
+            }
+        }
+
+        void unindex(IndexedRule rule) {
+            Map<String,Map<String,List<IndexedRule>>> ctxMap = rules.get(rule.getEventId());
+            if (ctxMap != null) {
+                ctxMap = own(ctxMap);
+                rules.put(rule.getEventId(), ctxMap);
+                String varKey = rule.getVariableName() != null ? rule.getVariableName() : ANY;
+                for (String ctxKey : getContextKeys(rule)) {
+                    Map<String,List<IndexedRule>> varMap = ctxMap.get(ctxKey);
+                    if (varMap != null) {
+                        varMap = own(varMap);
+                        ctxMap.put(ctxKey, varMap);
+                        List<IndexedRule> list = varMap.get(varKey);
+                        if (list != null) {
+                            list = own(list);
+                            list.remove(rule);
+                            if (list.isEmpty()) {
+                                varMap.remove(varKey);
+                            } else {
+                                varMap.put(varKey, list);
+                            }
+                        }
+                        if (varMap.isEmpty()) {
+                            ctxMap.remove(ctxKey);
+                        }
+                    }
+                }
+                if (ctxMap.isEmpty()) {
+                    rules.remove(rule.getEventId());
+                }
+            }
+        }
+
+        private <K,V> Map<K,V> own(Map<K,V> m) {
+            if (m == null || !owned.contains(m)) {
+                m = (m != null) ? new HashMap<>(m) : new HashMap<K,V>();
+                owned.add(m);
+            }
+            return m;
+        }
+
+        private List<IndexedRule> own(List<IndexedRule> l) {
+            if (l == null || !owned.contains(l)) {
+                l = (l != null) ? new ArrayList<>(l) : new ArrayList<IndexedRule>();
+                owned.add(l);
+            }
+            return l;
+        }
+    }
+}
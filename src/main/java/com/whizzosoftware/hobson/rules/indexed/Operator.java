@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+/**
+ * The JRuleEngine assumption operators supported by the indexed rule engine.
+ *
+ * @author Dan Noguerol
+ */
+public enum Operator {
+    EQUALS("="),
+    NOT_EQUALS("<>"),
+    GREATER_THAN(">"),
+    LESS_THAN("<"),
+    GREATER_THAN_OR_EQUAL(">="),
+    LESS_THAN_OR_EQUAL("<="),
+    CONTAINS_AT_LEAST_ONE("containsatleastone");
+
+    private final String symbol;
+
+    Operator(String symbol) {
+        this.symbol = symbol;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * Returns the operator for a JRuleEngine operator string.
+     *
+     * @param symbol the operator string
+     *
+     * @return an Operator (or null if the operator isn't supported)
+     */
+    public static Operator forSymbol(String symbol) {
+        for (Operator op : values()) {
+            if (op.symbol.equals(symbol)) {
+                return op;
+            }
+        }
+        return null;
+    }
+}
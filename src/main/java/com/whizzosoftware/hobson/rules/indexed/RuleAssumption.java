@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.api.HobsonRuntimeException;
+import com.whizzosoftware.hobson.rules.condition.DeviceSets;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+
+import java.util.Set;
+
+/**
+ * A single compiled rule assumption (e.g. "variableValue > 80"). The right term is parsed once when the rule is
+ * compiled so that evaluation doesn't need to re-parse it for every event.
+ *
+ * @author Dan Noguerol
+ */
+public class RuleAssumption {
+    private static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+    private final EventField field;
+    private final Operator op;
+    private final String rightTerm;
+    private final Set<String> rightSet;
+    private final double rightNumber;
+    private final boolean numeric;
+
+    public RuleAssumption(EventField field, Operator op, String rightTerm) {
+        this.field = field;
+        this.op = op;
+        this.rightTerm = rightTerm;
+        this.rightSet = (op == Operator.CONTAINS_AT_LEAST_ONE) ? DeviceSets.forTerm(rightTerm) : null;
+        Double n = parseNumber(rightTerm);
+        this.numeric = (n != null);
+        this.rightNumber = numeric ? n : Double.NaN;
+    }
+
+    /**
+     * Creates an assumption from its JRuleEngine representation.
+     *
+     * @param leftTerm the left term
+     * @param op the operator
+     * @param rightTerm the right term
+     *
+     * @return a RuleAssumption
+     * @throws HobsonRuntimeException if the left term or operator isn't supported
+     */
+    public static RuleAssumption create(String leftTerm, String op, String rightTerm) {
+        EventField f = EventField.forLeftTerm(leftTerm);
+        if (f == null) {
+            throw new HobsonRuntimeException("Unsupported assumption term: " + leftTerm);
+        }
+        Operator o = Operator.forSymbol(op);
+        if (o == null) {
+            throw new HobsonRuntimeException("Unsupported assumption operator: " + op);
+        }
+        return new RuleAssumption(f, o, rightTerm);
+    }
+
+    public EventField getField() {
+        return field;
+    }
+
+    public Operator getOperator() {
+        return op;
+    }
+
+    public String getRightTerm() {
+        return rightTerm;
+    }
+
+    /**
+     * Returns the set of values for a "containsatleastone" assumption.
+     *
+     * @return a Set of String (or null if this is not a list assumption)
+     */
+    public Set<String> getRightSet() {
+        return rightSet;
+    }
+
+    /**
+     * Evaluates the assumption against an event context.
+     *
+     * @param ctx the event context
+     *
+     * @return a boolean
+     */
+    public boolean evaluate(JREEventContext ctx) {
+        int c;
+        switch (op) {
+            case EQUALS:
+                return isEqual(ctx);
+            case NOT_EQUALS:
+                return !isEqual(ctx);
+            case GREATER_THAN:
+                c = compare(ctx);
+                return (c != INCOMPARABLE && c > 0);
+            case LESS_THAN:
+                c = compare(ctx);
+                return (c != INCOMPARABLE && c < 0);
+            case GREATER_THAN_OR_EQUAL:
+                c = compare(ctx);
+                return (c != INCOMPARABLE && c >= 0);
+            case LESS_THAN_OR_EQUAL:
+                c = compare(ctx);
+                return (c != INCOMPARABLE && c <= 0);
+            case CONTAINS_AT_LEAST_ONE:
+                return containsAtLeastOne(rightSet, field.get(ctx));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Indicates whether the right term is a number that was parsed when the assumption was compiled.
+     *
+     * @return a boolean
+     */
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    /**
+     * Returns the right term parsed as a number.
+     *
+     * @return a double (or NaN if the right term isn't numeric)
+     */
+    public double getRightNumber() {
+        return rightNumber;
+    }
+
+    private boolean isEqual(JREEventContext ctx) {
+        Object left = field.get(ctx);
+        if (left == null) {
+            return false;
+        } else if (left instanceof Number && numeric) {
+            return field.getNumber(ctx) == rightNumber;
+        } else {
+            return left.toString().equals(rightTerm);
+        }
+    }
+
+    /**
+     * Performs a numeric comparison of the event's value against the right term. Both sides are primitive
+     * doubles: the right term was parsed at compile time and the event value was converted when the event
+     * context was populated.
+     *
+     * @param ctx the event context
+     *
+     * @return a negative, zero or positive value (or INCOMPARABLE if either side isn't numeric)
+     */
+    private int compare(JREEventContext ctx) {
+        if (!numeric) {
+            return INCOMPARABLE;
+        }
+        double d = field.getNumber(ctx);
+        if (Double.isNaN(d)) {
+            return INCOMPARABLE;
+        }
+        return Double.compare(d, rightNumber);
+    }
+
+    static boolean containsAtLeastOne(Set<String> rightSet, Object left) {
+        if (left == null) {
+            return false;
+        }
+        String s = left.toString();
+        if (s.startsWith("[")) {
+            for (String v : DeviceSets.forTerm(s)) {
+                if (rightSet.contains(v)) {
+                    return true;
+                }
+            }
+            return false;
+        } else {
+            return rightSet.contains(s);
+        }
+    }
+
+    private static Double parseNumber(String s) {
+        if (s != null && s.length() > 0) {
+            try {
+                return Double.parseDouble(s);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return field + " " + op.getSymbol() + " " + rightTerm;
+    }
+}
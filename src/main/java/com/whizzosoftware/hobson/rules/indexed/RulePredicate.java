@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A rule's assumptions compiled into a single predicate. Each assumption becomes an instance of a small class
+ * specialized for its field and operator, so evaluating it is a direct call to the event context's accessor
+ * followed by a String or primitive double comparison with the pre-parsed right term; there is no operator
+ * dispatch or field lookup at evaluation time. Short assumption lists are combined without a loop. Assumptions
+ * that don't have a specialized form fall back to RuleAssumption.evaluate().
+ *
+ * Compiled predicates give the same results as evaluating the assumptions one by one.
+ *
+ * @author Dan Noguerol
+ */
+public abstract class RulePredicate {
+    /**
+     * A predicate that always matches (i.e. an empty assumption list).
+     */
+    public static final RulePredicate TRUE = new RulePredicate() {
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return true;
+        }
+    };
+
+    private static final RulePredicate FALSE = new RulePredicate() {
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return false;
+        }
+    };
+
+    /**
+     * Evaluates the predicate against an event context.
+     *
+     * @param ctx the event context
+     *
+     * @return a boolean
+     */
+    abstract public boolean test(JREEventContext ctx);
+
+    /**
+     * Compiles a list of assumptions that must all be true.
+     *
+     * @param assumptions the assumptions
+     *
+     * @return a RulePredicate
+     */
+    public static RulePredicate compile(List<RuleAssumption> assumptions) {
+        return compile(assumptions.toArray(new RuleAssumption[assumptions.size()]));
+    }
+
+    /**
+     * Compiles an array of assumptions that must all be true.
+     *
+     * @param assumptions the assumptions
+     *
+     * @return a RulePredicate
+     */
+    public static RulePredicate compile(RuleAssumption[] assumptions) {
+        RulePredicate[] p = new RulePredicate[assumptions.length];
+        for (int i=0; i < assumptions.length; i++) {
+            p[i] = compile(assumptions[i]);
+            if (p[i] == FALSE) {
+                return FALSE;
+            }
+        }
+        switch (p.length) {
+            case 0:
+                return TRUE;
+            case 1:
+                return p[0];
+            case 2:
+                return new And2(p[0], p[1]);
+            case 3:
+                return new And3(p[0], p[1], p[2]);
+            default:
+                return new AndN(p);
+        }
+    }
+
+    /**
+     * Compiles a single assumption.
+     *
+     * @param a the assumption
+     *
+     * @return a RulePredicate
+     */
+    public static RulePredicate compile(RuleAssumption a) {
+        switch (a.getOperator()) {
+            case EQUALS:
+                return compileEquals(a);
+            case NOT_EQUALS:
+                return new Not(compileEquals(a));
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUAL:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUAL:
+                if (a.getField() != EventField.VARIABLE_VALUE && a.getField() != EventField.VARIABLE_OLD_VALUE) {
+                    return new Interpreted(a);
+                } else if (!a.isNumeric()) {
+                    // a non-numeric right term can never be compared
+                    return FALSE;
+                }
+                double d = a.getRightNumber();
+                boolean orEqual = (a.getOperator() == Operator.GREATER_THAN_OR_EQUAL || a.getOperator() == Operator.LESS_THAN_OR_EQUAL);
+                boolean above = (a.getOperator() == Operator.GREATER_THAN || a.getOperator() == Operator.GREATER_THAN_OR_EQUAL);
+                if (a.getField() == EventField.VARIABLE_VALUE) {
+                    return above ? new ValueAbove(d, orEqual) : new ValueBelow(d, orEqual);
+                } else {
+                    return above ? new OldValueAbove(d, orEqual) : new OldValueBelow(d, orEqual);
+                }
+            case CONTAINS_AT_LEAST_ONE:
+                if (a.getField() == EventField.DEVICE_CTX) {
+                    return new DeviceCtxIn(a.getRightSet());
+                }
+                return new Interpreted(a);
+            default:
+                return new Interpreted(a);
+        }
+    }
+
+    private static RulePredicate compileEquals(RuleAssumption a) {
+        String r = a.getRightTerm();
+        switch (a.getField()) {
+            case EVENT_ID:
+                return new EventIdEquals(r);
+            case DEVICE_CTX:
+                return new DeviceCtxEquals(r);
+            case VARIABLE_NAME:
+                return new VariableNameEquals(r);
+            case PERSON_CTX:
+                return new PersonCtxEquals(r);
+            case VARIABLE_VALUE:
+                return new ValueEquals(r, a.getRightNumber(), a.isNumeric());
+            default:
+                return new Interpreted(a);
+        }
+    }
+
+    private static final class And2 extends RulePredicate {
+        private final RulePredicate p1;
+        private final RulePredicate p2;
+
+        And2(RulePredicate p1, RulePredicate p2) {
+            this.p1 = p1;
+            this.p2 = p2;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return p1.test(ctx) && p2.test(ctx);
+        }
+    }
+
+    private static final class And3 extends RulePredicate {
+        private final RulePredicate p1;
+        private final RulePredicate p2;
+        private final RulePredicate p3;
+
+        And3(RulePredicate p1, RulePredicate p2, RulePredicate p3) {
+            this.p1 = p1;
+            this.p2 = p2;
+            this.p3 = p3;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return p1.test(ctx) && p2.test(ctx) && p3.test(ctx);
+        }
+    }
+
+    private static final class AndN extends RulePredicate {
+        private final RulePredicate[] p;
+
+        AndN(RulePredicate[] p) {
+            this.p = p;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            for (int i=0; i < p.length; i++) {
+                if (!p[i].test(ctx)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Not extends RulePredicate {
+        private final RulePredicate p;
+
+        Not(RulePredicate p) {
+            this.p = p;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return !p.test(ctx);
+        }
+    }
+
+    private static final class Interpreted extends RulePredicate {
+        private final RuleAssumption a;
+
+        Interpreted(RuleAssumption a) {
+            this.a = a;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return a.evaluate(ctx);
+        }
+    }
+
+    private static final class EventIdEquals extends RulePredicate {
+        private final String r;
+
+        EventIdEquals(String r) {
+            this.r = r;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return r.equals(ctx.eventId());
+        }
+    }
+
+    private static final class DeviceCtxEquals extends RulePredicate {
+        private final String r;
+
+        DeviceCtxEquals(String r) {
+            this.r = r;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return r.equals(ctx.deviceCtx());
+        }
+    }
+
+    private static final class VariableNameEquals extends RulePredicate {
+        private final String r;
+
+        VariableNameEquals(String r) {
+            this.r = r;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return r.equals(ctx.variableName());
+        }
+    }
+
+    private static final class PersonCtxEquals extends RulePredicate {
+        private final String r;
+
+        PersonCtxEquals(String r) {
+            this.r = r;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return r.equals(ctx.personCtx());
+        }
+    }
+
+    private static final class DeviceCtxIn extends RulePredicate {
+        private final Set<String> r;
+
+        DeviceCtxIn(Set<String> r) {
+            this.r = r;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            return RuleAssumption.containsAtLeastOne(r, ctx.deviceCtx());
+        }
+    }
+
+    /**
+     * Numbers are compared numerically; anything else (e.g. a boolean) is compared by its string form.
+     */
+    private static final class ValueEquals extends RulePredicate {
+        private final String r;
+        private final double rn;
+        private final boolean numeric;
+
+        ValueEquals(String r, double rn, boolean numeric) {
+            this.r = r;
+            this.rn = rn;
+            this.numeric = numeric;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            Object v = ctx.variableValue();
+            if (v == null) {
+                return false;
+            } else if (numeric && v instanceof Number) {
+                return ctx.variableNumber() == rn;
+            } else {
+                return r.equals(v.toString());
+            }
+        }
+    }
+
+    private static final class ValueAbove extends RulePredicate {
+        private final double r;
+        private final boolean orEqual;
+
+        ValueAbove(double r, boolean orEqual) {
+            this.r = r;
+            this.orEqual = orEqual;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            double d = ctx.variableNumber();
+            return !Double.isNaN(d) && (orEqual ? Double.compare(d, r) >= 0 : Double.compare(d, r) > 0);
+        }
+    }
+
+    private static final class ValueBelow extends RulePredicate {
+        private final double r;
+        private final boolean orEqual;
+
+        ValueBelow(double r, boolean orEqual) {
+            this.r = r;
+            this.orEqual = orEqual;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            double d = ctx.variableNumber();
+            return !Double.isNaN(d) && (orEqual ? Double.compare(d, r) <= 0 : Double.compare(d, r) < 0);
+        }
+    }
+
+    private static final class OldValueAbove extends RulePredicate {
+        private final double r;
+        private final boolean orEqual;
+
+        OldValueAbove(double r, boolean orEqual) {
+            this.r = r;
+            this.orEqual = orEqual;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            double d = ctx.variableOldNumber();
+            return !Double.isNaN(d) && (orEqual ? Double.compare(d, r) >= 0 : Double.compare(d, r) > 0);
+        }
+    }
+
+    private static final class OldValueBelow extends RulePredicate {
+        private final double r;
+        private final boolean orEqual;
+
+        OldValueBelow(double r, boolean orEqual) {
+            this.r = r;
+            this.orEqual = orEqual;
+        }
+
+        @Override
+        public boolean test(JREEventContext ctx) {
+            double d = ctx.variableOldNumber();
+            return !Double.isNaN(d) && (orEqual ? Double.compare(d, r) <= 0 : Double.compare(d, r) < 0);
+        }
+    }
+}
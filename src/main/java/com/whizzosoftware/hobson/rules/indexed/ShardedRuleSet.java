@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.api.HobsonRuntimeException;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+import com.whizzosoftware.hobson.rules.jruleengine.JRETaskContext;
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * An indexed rule set that is split into shards by the hash of each rule's device (or person) context. A rule
+ * that monitors several devices is filed in the shard of each of them; rules that aren't tied to a context are
+ * kept in a global set that is matched against every event.
+ *
+ * When an event carries several updates that route to different shards and an evaluation pool has been set, each
+ * shard matches its updates in parallel. The matches are merged in shard order into a single de-duplicated set
+ * before any triggers are fired, so a rule matched by several updates (or several shards) still fires once.
+ *
+ * If the rule set shares assumptions, the global set and every shard use the same network. When an event context
+ * is matched on a single thread, rules in the global set and in the context's shard share node results.
+ *
+ * @author Dan Noguerol
+ */
+public class ShardedRuleSet extends IndexedRuleSet {
+    private final IndexedRuleSet[] shards;
+    private final Map<String,IndexedRule> rules = new ConcurrentHashMap<>();
+    private volatile ForkJoinPool pool;
+
+    /**
+     * Constructor.
+     *
+     * @param shardCount the number of shards
+     * @param pool the pool used to match shards in parallel (or null to match them on the calling thread)
+     */
+    public ShardedRuleSet(int shardCount, ForkJoinPool pool) {
+        this(shardCount, pool, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param shardCount the number of shards
+     * @param pool the pool used to match shards in parallel (or null to match them on the calling thread)
+     * @param network the network used to share assumption results between rules (or null to evaluate each rule's
+     *                assumptions on their own)
+     */
+    public ShardedRuleSet(int shardCount, ForkJoinPool pool, AssumptionNetwork network) {
+        super(network);
+        if (shardCount < 1) {
+            throw new HobsonRuntimeException("Invalid shard count: " + shardCount);
+        }
+        this.shards = new IndexedRuleSet[shardCount];
+        for (int i=0; i < shardCount; i++) {
+            shards[i] = new IndexedRuleSet(network);
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * Compiles a JRuleEngine rule set JSON document into a sharded rule set.
+     *
+     * @param json the rule set JSON
+     * @param shardCount the number of shards
+     * @param pool the pool used to match shards in parallel (or null to match them on the calling thread)
+     *
+     * @return a ShardedRuleSet
+     * @throws HobsonRuntimeException if any rule uses an unsupported term, operator or action
+     */
+    public static ShardedRuleSet compile(JSONObject json, int shardCount, ForkJoinPool pool) {
+        return compile(json, shardCount, pool, false);
+    }
+
+    /**
+     * Compiles a JRuleEngine rule set JSON document into a sharded rule set.
+     *
+     * @param json the rule set JSON
+     * @param shardCount the number of shards
+     * @param pool the pool used to match shards in parallel (or null to match them on the calling thread)
+     * @param predicates whether to compile each rule's remaining assumptions into a RulePredicate
+     *
+     * @return a ShardedRuleSet
+     * @throws HobsonRuntimeException if any rule uses an unsupported term, operator or action
+     */
+    public static ShardedRuleSet compile(JSONObject json, int shardCount, ForkJoinPool pool, boolean predicates) {
+        ShardedRuleSet rs = new ShardedRuleSet(shardCount, pool);
+        rs.addAll(compileRules(json, predicates));
+        return rs;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the number of rules filed in each shard. A rule that monitors devices in several shards is counted in
+     * each of them.
+     *
+     * @return an array of rule counts
+     */
+    public int[] getShardRuleCounts() {
+        int[] counts = new int[shards.length];
+        for (int i=0; i < shards.length; i++) {
+            counts[i] = shards[i].getRuleCount();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the number of rules that aren't tied to a device or person context and are matched against every
+     * event.
+     *
+     * @return an int
+     */
+    public int getGlobalRuleCount() {
+        return super.getRuleCount();
+    }
+
+    @Override
+    public int getRuleCount() {
+        return rules.size();
+    }
+
+    /**
+     * Adds a batch of compiled rules, replacing any existing rules with the same names. The new rules are filed
+     * before the rules they replace are removed from the shards (or the global set) the new ones no longer
+     * occupy, so an event matched while the batch is applied always sees one version of each rule; it may briefly
+     * see both.
+     *
+     * @param batch the rules to add
+     */
+    @Override
+    synchronized public void addAll(Collection<IndexedRule> batch) {
+        // a name that appears more than once in the batch is only filed for its last rule
+        Map<String,IndexedRule> latest = new LinkedHashMap<>();
+        for (IndexedRule rule : batch) {
+            latest.put(rule.getName(), rule);
+        }
+
+        List<IndexedRule> global = new ArrayList<>();
+        List<List<IndexedRule>> sharded = new ArrayList<>(shards.length);
+        for (int i=0; i < shards.length; i++) {
+            sharded.add(new ArrayList<IndexedRule>());
+        }
+        Map<String,IndexedRule> replaced = new HashMap<>();
+
+        AssumptionNetwork network = getAssumptionNetwork();
+        for (IndexedRule rule : latest.values()) {
+            // attached here so nodes shared with a rule being replaced are kept (the shards' attach is a no-op)
+            if (network != null) {
+                network.attach(rule);
+            }
+            IndexedRule old = rules.put(rule.getName(), rule);
+            if (old != null && old != rule) {
+                replaced.put(rule.getName(), old);
+            }
+            boolean[] placement = getPlacement(rule);
+            for (int i=0; i < shards.length; i++) {
+                if (placement[i]) {
+                    sharded.get(i).add(rule);
+                }
+            }
+            if (placement[shards.length]) {
+                global.add(rule);
+            }
+        }
+
+        // a shard that already holds a rule with the same name replaces it in place
+        if (!global.isEmpty()) {
+            super.addAll(global);
+        }
+        for (int i=0; i < shards.length; i++) {
+            if (!sharded.get(i).isEmpty()) {
+                shards[i].addAll(sharded.get(i));
+            }
+        }
+
+        if (!replaced.isEmpty()) {
+            List<List<String>> removals = new ArrayList<>(shards.length + 1);
+            for (int i=0; i <= shards.length; i++) {
+                removals.add(new ArrayList<String>());
+            }
+            for (Map.Entry<String,IndexedRule> e : replaced.entrySet()) {
+                boolean[] oldPlacement = getPlacement(e.getValue());
+                boolean[] newPlacement = getPlacement(latest.get(e.getKey()));
+                for (int i=0; i <= shards.length; i++) {
+                    if (oldPlacement[i] && !newPlacement[i]) {
+                        removals.get(i).add(e.getKey());
+                    }
+                }
+            }
+            removeFromShards(removals);
+        }
+    }
+
+    @Override
+    synchronized public IndexedRule remove(String name) {
+        IndexedRule rule = rules.remove(name);
+        if (rule != null) {
+            unfileAll(Collections.singletonList(rule));
+        }
+        return rule;
+    }
+
+    @Override
+    synchronized public void removeAll(Collection<String> names) {
+        List<IndexedRule> removed = new ArrayList<>();
+        for (String name : names) {
+            IndexedRule rule = rules.remove(name);
+            if (rule != null) {
+                removed.add(rule);
+            }
+        }
+        unfileAll(removed);
+    }
+
+    @Override
+    public void match(JREEventContext ctx, Collection<IndexedRule> results) {
+        AssumptionNetwork network = getAssumptionNetwork();
+        match(ctx, results, network != null ? network.begin() : null);
+    }
+
+    @Override
+    void match(JREEventContext ctx, Collection<IndexedRule> results, AssumptionNetwork.Evaluation evaluation) {
+        super.match(ctx, results, evaluation);
+        String key = getContextKey(ctx);
+        if (key != null) {
+            shards[getShard(key)].match(ctx, results, evaluation);
+        }
+    }
+
+    @Override
+    public int execute(List<JREEventContext> ctxs, JRETaskContext taskCtx, Set<IndexedRule> matches) {
+        ForkJoinPool p = pool;
+        if (p == null || ctxs.size() < 2) {
+            return super.execute(ctxs, taskCtx, matches);
+        }
+
+        matches.clear();
+
+        // global rules are matched on this thread while each shard's updates are grouped together
+        AssumptionNetwork network = getAssumptionNetwork();
+        List<List<JREEventContext>> groups = new ArrayList<>(shards.length);
+        for (int i=0; i < shards.length; i++) {
+            groups.add(null);
+        }
+        int groupCount = 0;
+        for (int i=0; i < ctxs.size(); i++) {
+            JREEventContext ctx = ctxs.get(i);
+            super.match(ctx, matches, network != null ? network.begin() : null);
+            String key = getContextKey(ctx);
+            if (key != null) {
+                int shard = getShard(key);
+                List<JREEventContext> group = groups.get(shard);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.set(shard, group);
+                    groupCount++;
+                }
+                group.add(ctx);
+            }
+        }
+
+        // all but the last shard are matched in the pool and the last one on this thread
+        List<ForkJoinTask<List<IndexedRule>>> tasks = new ArrayList<>(groupCount);
+        List<IndexedRule> last = null;
+        int remaining = groupCount;
+        for (int i=0; i < shards.length; i++) {
+            List<JREEventContext> group = groups.get(i);
+            if (group != null) {
+                ShardMatch m = new ShardMatch(shards[i], group);
+                if (--remaining > 0) {
+                    tasks.add(p.submit(m));
+                } else {
+                    last = m.call();
+                }
+            }
+        }
+        for (ForkJoinTask<List<IndexedRule>> t : tasks) {
+            matches.addAll(t.join());
+        }
+        if (last != null) {
+            matches.addAll(last);
+        }
+
+        return fire(matches, taskCtx);
+    }
+
+    /**
+     * Removes rules from every shard (or the global set) they are filed in.
+     *
+     * @param removed the rules
+     */
+    private void unfileAll(List<IndexedRule> removed) {
+        if (!removed.isEmpty()) {
+            List<List<String>> removals = new ArrayList<>(shards.length + 1);
+            for (int i=0; i <= shards.length; i++) {
+                removals.add(new ArrayList<String>());
+            }
+            for (IndexedRule rule : removed) {
+                boolean[] placement = getPlacement(rule);
+                for (int i=0; i <= shards.length; i++) {
+                    if (placement[i]) {
+                        removals.get(i).add(rule.getName());
+                    }
+                }
+            }
+            removeFromShards(removals);
+        }
+    }
+
+    /**
+     * Removes rules by name from each shard and the global set, copying each one's indexes once.
+     *
+     * @param removals the rule names to remove from each shard, followed by those to remove from the global set
+     */
+    private void removeFromShards(List<List<String>> removals) {
+        for (int i=0; i < shards.length; i++) {
+            if (!removals.get(i).isEmpty()) {
+                shards[i].removeAll(removals.get(i));
+            }
+        }
+        if (!removals.get(shards.length).isEmpty()) {
+            super.removeAll(removals.get(shards.length));
+        }
+    }
+
+    /**
+     * Determines where a rule is filed.
+     *
+     * @param rule the rule
+     *
+     * @return an array with an element for each shard followed by one for the global set
+     */
+    private boolean[] getPlacement(IndexedRule rule) {
+        boolean[] placement = new boolean[shards.length + 1];
+        Collection<String> keys = getContextKeys(rule);
+        if (keys.contains(ANY)) {
+            placement[shards.length] = true;
+        } else {
+            for (String key : keys) {
+                placement[getShard(key)] = true;
+            }
+        }
+        return placement;
+    }
+
+    private String getContextKey(JREEventContext ctx) {
+        return ctx.deviceCtx() != null ? ctx.deviceCtx() : ctx.personCtx();
+    }
+
+    private int getShard(String key) {
+        return (key.hashCode() & 0x7fffffff) % shards.length;
+    }
+
+    /**
+     * Matches a group of event contexts against a single shard.
+     */
+    private static class ShardMatch implements Callable<List<IndexedRule>> {
+        private final IndexedRuleSet shard;
+        private final List<JREEventContext> ctxs;
+
+        ShardMatch(IndexedRuleSet shard, List<JREEventContext> ctxs) {
+            this.shard = shard;
+            this.ctxs = ctxs;
+        }
+
+        @Override
+        public List<IndexedRule> call() {
+            List<IndexedRule> results = new ArrayList<>();
+            for (int i=0; i < ctxs.size(); i++) {
+                shard.match(ctxs.get(i), results);
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.jruleengine;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, bidirectional cache between context objects (e.g. DeviceContext, TaskContext) and their canonical
+ * string form. Converting in either direction populates both directions so a context that has been formatted
+ * once can later be looked up from its string without being parsed, and vice versa.
+ *
+ * Lookups don't lock. Eviction is approximately least-recently-used: each entry remembers the last insertion it
+ * was used after, and once either direction grows past the cache's capacity a single thread removes the oldest
+ * entries in a batch.
+ *
+ * @author Dan Noguerol
+ */
+public class ContextCache<T> {
+    private final int capacity;
+    private final int evictionTarget;
+    private final Parser<T> parser;
+    private final ConcurrentHashMap<T,Entry<T>> strings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,Entry<T>> objects = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of entries in each direction
+     * @param parser the parser used to create objects from strings (or null if strings can only be resolved to
+     *               objects that have already been formatted)
+     */
+    public ContextCache(int capacity, Parser<T> parser) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Context cache capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.evictionTarget = capacity - capacity / 16;
+        this.parser = parser;
+    }
+
+    /**
+     * Returns the canonical string for a context object.
+     *
+     * @param obj the context object
+     *
+     * @return a String
+     */
+    public String toString(T obj) {
+        Entry<T> e = strings.get(obj);
+        if (e != null) {
+            hits.incrementAndGet();
+            touch(e);
+            return e.string;
+        }
+        misses.incrementAndGet();
+        e = new Entry<>(obj, obj.toString(), clock.incrementAndGet());
+        Entry<T> existing = strings.putIfAbsent(obj, e);
+        if (existing != null) {
+            return existing.string;
+        }
+        objects.putIfAbsent(e.string, e);
+        evictIfNeeded();
+        return e.string;
+    }
+
+    /**
+     * Returns the context object for a canonical string.
+     *
+     * @param s the string
+     *
+     * @return the context object (or null if the string is unknown and no parser is available)
+     */
+    public T toObject(String s) {
+        Entry<T> e = objects.get(s);
+        if (e != null) {
+            hits.incrementAndGet();
+            touch(e);
+            return e.object;
+        }
+        misses.incrementAndGet();
+        if (parser != null) {
+            T obj = parser.parse(s);
+            if (obj != null) {
+                e = new Entry<>(obj, s, clock.incrementAndGet());
+                Entry<T> existing = objects.putIfAbsent(s, e);
+                if (existing != null) {
+                    return existing.object;
+                }
+                strings.putIfAbsent(obj, e);
+                evictIfNeeded();
+            }
+            return obj;
+        }
+        return null;
+    }
+
+    /**
+     * Adds a context object to the cache ahead of its first use.
+     *
+     * @param obj the context object
+     *
+     * @return the object's canonical string
+     */
+    public String put(T obj) {
+        Entry<T> e = new Entry<>(obj, obj.toString(), clock.incrementAndGet());
+        strings.put(obj, e);
+        objects.put(e.string, e);
+        evictIfNeeded();
+        return e.string;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSize() {
+        return objects.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries removed to stay within the cache's capacity. An entry that was reachable in
+     * both directions is only counted once.
+     *
+     * @return a long
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the fraction of lookups that were satisfied from the cache.
+     *
+     * @return a value between 0 and 1
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total > 0) ? (double)h / total : 0;
+    }
+
+    /**
+     * Marks an entry as used after the most recent insertion. The entry is only written to the first time it is
+     * used after each insertion.
+     *
+     * @param e the entry
+     */
+    private void touch(Entry<T> e) {
+        long stamp = clock.get() + 1;
+        if (e.stamp != stamp) {
+            e.stamp = stamp;
+        }
+    }
+
+    private void evictIfNeeded() {
+        // entries added while another thread holds the lock are picked up when that thread checks again
+        while ((strings.size() > capacity || objects.size() > capacity) && evictionLock.tryLock()) {
+            try {
+                // each entry is collected once, whichever directions it is reachable from
+                Set<Entry<T>> entries = new HashSet<>(strings.values());
+                entries.addAll(objects.values());
+                int excess = Math.max(strings.size(), objects.size()) - evictionTarget;
+                if (excess > 0 && !entries.isEmpty()) {
+                    long[] stamps = new long[entries.size()];
+                    int i = 0;
+                    for (Entry<T> e : entries) {
+                        stamps[i++] = e.stamp;
+                    }
+                    Arrays.sort(stamps);
+                    long cutoff = stamps[Math.min(excess, stamps.length) - 1];
+                    evict(entries, cutoff);
+                    // entries used while they were being collected are passed over, so fall back to evicting
+                    // whatever is left if that wasn't enough
+                    evict(entries, Long.MAX_VALUE);
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void evict(Collection<Entry<T>> entries, long cutoff) {
+        for (Entry<T> e : entries) {
+            if (strings.size() <= evictionTarget && objects.size() <= evictionTarget) {
+                break;
+            }
+            if (e.stamp <= cutoff) {
+                boolean removed = strings.remove(e.object, e);
+                if (objects.remove(e.string, e)) {
+                    removed = true;
+                }
+                if (removed) {
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * A context object and its string, shared by both directions of the cache.
+     */
+    static final class Entry<T> {
+        final T object;
+        final String string;
+        volatile long stamp;
+
+        Entry(T object, String string, long stamp) {
+            this.object = object;
+            this.string = string;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * Creates a context object from its string form.
+     */
+    public interface Parser<T> {
+        T parse(String s);
+    }
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.jruleengine;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceUnavailableEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.event.presence.PresenceUpdateNotificationEvent;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import com.whizzosoftware.hobson.api.task.TaskManager;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.rules.indexed.IndexedRule;
+import com.whizzosoftware.hobson.rules.metrics.RuleMetrics;
+
+import java.util.*;
+
+/**
+ * A thread-confined holder for the objects needed to evaluate a single event. Event contexts, the task context,
+ * the match set and the JRuleEngine input list are all re-used from one event to the next and device context
+ * strings come from a shared cache so that, once warmed up, converting an event and matching it against the
+ * indexed engine allocates nothing.
+ *
+ * A carrier is used by one event at a time. Callers must call release() when evaluation completes.
+ *
+ * @author Dan Noguerol
+ */
+class EventContextCarrier {
+    private final List<JREEventContext> pool = new ArrayList<>();
+    private final List<JREEventContext> contexts = new ArrayList<>();
+    private final Set<IndexedRule> matches = new LinkedHashSet<>();
+    private final List<Object> inputs = new ArrayList<>(2);
+    private final ContextCache<DeviceContext> deviceContexts;
+    private JRETaskContext taskContext;
+    private boolean inUse;
+
+    EventContextCarrier(ContextCache<DeviceContext> deviceContexts) {
+        this.deviceContexts = deviceContexts;
+    }
+
+    boolean isInUse() {
+        return inUse;
+    }
+
+    /**
+     * Populates the carrier's event contexts from an event.
+     *
+     * @param event the event
+     *
+     * @return the event contexts (empty if the event isn't one rules are interested in)
+     */
+    List<JREEventContext> populate(HobsonEvent event) {
+        inUse = true;
+        contexts.clear();
+        if (event instanceof DeviceVariablesUpdateEvent) {
+            List<DeviceVariableUpdate> updates = ((DeviceVariablesUpdateEvent)event).getUpdates();
+            for (int i=0; i < updates.size(); i++) {
+                DeviceVariableUpdate update = updates.get(i);
+                next().set(update, getDeviceString(update.getContext().getDeviceContext()));
+            }
+        } else if (event instanceof DeviceUnavailableEvent) {
+            DeviceUnavailableEvent due = (DeviceUnavailableEvent)event;
+            next().set(due, getDeviceString(due.getDeviceContext()));
+        } else if (event instanceof PresenceUpdateNotificationEvent) {
+            next().set((PresenceUpdateNotificationEvent)event);
+        }
+        return contexts;
+    }
+
+    /**
+     * Returns a task context for the current event.
+     *
+     * @param pluginContext the plugin context
+     * @param taskManager the task manager
+     * @param metrics the metrics to record to
+     * @param taskContexts the cache used to resolve trigger strings
+     *
+     * @return a JRETaskContext
+     */
+    JRETaskContext getTaskContext(PluginContext pluginContext, TaskManager taskManager, RuleMetrics metrics, ContextCache<TaskContext> taskContexts) {
+        if (taskContext == null || taskContext.getTaskManager() != taskManager || taskContext.getMetrics() != metrics) {
+            taskContext = new JRETaskContext(pluginContext, taskManager, metrics, taskContexts);
+        } else {
+            taskContext.reset();
+        }
+        return taskContext;
+    }
+
+    /**
+     * Returns the set used to collect matching indexed rules.
+     *
+     * @return a Set
+     */
+    Set<IndexedRule> getMatches() {
+        return matches;
+    }
+
+    /**
+     * Returns the input list passed to a JRuleEngine session.
+     *
+     * @param ctx the event context
+     * @param taskCtx the task context
+     *
+     * @return a List
+     */
+    List<Object> getInputs(JREEventContext ctx, JRETaskContext taskCtx) {
+        inputs.clear();
+        inputs.add(ctx);
+        inputs.add(taskCtx);
+        return inputs;
+    }
+
+    /**
+     * Clears references to the current event so they can be garbage collected and makes the carrier available
+     * for the next event.
+     */
+    void release() {
+        for (int i=0; i < contexts.size(); i++) {
+            contexts.get(i).clear();
+        }
+        contexts.clear();
+        matches.clear();
+        inputs.clear();
+        inUse = false;
+    }
+
+    private JREEventContext next() {
+        int ix = contexts.size();
+        if (ix == pool.size()) {
+            pool.add(new JREEventContext());
+        }
+        JREEventContext ctx = pool.get(ix);
+        contexts.add(ctx);
+        return ctx;
+    }
+
+    private String getDeviceString(DeviceContext ctx) {
+        return (deviceContexts != null) ? deviceContexts.toString(ctx) : ctx.toString();
+    }
+}
@@ -16,6 +16,9 @@ import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
  * A context object that provides methods that rules can use for their conditions. This is needed for JRuleEngine
  * because it doesn't support nested getters (e.g. getEvent.getEventId)
  *
+ * Instances are mutable so that the evaluation hot path can re-populate the same object for each event rather
+ * than allocating a new one (see EventContextCarrier).
+ *
  * @author Dan Noguerol
  */
 public class JREEventContext {
@@ -24,30 +27,107 @@ public class JREEventContext {
     private String variableName;
     private Object variableOldValue;
     private Object variableValue;
+    private double variableOldNumber = Double.NaN;
+    private double variableNumber = Double.NaN;
     private String oldLocationCtx;
     private String newLocationCtx;
     private String personCtx;
 
+    JREEventContext() {
+    }
+
     public JREEventContext(DeviceVariableUpdate update) {
+        set(update, update.getContext().getDeviceContext().toString());
+    }
+
+    public JREEventContext(DeviceUnavailableEvent event) {
+        set(event, event.getDeviceContext().toString());
+    }
+
+    public JREEventContext(PresenceUpdateNotificationEvent event) {
+        set(event);
+    }
+
+    /**
+     * Re-populates this context from a variable update.
+     *
+     * @param update the update
+     * @param deviceCtx the string form of the update's device context
+     */
+    void set(DeviceVariableUpdate update, String deviceCtx) {
+        clear();
         this.eventId = DeviceVariablesUpdateEvent.ID;
-        this.deviceCtx = update.getContext().getDeviceContext().toString();
+        this.deviceCtx = deviceCtx;
         this.variableName = update.getName();
         this.variableOldValue = update.getOldValue();
         this.variableValue = update.getNewValue();
+        this.variableOldNumber = toNumber(variableOldValue);
+        this.variableNumber = toNumber(variableValue);
     }
 
-    public JREEventContext(DeviceUnavailableEvent event) {
+    /**
+     * Re-populates this context from a device unavailable event.
+     *
+     * @param event the event
+     * @param deviceCtx the string form of the event's device context
+     */
+    void set(DeviceUnavailableEvent event, String deviceCtx) {
+        clear();
         this.eventId = event.getEventId();
-        this.deviceCtx = event.getDeviceContext().toString();
+        this.deviceCtx = deviceCtx;
     }
 
-    public JREEventContext(PresenceUpdateNotificationEvent event) {
+    /**
+     * Re-populates this context from a presence update event.
+     *
+     * @param event the event
+     */
+    void set(PresenceUpdateNotificationEvent event) {
+        clear();
         this.eventId = event.getEventId();
         this.personCtx = event.getEntityContext().toString();
         this.oldLocationCtx = event.getOldLocation() != null ? event.getOldLocation().toString() : null;
         this.newLocationCtx = event.getNewLocation() != null ? event.getNewLocation().toString() : null;
     }
 
+    /**
+     * Converts a variable value to a number.
+     *
+     * @param value the value
+     *
+     * @return the number (or NaN if the value isn't numeric)
+     */
+    static public double toNumber(Object value) {
+        if (value instanceof Number) {
+            return ((Number)value).doubleValue();
+        } else if (value instanceof String) {
+            String s = (String)value;
+            if (s.length() > 0 && (Character.isDigit(s.charAt(0)) || s.charAt(0) == '-' || s.charAt(0) == '.' || s.charAt(0) == '+')) {
+                try {
+                    return Double.parseDouble(s);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Clears all fields so the context doesn't retain references to a previous event.
+     */
+    void clear() {
+        eventId = null;
+        deviceCtx = null;
+        variableName = null;
+        variableOldValue = null;
+        variableValue = null;
+        variableOldNumber = Double.NaN;
+        variableNumber = Double.NaN;
+        oldLocationCtx = null;
+        newLocationCtx = null;
+        personCtx = null;
+    }
+
     public String eventId() {
         return eventId;
     }
@@ -68,6 +148,25 @@ public class JREEventContext {
         return variableValue;
     }
 
+    /**
+     * Returns the variable's old value as a number. This is converted once when the context is populated so
+     * numeric assumptions don't need to unbox or parse the value themselves.
+     *
+     * @return the value (or NaN if it isn't numeric)
+     */
+    public double variableOldNumber() {
+        return variableOldNumber;
+    }
+
+    /**
+     * Returns the variable's new value as a number.
+     *
+     * @return the value (or NaN if it isn't numeric)
+     */
+    public double variableNumber() {
+        return variableNumber;
+    }
+
     public String personCtx() {
         return personCtx;
     }
@@ -10,13 +10,33 @@ package com.whizzosoftware.hobson.rules.jruleengine;
 import com.whizzosoftware.hobson.api.plugin.PluginContext;
 import com.whizzosoftware.hobson.api.task.TaskContext;
 import com.whizzosoftware.hobson.api.task.TaskManager;
+import com.whizzosoftware.hobson.rules.metrics.RuleMetrics;
+import com.whizzosoftware.hobson.rules.queue.TriggerDispatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * This class encapsulates a TaskManager so JRuleEngine can use it to execute actions within the appropriate
  * context.
  *
+ * When a batch is active, triggers are collected rather than fired immediately so that a task matched by several
+ * updates of the same event only fires once when the batch ends.
+ *
+ * If metrics are provided, each fired trigger is counted as a rule match and the time spent in the TaskManager
+ * is recorded as trigger dispatch latency. If a context cache is provided, trigger strings are resolved through it
+ * rather than being parsed each time.
+ *
+ * Triggers are checked against the edge-triggered task gates and then the task limiter (if set) before they are
+ * dispatched. Triggers deferred by a debounce are dispatched later by the limiter.
+ *
+ * If a dispatcher is set, triggers that pass these checks are collected during evaluation and handed to the
+ * dispatcher by flush() once evaluation has finished, so slow tasks don't hold up the evaluating thread.
+ *
  * @author Dan Noguerol
  */
 public class JRETaskContext {
@@ -24,10 +44,39 @@ public class JRETaskContext {
 
     private PluginContext ctx;
     private TaskManager taskManager;
+    private RuleMetrics metrics;
+    private ContextCache<TaskContext> taskContexts;
+    private TriggerGates gates;
+    private List<JREEventContext> eventContexts;
+    private TriggerLimiter limiter;
+    private TriggerDispatcher dispatcher;
+    private final List<String> pendingTriggers = new ArrayList<>();
+    private final Set<String> batchTriggers = new LinkedHashSet<>();
+    private boolean batching;
+    private long dispatchNanos;
 
     public JRETaskContext(PluginContext ctx, TaskManager taskManager) {
+        this(ctx, taskManager, null);
+    }
+
+    public JRETaskContext(PluginContext ctx, TaskManager taskManager, RuleMetrics metrics) {
+        this(ctx, taskManager, metrics, null);
+    }
+
+    public JRETaskContext(PluginContext ctx, TaskManager taskManager, RuleMetrics metrics, ContextCache<TaskContext> taskContexts) {
         this.ctx = ctx;
         this.taskManager = taskManager;
+        this.metrics = metrics;
+        this.taskContexts = taskContexts;
+    }
+
+    /**
+     * Returns the total time this context has spent firing triggers.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getDispatchNanos() {
+        return dispatchNanos;
     }
 
     /**
@@ -39,11 +88,158 @@ public class JRETaskContext {
     public void setActionSet(String actionSetId) {
     }
 
+    TaskManager getTaskManager() {
+        return taskManager;
+    }
+
+    RuleMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the gates that decide whether an edge-triggered task may fire for the event being evaluated.
+     *
+     * @param gates the trigger gates
+     * @param eventContexts the contexts of the event being evaluated
+     */
+    void setTriggerGates(TriggerGates gates, List<JREEventContext> eventContexts) {
+        this.gates = gates;
+        this.eventContexts = eventContexts;
+    }
+
+    /**
+     * Sets the limiter that enforces the debounce and rate limits of throttled tasks.
+     *
+     * @param limiter the trigger limiter
+     */
+    void setTriggerLimiter(TriggerLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Sets the dispatcher that fires triggers asynchronously.
+     *
+     * @param dispatcher the trigger dispatcher (or null to fire triggers immediately)
+     */
+    void setTriggerDispatcher(TriggerDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Clears any per-event state so the context can be re-used for another event.
+     */
+    void reset() {
+        batchTriggers.clear();
+        batching = false;
+        dispatchNanos = 0;
+        gates = null;
+        eventContexts = null;
+        limiter = null;
+        dispatcher = null;
+        pendingTriggers.clear();
+    }
+
+    /**
+     * Starts collecting triggers instead of firing them.
+     */
+    public void beginBatch() {
+        batchTriggers.clear();
+        batching = true;
+    }
+
+    /**
+     * Fires each distinct trigger collected since beginBatch() was called and stops collecting.
+     *
+     * @return the number of triggers fired
+     */
+    public int endBatch() {
+        if (!batching) {
+            return 0;
+        }
+        batching = false;
+        int count = batchTriggers.size();
+        if (count > 0) {
+            for (String taskCtxStr : batchTriggers) {
+                fireTaskTrigger(taskCtxStr);
+            }
+            batchTriggers.clear();
+        }
+        return count;
+    }
+
     public void fireTaskTrigger(String taskCtxStr) {
+        if (batching) {
+            batchTriggers.add(taskCtxStr);
+            return;
+        }
+        if (gates != null && !gates.allow(taskCtxStr, eventContexts)) {
+            logger.trace("Suppressing trigger {}; threshold was not crossed", taskCtxStr);
+            if (metrics != null) {
+                metrics.recordSuppressedTrigger();
+            }
+            return;
+        }
+        if (limiter != null) {
+            switch (limiter.offer(taskCtxStr)) {
+                case DEFER:
+                    logger.trace("Deferring trigger {} until its debounce period expires", taskCtxStr);
+                    return;
+                case SUPPRESS:
+                    logger.trace("Suppressing trigger {}; task is rate limited", taskCtxStr);
+                    if (metrics != null) {
+                        metrics.recordSuppressedTrigger();
+                    }
+                    return;
+            }
+        }
+        if (dispatcher != null) {
+            pendingTriggers.add(taskCtxStr);
+        } else {
+            dispatchNanos += dispatch(taskCtxStr);
+        }
+    }
+
+    /**
+     * Hands the triggers collected during evaluation to the dispatcher.
+     *
+     * @return the number of triggers the dispatcher accepted
+     */
+    public int flush() {
+        int count = 0;
+        if (!pendingTriggers.isEmpty()) {
+            for (final String taskCtxStr : pendingTriggers) {
+                if (dispatcher.submit(taskCtxStr, new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch(taskCtxStr);
+                    }
+                })) {
+                    count++;
+                } else {
+                    logger.warn("Trigger dispatcher rejected trigger {}", taskCtxStr);
+                    if (metrics != null) {
+                        metrics.recordRejectedTrigger();
+                    }
+                }
+            }
+            pendingTriggers.clear();
+        }
+        return count;
+    }
+
+    private long dispatch(String taskCtxStr) {
+        long start = System.nanoTime();
         try {
-            taskManager.fireTaskTrigger(TaskContext.create(taskCtxStr));
+            TaskContext tctx = (taskContexts != null) ? taskContexts.toObject(taskCtxStr) : null;
+            taskManager.fireTaskTrigger(tctx != null ? tctx : TaskContext.create(taskCtxStr));
         } catch (Exception e) {
             logger.error("Error firing task trigger", e);
         }
+        long elapsed = System.nanoTime() - start;
+        if (metrics != null) {
+            metrics.getTriggerDispatch().record(elapsed);
+            metrics.recordMatch(taskCtxStr);
+        }
+        return elapsed;
     }
 }
@@ -10,20 +10,34 @@
 package com.whizzosoftware.hobson.rules.jruleengine;
 
 import com.whizzosoftware.hobson.api.HobsonRuntimeException;
+import com.whizzosoftware.hobson.api.device.DeviceContext;
 import com.whizzosoftware.hobson.api.event.*;
 import com.whizzosoftware.hobson.api.event.device.DeviceUnavailableEvent;
 import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
 import com.whizzosoftware.hobson.api.event.presence.PresenceUpdateNotificationEvent;
 import com.whizzosoftware.hobson.api.plugin.PluginContext;
-import com.whizzosoftware.hobson.api.property.PropertyContainer;
 import com.whizzosoftware.hobson.api.task.*;
-import com.whizzosoftware.hobson.api.task.condition.TaskConditionClass;
 import com.whizzosoftware.hobson.api.task.condition.TaskConditionClassProvider;
 import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
-import com.whizzosoftware.hobson.rules.condition.AbstractRuleConditionClass;
+import com.whizzosoftware.hobson.rules.RuleEngineType;
 import com.whizzosoftware.hobson.rules.condition.ConditionConstants;
+import com.whizzosoftware.hobson.rules.condition.ThresholdGate;
+import com.whizzosoftware.hobson.rules.condition.TriggerThrottle;
+import com.whizzosoftware.hobson.rules.indexed.AssumptionNetwork;
+import com.whizzosoftware.hobson.rules.indexed.EventFilter;
+import com.whizzosoftware.hobson.rules.indexed.IndexedRule;
+import com.whizzosoftware.hobson.rules.indexed.IndexedRuleSet;
+import com.whizzosoftware.hobson.rules.indexed.ShardedRuleSet;
+import com.whizzosoftware.hobson.rules.metrics.RuleMetrics;
+import com.whizzosoftware.hobson.rules.queue.EventProcessor;
+import com.whizzosoftware.hobson.rules.queue.TriggerDispatcher;
+import com.whizzosoftware.hobson.rules.snapshot.BinaryRuleSnapshot;
+import com.whizzosoftware.hobson.rules.snapshot.RuleJournal;
+import com.whizzosoftware.hobson.rules.snapshot.RuleSnapshotFormat;
+import com.whizzosoftware.hobson.rules.snapshot.RuleSnapshots;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,25 +45,90 @@ import javax.rules.*;
 import javax.rules.admin.RuleAdministrator;
 import javax.rules.admin.RuleExecutionSet;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A JRuleEngine implementation of TaskProvider.
  *
  * @author Dan Noguerol
  */
-public class JRETaskProvider implements TaskProvider {
+public class JRETaskProvider implements TaskProvider, EventProcessor {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    public static final int DEFAULT_SESSION_POOL_SIZE = 4;
+    public static final int DEFAULT_CONTEXT_CACHE_SIZE = 1024;
+    public static final int DEFAULT_JOURNAL_COMPACTION_THRESHOLD = 500;
+    public static final int REGISTRATION_BATCH_SIZE = 256;
+    private static final int REGISTRATION_SPLIT_SIZE = 16;
+
     private PluginContext pluginContext;
     private TaskConditionClassProvider conditionClassProvider;
     private TaskManager taskManager;
     private String ruleUri;
     private File rulesFile;
+    private RuleSnapshotFormat rulesFileFormat = RuleSnapshotFormat.JSON;
+    private final Object rulesFileLock = new Object();
+    private volatile long lastSnapshotBytes;
+    private RuleJournal journal;
+    private int journalCompactionThreshold = DEFAULT_JOURNAL_COMPACTION_THRESHOLD;
+    private Set<String> restoredTaskIds;
     private RuleServiceProvider provider;
     private RuleAdministrator administrator;
     private RuleRuntime runtime;
-    private final Map<String,HobsonTask> tasks = new HashMap<>();
+    private volatile RuleSessionPool sessionPool;
+    private int sessionPoolSize = DEFAULT_SESSION_POOL_SIZE;
+    private RuleEngineType engineType = RuleEngineType.JRULEENGINE;
+    private volatile boolean batchEvaluation = true;
+    private volatile IndexedRuleSet indexedRules;
+    private volatile TriggerDispatcher triggerDispatcher;
+    private volatile ForkJoinPool registrationPool;
+    private int evaluationShards = 1;
+    private boolean sharedAssumptions = true;
+    private volatile ForkJoinPool evaluationPool;
+    private final Map<String,HobsonTask> tasks = new ConcurrentHashMap<>();
+    private final Map<String,JSONObject> rules = new LinkedHashMap<>();
+    private volatile List<JSONObject> ruleView;
+    private Executor snapshotExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private final RuleMetrics metrics = new RuleMetrics();
+    private final TriggerGates triggerGates = new TriggerGates();
+    private final TriggerConditionCache triggerConditions = new TriggerConditionCache();
+    private final EventFilter eventFilter = new EventFilter();
+    private boolean streamRulesLoaded;
+    private final TriggerLimiter triggerLimiter = new TriggerLimiter(new TriggerLimiter.Dispatcher() {
+        @Override
+        public void dispatch(String trigger) {
+            // debounced triggers have already passed their gate and limits so are fired directly
+            JRETaskContext tc = new JRETaskContext(pluginContext, taskManager, metrics, taskContexts);
+            tc.setTriggerDispatcher(triggerDispatcher);
+            tc.fireTaskTrigger(trigger);
+            tc.flush();
+        }
+    });
+    private final ContextCache<DeviceContext> deviceContexts = new ContextCache<>(DEFAULT_CONTEXT_CACHE_SIZE, null);
+    private final ContextCache<TaskContext> taskContexts = new ContextCache<>(DEFAULT_CONTEXT_CACHE_SIZE, new ContextCache.Parser<TaskContext>() {
+        @Override
+        public TaskContext parse(String s) {
+            return TaskContext.create(s);
+        }
+    });
+    private final ThreadLocal<EventContextCarrier> carriers = new ThreadLocal<EventContextCarrier>() {
+        @Override
+        protected EventContextCarrier initialValue() {
+            return new EventContextCarrier(deviceContexts);
+        }
+    };
 
     /**
      * Constructor.
@@ -75,17 +154,319 @@ public class JRETaskProvider implements TaskProvider {
         this.taskManager = taskManager;
     }
 
+    /**
+     * Sets the engine used to match events against rules. If rules have already been loaded, they are re-loaded
+     * using the new engine.
+     *
+     * @param engineType the engine type
+     */
+    synchronized public void setRuleEngineType(RuleEngineType engineType) {
+        RuleEngineType newType = (engineType != null) ? engineType : RuleEngineType.JRULEENGINE;
+        if (newType != this.engineType) {
+            this.engineType = newType;
+            if (sessionPool != null || indexedRules != null) {
+                try {
+                    publishAllRules();
+                } catch (Exception e) {
+                    throw new HobsonRuntimeException("Error re-loading rules", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the engine that is currently matching events against rules. This may be JRULEENGINE even if the
+     * indexed or compiled engine was requested when the loaded rule set couldn't be compiled into indexes.
+     *
+     * @return a RuleEngineType
+     */
+    public RuleEngineType getActiveRuleEngineType() {
+        if (indexedRules != null) {
+            return (engineType == RuleEngineType.COMPILED) ? RuleEngineType.COMPILED : RuleEngineType.INDEXED;
+        }
+        return RuleEngineType.JRULEENGINE;
+    }
+
+    /**
+     * Sets whether all the updates in a single event are evaluated as a batch. In batch mode, a task matched by
+     * more than one of the updates fires only once.
+     *
+     * @param batchEvaluation whether to use batch evaluation
+     */
+    public void setBatchEvaluation(boolean batchEvaluation) {
+        this.batchEvaluation = batchEvaluation;
+    }
+
+    public boolean isBatchEvaluation() {
+        return batchEvaluation;
+    }
+
+    /**
+     * Sets the maximum number of idle rule sessions retained between events. If rules have already been loaded,
+     * the session pool is rebuilt with the new size.
+     *
+     * @param sessionPoolSize the pool size
+     */
+    synchronized public void setSessionPoolSize(int sessionPoolSize) {
+        if (sessionPoolSize < 1) {
+            throw new HobsonRuntimeException("Invalid session pool size: " + sessionPoolSize);
+        }
+        this.sessionPoolSize = sessionPoolSize;
+        if (sessionPool != null) {
+            sessionPool = sessionPool.rebuild(ruleUri, sessionPoolSize);
+        }
+    }
+
+    public int getSessionPoolSize() {
+        return sessionPoolSize;
+    }
+
+    /**
+     * Returns the number of events that were processed using an idle pooled session.
+     *
+     * @return a long
+     */
+    public long getSessionPoolHits() {
+        RuleSessionPool pool = sessionPool;
+        return (pool != null) ? pool.getHitCount() : 0;
+    }
+
+    /**
+     * Returns the number of events that required a new rule session to be created.
+     *
+     * @return a long
+     */
+    public long getSessionPoolMisses() {
+        RuleSessionPool pool = sessionPool;
+        return (pool != null) ? pool.getMissCount() : 0;
+    }
+
+    /**
+     * Returns the timing and match statistics for rule evaluation.
+     *
+     * @return a RuleMetrics instance
+     */
+    public RuleMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the cache used to convert device contexts to strings for rule evaluation.
+     *
+     * @return a ContextCache
+     */
+    public ContextCache<DeviceContext> getDeviceContextCache() {
+        return deviceContexts;
+    }
+
+    /**
+     * Returns the cache used to resolve rule trigger strings to task contexts.
+     *
+     * @return a ContextCache
+     */
+    public ContextCache<TaskContext> getTaskContextCache() {
+        return taskContexts;
+    }
+
+    /**
+     * Returns the cache of each task's resolved trigger condition.
+     *
+     * @return a TriggerConditionCache
+     */
+    public TriggerConditionCache getTriggerConditionCache() {
+        return triggerConditions;
+    }
+
+    /**
+     * Returns the threshold gates of edge-triggered tasks.
+     *
+     * @return a TriggerGates instance
+     */
+    public TriggerGates getTriggerGates() {
+        return triggerGates;
+    }
+
+    /**
+     * Returns the limiter enforcing the debounce and rate limits of throttled tasks.
+     *
+     * @return a TriggerLimiter instance
+     */
+    public TriggerLimiter getTriggerLimiter() {
+        return triggerLimiter;
+    }
+
+    /**
+     * Sets the dispatcher used to fire task triggers once an event's evaluation has finished.
+     *
+     * @param triggerDispatcher the dispatcher (or null to fire triggers on the evaluating thread)
+     */
+    public void setTriggerDispatcher(TriggerDispatcher triggerDispatcher) {
+        this.triggerDispatcher = triggerDispatcher;
+    }
+
+    public TriggerDispatcher getTriggerDispatcher() {
+        return triggerDispatcher;
+    }
+
+    /**
+     * Sets the pool used to resolve and compile tasks in parallel when they are registered.
+     *
+     * @param registrationPool the pool (or null to compile tasks on the registering thread)
+     */
+    public void setRegistrationPool(ForkJoinPool registrationPool) {
+        this.registrationPool = registrationPool;
+    }
+
+    public ForkJoinPool getRegistrationPool() {
+        return registrationPool;
+    }
+
+    /**
+     * Sets the number of shards the indexed engine splits its rules into. Rules are assigned to shards by the hash
+     * of their device (or person) context and the updates in an event are only matched against the shards of their
+     * devices. If an evaluation pool has been set, an event's shards are matched in parallel. If rules have already
+     * been loaded, they are re-loaded using the new shard count.
+     *
+     * @param evaluationShards the number of shards (1 disables sharding)
+     */
+    synchronized public void setEvaluationShards(int evaluationShards) {
+        if (evaluationShards < 1) {
+            throw new HobsonRuntimeException("Invalid evaluation shard count: " + evaluationShards);
+        }
+        if (evaluationShards != this.evaluationShards) {
+            this.evaluationShards = evaluationShards;
+            if (indexedRules != null) {
+                try {
+                    publishAllRules();
+                } catch (Exception e) {
+                    throw new HobsonRuntimeException("Error re-loading rules", e);
+                }
+            }
+        }
+    }
+
+    public int getEvaluationShards() {
+        return evaluationShards;
+    }
+
+    /**
+     * Sets whether the indexed engine evaluates identical assumptions once per event and shares the result across
+     * all the rules that use them. If rules have already been loaded, they are re-loaded.
+     *
+     * @param sharedAssumptions whether to share assumptions
+     */
+    synchronized public void setSharedAssumptions(boolean sharedAssumptions) {
+        if (sharedAssumptions != this.sharedAssumptions) {
+            this.sharedAssumptions = sharedAssumptions;
+            if (indexedRules != null) {
+                try {
+                    publishAllRules();
+                } catch (Exception e) {
+                    throw new HobsonRuntimeException("Error re-loading rules", e);
+                }
+            }
+        }
+    }
+
+    public boolean isSharedAssumptions() {
+        return sharedAssumptions;
+    }
+
+    /**
+     * Returns the network of assumptions shared by the current indexed rules.
+     *
+     * @return an AssumptionNetwork (or null if the JRuleEngine engine is active or assumptions aren't shared)
+     */
+    public AssumptionNetwork getAssumptionNetwork() {
+        IndexedRuleSet irs = indexedRules;
+        return (irs != null) ? irs.getAssumptionNetwork() : null;
+    }
+
+    /**
+     * Sets the pool used to match an event's shards in parallel.
+     *
+     * @param evaluationPool the pool (or null to match shards on the evaluating thread)
+     */
+    synchronized public void setEvaluationPool(ForkJoinPool evaluationPool) {
+        this.evaluationPool = evaluationPool;
+        IndexedRuleSet irs = indexedRules;
+        if (irs instanceof ShardedRuleSet) {
+            ((ShardedRuleSet)irs).setPool(evaluationPool);
+        }
+    }
+
+    public ForkJoinPool getEvaluationPool() {
+        return evaluationPool;
+    }
+
+    /**
+     * Returns the indexed rule set that is currently matching events.
+     *
+     * @return an IndexedRuleSet (or null if the JRuleEngine engine is active)
+     */
+    public IndexedRuleSet getIndexedRules() {
+        return indexedRules;
+    }
+
+    /**
+     * Cancels any pending debounced triggers and stops the timer used to schedule them. If a rule journal is in
+     * use, it is compacted into the rules file and closed.
+     */
+    public void stop() {
+        triggerLimiter.stop();
+        synchronized (this) {
+            if (journal != null) {
+                try {
+                    compactJournal();
+                    journal.close();
+                } catch (Exception e) {
+                    logger.error("Error closing rule journal", e);
+                }
+                journal = null;
+            }
+        }
+    }
+
     synchronized public void setRulesFile(File rulesFile) {
+        setRulesFile(rulesFile, RuleSnapshotFormat.JSON);
+    }
+
+    /**
+     * Sets the file that snapshots of the current rules are written to.
+     *
+     * @param rulesFile the file
+     * @param format the format to write the file in
+     */
+    synchronized public void setRulesFile(File rulesFile, RuleSnapshotFormat format) {
+        setRulesFile(rulesFile, format, null);
+    }
+
+    /**
+     * Sets the file that snapshots of the current rules are written to along with a journal that records each rule
+     * change between snapshots. When a journal is used, the rules in the last snapshot and journal are restored
+     * and published immediately so events can be matched before the task manager has registered any tasks.
+     * Snapshots are then only written when the journal is compacted.
+     *
+     * @param rulesFile the file
+     * @param format the format to write the file in
+     * @param journalFile the journal file (or null to write a full snapshot after every change)
+     */
+    synchronized public void setRulesFile(File rulesFile, RuleSnapshotFormat format, File journalFile) {
         this.rulesFile = rulesFile;
+        this.rulesFileFormat = format;
 
         if (rulesFile != null) {
             try {
-                // create empty rules file
-                writeRuleFile();
+                if (journalFile != null) {
+                    openJournal(journalFile);
+                } else {
+                    // write the initial snapshot
+                    writeRuleFile();
+                }
 
-                // load the rules
-                logger.debug("Rules engine loading file: {}", rulesFile.getAbsolutePath());
-                loadRules(new FileInputStream(rulesFile));
+                // load the rules; the snapshot was written from the in-memory rules so there's no need to re-read it
+                logger.debug("Rules engine using {} file: {}", format, rulesFile.getAbsolutePath());
+                publishAllRules();
             } catch (Exception e) {
                 throw new HobsonRuntimeException("Error loading rules file", e);
             }
@@ -94,110 +475,461 @@ public class JRETaskProvider implements TaskProvider {
         }
     }
 
+    /**
+     * Sets the number of journal records after which the journal is compacted into a new rules file snapshot.
+     *
+     * @param journalCompactionThreshold the number of records
+     */
+    public void setJournalCompactionThreshold(int journalCompactionThreshold) {
+        if (journalCompactionThreshold < 1) {
+            throw new HobsonRuntimeException("Invalid journal compaction threshold: " + journalCompactionThreshold);
+        }
+        this.journalCompactionThreshold = journalCompactionThreshold;
+    }
+
+    public int getJournalCompactionThreshold() {
+        return journalCompactionThreshold;
+    }
+
+    /**
+     * Returns the number of rule changes recorded in the journal since it was last compacted.
+     *
+     * @return an int
+     */
+    synchronized public int getJournalRecordCount() {
+        return (journal != null) ? journal.getRecordCount() : 0;
+    }
+
+    /**
+     * Returns the IDs of tasks whose rules were restored from the rules file and journal but that haven't been
+     * registered by the task manager yet.
+     *
+     * @return a Set of task IDs
+     */
+    synchronized public Set<String> getRestoredTaskIds() {
+        return (restoredTaskIds != null) ? new HashSet<>(restoredTaskIds) : Collections.<String>emptySet();
+    }
+
+    private void openJournal(File journalFile) throws Exception {
+        journal = new RuleJournal(journalFile);
+
+        // restore the rules from the last snapshot plus any changes journaled after it was written
+        Map<String,JSONObject> restored = new LinkedHashMap<>();
+        int records;
+        try {
+            if (rulesFile.length() > 0) {
+                for (JSONObject rule : RuleSnapshots.read(rulesFile)) {
+                    restored.put(rule.getString("name"), rule);
+                }
+            }
+            records = journal.replay(restored);
+        } catch (IOException e) {
+            logger.warn("Unable to restore rules; they will be re-built as tasks are registered", e);
+            restored.clear();
+            journal.reset();
+            records = -1;
+        }
+
+        // rules that have already been registered take precedence over restored ones
+        if (rules.isEmpty() && !restored.isEmpty()) {
+            rules.putAll(restored);
+            ruleView = null;
+            for (JSONObject rule : restored.values()) {
+                eventFilter.put(rule);
+            }
+            restoredTaskIds = new HashSet<>(restored.keySet());
+            logger.info("Restored {} rules ({} journal records)", restored.size(), records);
+        } else {
+            records = -1;
+        }
+
+        // start with an empty journal unless the snapshot is already current
+        if (records != 0) {
+            compactJournal();
+        }
+    }
+
+    public RuleSnapshotFormat getRulesFileFormat() {
+        return rulesFileFormat;
+    }
+
+    /**
+     * Returns the size of the most recently written rules file snapshot.
+     *
+     * @return the size in bytes
+     */
+    public long getLastSnapshotBytes() {
+        return lastSnapshotBytes;
+    }
+
+    /**
+     * Writes the current rules to a stream as a JRuleEngine JSON rule set, regardless of the rules file format.
+     *
+     * @param os the stream to write to (it is not closed)
+     *
+     * @throws IOException on failure
+     */
+    public void exportRules(OutputStream os) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+        RuleSnapshots.createRuleSetJSON(getRules()).write(writer);
+        writer.flush();
+    }
+
+    /**
+     * Returns an immutable view of the current rules in registration order. The view is shared until the next rule
+     * change, so callers that only read the rules (e.g. snapshot writers) never hold the provider lock while they
+     * do so.
+     *
+     * @return a List of rule JSON objects (which must not be modified)
+     */
+    public List<JSONObject> getRules() {
+        List<JSONObject> view = ruleView;
+        if (view == null) {
+            synchronized (this) {
+                view = ruleView;
+                if (view == null) {
+                    view = Collections.unmodifiableList(new ArrayList<>(rules.values()));
+                    ruleView = view;
+                }
+            }
+        }
+        return view;
+    }
+
+    /**
+     * Indicates whether a task is currently registered with this provider.
+     *
+     * @param taskId the task ID
+     *
+     * @return a boolean
+     */
+    public boolean hasTask(String taskId) {
+        return tasks.containsKey(taskId);
+    }
+
+    /**
+     * Loads a rule set from a stream. The stream may contain either a JSON rule set or a binary rule snapshot.
+     *
+     * @param rules the stream (it is closed when the rules have been read)
+     *
+     * @throws Exception on failure
+     */
     synchronized public void loadRules(InputStream rules) throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(readFully(rules));
+        JSONObject json;
+        if (BinaryRuleSnapshot.isBinarySnapshot(buf)) {
+            json = RuleSnapshots.createRuleSetJSON(BinaryRuleSnapshot.decode(buf));
+        } else {
+            json = new JSONObject(new JSONTokener(new String(buf.array(), "UTF-8")));
+        }
+
+        // these rules don't come from registered tasks so the event filter has to be told about them; they're added
+        // before the rules are loaded so their events aren't rejected in between
+        List<JSONObject> loaded = new ArrayList<>();
+        JSONArray ja = json.optJSONArray("rules");
+        if (ja != null) {
+            for (int i=0; i < ja.length(); i++) {
+                loaded.add(ja.getJSONObject(i));
+            }
+        }
+        for (JSONObject rule : loaded) {
+            eventFilter.put(rule);
+        }
+        streamRulesLoaded = true;
+
+        loadRules(json.toString());
+
+        // the filter now covers exactly the rules that were loaded
+        retainEventFilter(loaded);
+    }
+
+    private void retainEventFilter(List<JSONObject> loaded) {
+        Set<String> names = new HashSet<>();
+        for (JSONObject rule : loaded) {
+            names.add(rule.getString("name"));
+        }
+        eventFilter.retainAll(names);
+    }
+
+    synchronized private void loadRules(String json) throws Exception {
+        // try the indexed engine first if it (or the compiled engine built on it) has been selected
+        if (engineType != RuleEngineType.JRULEENGINE) {
+            try {
+                JSONObject rsJson = new JSONObject(new JSONTokener(json));
+                boolean predicates = (engineType == RuleEngineType.COMPILED);
+                AssumptionNetwork network = sharedAssumptions ? new AssumptionNetwork(predicates) : null;
+                IndexedRuleSet irs = (evaluationShards > 1) ? new ShardedRuleSet(evaluationShards, evaluationPool, network) : new IndexedRuleSet(network);
+                irs.addAll(IndexedRuleSet.compileRules(rsJson, predicates));
+                indexedRules = irs;
+                if (sessionPool != null) {
+                    sessionPool.drain();
+                    sessionPool = null;
+                }
+                if (network != null) {
+                    logger.debug("Loaded {} indexed rules with {} assumption nodes ({} shared)", irs.getRuleCount(), network.getNodeCount(), network.getSharedNodeCount());
+                } else {
+                    logger.debug("Loaded {} indexed rules", irs.getRuleCount());
+                }
+                return;
+            } catch (Exception e) {
+                logger.warn("Unable to compile indexed rules; falling back to JRuleEngine", e);
+            }
+        }
+
         // create execution set
         Map props = new HashMap();
         props.put("Content-Type", "application/json");
-        RuleExecutionSet res = administrator.getLocalRuleExecutionSetProvider(props).createRuleExecutionSet(rules, null);
-        rules.close();
+        RuleExecutionSet res = administrator.getLocalRuleExecutionSetProvider(props).createRuleExecutionSet(new ByteArrayInputStream(json.getBytes("UTF-8")), null);
         ruleUri = res.getName();
 
         // register execution set
         administrator.registerRuleExecutionSet(ruleUri, res, null);
+
+        // swap in a session pool for the new execution set; sessions for the old one are drained
+        if (sessionPool == null) {
+            sessionPool = new RuleSessionPool(runtime, ruleUri, sessionPoolSize);
+        } else {
+            sessionPool = sessionPool.rebuild(ruleUri, sessionPoolSize);
+        }
+        indexedRules = null;
+
         logger.debug("Loaded rules: {}", ruleUri);
     }
 
+    private byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = is.read(buf)) > -1) {
+                bytes.write(buf, 0, len);
+            }
+            return bytes.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Returns the filter of keys used by the current rules.
+     *
+     * @return an EventFilter
+     */
+    public EventFilter getEventFilter() {
+        return eventFilter;
+    }
+
+    /**
+     * Indicates whether any current rule could match an event. This is much cheaper than evaluating the event so
+     * it can be used to discard irrelevant events before they are queued.
+     *
+     * @param event the event
+     *
+     * @return a boolean
+     */
+    public boolean isEventRelevant(HobsonEvent event) {
+        if (event instanceof DeviceVariablesUpdateEvent) {
+            List<DeviceVariableUpdate> updates = ((DeviceVariablesUpdateEvent)event).getUpdates();
+            for (int i=0; i < updates.size(); i++) {
+                DeviceVariableUpdate update = updates.get(i);
+                if (eventFilter.accepts(DeviceVariablesUpdateEvent.ID, deviceContexts.toString(update.getContext().getDeviceContext()), update.getName())) {
+                    return true;
+                }
+            }
+            return false;
+        } else if (event instanceof DeviceUnavailableEvent) {
+            return eventFilter.accepts(event.getEventId(), deviceContexts.toString(((DeviceUnavailableEvent)event).getDeviceContext()), null);
+        } else if (event instanceof PresenceUpdateNotificationEvent) {
+            return eventFilter.accepts(event.getEventId(), ((PresenceUpdateNotificationEvent)event).getEntityContext().toString(), null);
+        }
+        return false;
+    }
+
     /**
      * Allow the engine to process an incoming event.
      *
      * @param event the event to process
      */
+    @Override
     public void processEvent(HobsonEvent event) {
-        StatelessRuleSession session = null;
+        EventContextCarrier carrier = carriers.get();
+        if (carrier.isInUse()) {
+            // a trigger synchronously produced another event on this thread so it needs its own carrier
+            carrier = new EventContextCarrier(deviceContexts);
+        }
         try {
-            session = (StatelessRuleSession)runtime.createRuleSession(
-                ruleUri,
-                new HashMap(),
-                RuleRuntime.STATELESS_SESSION_TYPE
-            );
-
-            if (event instanceof DeviceVariablesUpdateEvent) {
-                DeviceVariablesUpdateEvent vune = (DeviceVariablesUpdateEvent)event;
-                for (DeviceVariableUpdate update : vune.getUpdates()) {
-                    List inputList = new LinkedList();
-                    inputList.add(new JREEventContext(update));
-                    inputList.add(new JRETaskContext(pluginContext, taskManager));
-                    session.executeRules(inputList);
+            processEvent(event, carrier);
+        } finally {
+            carrier.release();
+        }
+    }
+
+    private void processEvent(HobsonEvent event, EventContextCarrier carrier) {
+        List<JREEventContext> eventContexts = carrier.populate(event);
+        if (eventContexts.isEmpty()) {
+            return;
+        }
+
+        metrics.recordEvent();
+
+        // edge-triggered conditions need to see every update for their devices, not just the ones that match
+        triggerGates.observe(eventContexts);
+
+        // a single task context is shared by all of the event's updates
+        JRETaskContext taskContext = carrier.getTaskContext(pluginContext, taskManager, metrics, taskContexts);
+        taskContext.setTriggerGates(triggerGates, eventContexts);
+        taskContext.setTriggerLimiter(triggerLimiter);
+        taskContext.setTriggerDispatcher(triggerDispatcher);
+        boolean batch = batchEvaluation && eventContexts.size() > 1;
+
+        IndexedRuleSet irs = indexedRules;
+        if (irs != null) {
+            long start = System.nanoTime();
+            try {
+                if (batch) {
+                    irs.execute(eventContexts, taskContext, carrier.getMatches());
+                } else {
+                    for (int i=0; i < eventContexts.size(); i++) {
+                        irs.execute(eventContexts.get(i), taskContext, carrier.getMatches());
+                    }
                 }
-            } else if (event instanceof DeviceUnavailableEvent) {
-                DeviceUnavailableEvent due = (DeviceUnavailableEvent)event;
-                List inputList = new LinkedList();
-                inputList.add(new JREEventContext(due));
-                inputList.add(new JRETaskContext(pluginContext, taskManager));
-                session.executeRules(inputList);
-            } else if (event instanceof PresenceUpdateNotificationEvent) {
-                List inputList = new LinkedList();
-                inputList.add(new JREEventContext((PresenceUpdateNotificationEvent)event));
-                inputList.add(new JRETaskContext(pluginContext, taskManager));
-                session.executeRules(inputList);
+            } catch (Exception e) {
+                logger.error("Error executing rules", e);
+            }
+            recordEvaluation(start, taskContext);
+            taskContext.flush();
+            return;
+        }
+
+        RuleSessionPool pool = sessionPool;
+        if (pool == null) {
+            logger.debug("No rules loaded; ignoring event {}", event.getEventId());
+            return;
+        }
+
+        StatelessRuleSession session = null;
+        boolean failed = false;
+        long start = 0;
+        try {
+            long acquireStart = System.nanoTime();
+            session = pool.acquire();
+            start = System.nanoTime();
+            metrics.getSessionAcquisition().record(start - acquireStart);
+            if (batch) {
+                taskContext.beginBatch();
+            }
+            for (int i=0; i < eventContexts.size(); i++) {
+                session.executeRules(carrier.getInputs(eventContexts.get(i), taskContext));
             }
         } catch (Exception e) {
+            failed = true;
             logger.error("Error executing rules", e);
         } finally {
             if (session != null) {
-                try {
-                    session.release();
-                } catch (Exception e) {
-                    logger.error("Error closing rule session", e);
+                if (failed) {
+                    pool.invalidate(session);
+                } else {
+                    pool.release(session);
                 }
             }
+            if (batch) {
+                taskContext.endBatch();
+            }
+            if (start > 0) {
+                recordEvaluation(start, taskContext);
+            }
+            taskContext.flush();
         }
     }
 
-    private void onCreateTask(HobsonTask task, boolean writeRulesFile) {
-        if (task != null && doesOwnTask(task)) {
-            logger.info("Adding new task: {}", task.getContext());
-            tasks.put(task.getContext().getTaskId(), task);
-            if (writeRulesFile) {
-                try {
-                    writeRuleFile();
-                    if (rulesFile != null) {
-                        loadRules(new FileInputStream(rulesFile));
-                    }
-                } catch (Exception e) {
-                    throw new TaskException("Error writing rules file", e);
-                }
-            }
-        }
+    private void recordEvaluation(long start, JRETaskContext taskContext) {
+        metrics.getEvaluation().record(System.nanoTime() - start - taskContext.getDispatchNanos());
     }
 
+    /**
+     * Registers a set of tasks. Tasks are resolved and compiled in batches (in parallel if a registration pool has
+     * been set). When the indexed engine is active, each batch is published as soon as it has been compiled so
+     * events are matched against the tasks registered so far while the rest are still being compiled. JRuleEngine
+     * requires the whole rule set to be re-built, so it is only re-built once all tasks have been registered.
+     *
+     * @param tasks the tasks to register
+     */
     @Override
     public void onRegisterTasks(final Collection<TaskContext> tasks) {
-        Iterator<TaskContext> it = tasks.iterator();
-        while (it.hasNext()) {
-            HobsonTask task = taskManager.getTask(it.next());
-            if (task != null && doesOwnTask(task)) {
-                onCreateTask(task, !it.hasNext());
+        long start = System.nanoTime();
+        List<TaskContext> ctxs = new ArrayList<>(tasks);
+        ForkJoinPool pool = registrationPool;
+        boolean changed = false;
+        boolean rebuild = false;
+
+        try {
+            for (int i=0; i < ctxs.size(); i += REGISTRATION_BATCH_SIZE) {
+                int end = Math.min(ctxs.size(), i + REGISTRATION_BATCH_SIZE);
+                List<CompiledTask> batch;
+                if (pool != null && end - i > REGISTRATION_SPLIT_SIZE) {
+                    batch = pool.invoke(new CompileTasks(ctxs, i, end));
+                } else {
+                    batch = compileTasks(ctxs, i, end);
+                }
+
+                List<JSONObject> batchRules = new ArrayList<>(batch.size());
+                Map<String,ThresholdGate> batchGates = new HashMap<>();
+                for (CompiledTask ct : batch) {
+                    logger.info("Adding new task: {}", ct.task.getContext());
+                    // a task whose restored rule is unchanged doesn't require the rule set to be re-built
+                    JSONObject rule = applyTask(ct, batchGates);
+                    if (rule != null) {
+                        batchRules.add(rule);
+                    }
+                }
+                triggerGates.putAll(batchGates);
+                if (!batchRules.isEmpty()) {
+                    changed = true;
+                    if (!rebuild) {
+                        rebuild = !publishIndexedRules(batchRules);
+                    }
+                }
             }
+            if (removeUnregisteredRules()) {
+                changed = true;
+                rebuild = true;
+            }
+
+            // anything the indexed engine couldn't take in place re-builds the rule set once rather than once per task
+            if (rebuild) {
+                publishAllRules();
+            }
+        } catch (Exception e) {
+            throw new TaskException("Error loading rules", e);
+        }
+
+        if (changed) {
+            scheduleSnapshot();
         }
+        metrics.getTaskRegistration().record(System.nanoTime() - start);
     }
 
     @Override
     public void onUpdateTask(TaskContext ctx) {
         try {
+            // only tasks with rule-based trigger conditions are registered
+            triggerConditions.invalidate(ctx.getTaskId());
             HobsonTask t = tasks.get(ctx.getTaskId());
-            if (t != null && doesOwnTask(t)) {
+            if (t != null) {
                 logger.info("Updating task: {}", ctx);
 
-                tasks.put(ctx.getTaskId(), taskManager.getTask(ctx));
-
-                // add to file
-                writeRuleFile();
-
-                // re-load rules
-                if (rulesFile != null) {
-                    loadRules(new FileInputStream(rulesFile));
+                HobsonTask task = taskManager.getTask(ctx);
+                if (task != null && doesOwnTask(task)) {
+                    JSONObject rule = putTask(task);
+                    if (rule != null) {
+                        publishRule(ctx.getTaskId(), rule);
+                    }
+                } else {
+                    removeTask(ctx.getTaskId());
+                    publishRule(ctx.getTaskId(), null);
                 }
+
+                scheduleSnapshot();
             }
         } catch (Exception e) {
             throw new TaskException("Error updating task", e);
@@ -207,62 +939,354 @@ public class JRETaskProvider implements TaskProvider {
     @Override
     public void onDeleteTask(TaskContext ctx) {
         try {
+            triggerConditions.invalidate(ctx.getTaskId());
             HobsonTask t = tasks.get(ctx.getTaskId());
-            if (t != null && doesOwnTask(t)) {
+            if (t != null) {
                 logger.info("Deleting task: {}", ctx.getTaskId());
-                tasks.remove(ctx.getTaskId());
-
-                // write change to file
-                writeRuleFile();
-
-                // re-load rules
-                if (rulesFile != null) {
-                    loadRules(new FileInputStream(rulesFile));
-                }
+                removeTask(ctx.getTaskId());
+                publishRule(ctx.getTaskId(), null);
+                scheduleSnapshot();
             }
         } catch (Exception e) {
             throw new TaskException("Error deleting task", e);
         }
     }
 
+    /**
+     * Sets the executor used to write rule file snapshots. By default snapshots are written synchronously on the
+     * thread that changed the rules.
+     *
+     * @param snapshotExecutor the executor
+     */
+    public void setSnapshotExecutor(Executor snapshotExecutor) {
+        this.snapshotExecutor = snapshotExecutor;
+    }
+
     private boolean doesOwnTask(HobsonTask task) {
-        PropertyContainer triggerCondition = TaskHelper.getTriggerCondition(taskManager, task.getConditions());
+        return (getTriggerCondition(task) != null);
+    }
+
+    private TriggerConditionCache.Entry getTriggerCondition(HobsonTask task) {
+        return triggerConditions.get(task, conditionClassProvider);
+    }
+
+    /**
+     * Adds or replaces a task and compiles its rule JSON. Only the given task's conditions are converted.
+     *
+     * @param task the task
+     *
+     * @return the task's rule JSON (or null if it is identical to the task's current rule)
+     */
+    private JSONObject putTask(HobsonTask task) {
+        return applyTask(compileTask(task), null);
+    }
+
+    /**
+     * Resolves a range of task contexts and compiles the ones owned by this provider. This only reads from the
+     * task manager so it is safe to call from multiple threads.
+     *
+     * @param ctxs the task contexts
+     * @param from the index of the first context
+     * @param to the index after the last context
+     *
+     * @return the compiled tasks
+     */
+    private List<CompiledTask> compileTasks(List<TaskContext> ctxs, int from, int to) {
+        List<CompiledTask> results = new ArrayList<>(to - from);
+        for (int i=from; i < to; i++) {
+            HobsonTask task = taskManager.getTask(ctxs.get(i));
+            if (task != null && doesOwnTask(task)) {
+                results.add(compileTask(task));
+            }
+        }
+        return results;
+    }
+
+    private CompiledTask compileTask(HobsonTask task) {
+        TriggerConditionCache.Entry trigger = getTriggerCondition(task);
+        if (trigger == null) {
+            throw new HobsonRuntimeException("Unable to create rule for task without a rule-based trigger condition: " + task.getContext());
+        }
+        return new CompiledTask(
+            task,
+            createTaskJSON(task, trigger),
+            trigger.getConditionClass().createThresholdGate(trigger.getCondition()),
+            trigger.getConditionClass().createTriggerThrottle(trigger.getCondition()),
+            trigger.getConditionClassId()
+        );
+    }
+
+    /**
+     * Makes a compiled task current.
+     *
+     * @param ct the compiled task
+     * @param gates a map to collect the task's threshold gate in so the caller can set the gates of a whole batch
+     *              at once (or null to set it immediately)
+     *
+     * @return the task's rule JSON (or null if it is identical to the task's current rule)
+     */
+    synchronized private JSONObject applyTask(CompiledTask ct, Map<String,ThresholdGate> gates) {
+        HobsonTask task = ct.task;
+        String taskId = task.getContext().getTaskId();
+        JSONObject rule = ct.rule;
+        tasks.put(taskId, task);
+        JSONObject previous = rules.put(taskId, rule);
+        ruleView = null;
+        String trigger = taskContexts.put(task.getContext());
+        if (gates != null) {
+            gates.put(trigger, ct.gate);
+        } else {
+            triggerGates.put(trigger, ct.gate);
+        }
+        triggerLimiter.put(trigger, ct.throttle);
+        metrics.registerRule(trigger, taskId, ct.conditionClassId);
+        if (restoredTaskIds != null) {
+            restoredTaskIds.remove(taskId);
+        }
+
+        if (previous != null && BinaryRuleSnapshot.isSameRule(previous, rule)) {
+            return null;
+        }
+        eventFilter.put(rule);
+        if (journal != null) {
+            try {
+                journal.appendPut(taskId, rule);
+            } catch (IOException e) {
+                logger.error("Error journaling rule " + taskId, e);
+            }
+        }
+        return rule;
+    }
+
+    synchronized private void removeTask(String taskId) {
+        HobsonTask task = tasks.remove(taskId);
+        triggerConditions.invalidate(taskId);
+        if (rules.remove(taskId) != null) {
+            ruleView = null;
+            eventFilter.remove(taskId);
+            if (journal != null) {
+                try {
+                    journal.appendRemove(taskId);
+                } catch (IOException e) {
+                    logger.error("Error journaling rule removal " + taskId, e);
+                }
+            }
+        }
+        if (task != null) {
+            String trigger = task.getContext().toString();
+            triggerGates.remove(trigger);
+            triggerLimiter.remove(trigger);
+            metrics.unregisterRule(trigger);
+        }
+    }
+
+    /**
+     * Removes restored rules for tasks that weren't part of the task manager's first registration since they must
+     * have been deleted while the plugin wasn't running.
+     *
+     * @return true if any rules were removed
+     */
+    synchronized private boolean removeUnregisteredRules() {
+        if (restoredTaskIds == null) {
+            return false;
+        }
+        boolean removed = false;
+        Iterator<String> it = restoredTaskIds.iterator();
+        while (it.hasNext()) {
+            String taskId = it.next();
+            // a restored task may simply not have been registered yet (e.g. the task manager registers tasks over
+            // several calls or the condition classes haven't been published) so its rule is only removed once the
+            // task is known to be gone or to no longer have a rule-based trigger
+            HobsonTask task = getRestoredTask(taskId);
+            if (task == null || triggerConditions.isNotOwned(task, conditionClassProvider)) {
+                logger.info("Removing rule for unregistered task: {}", taskId);
+                it.remove();
+                removeTask(taskId);
+                removed = true;
+            }
+        }
+        if (restoredTaskIds.isEmpty()) {
+            restoredTaskIds = null;
+        }
+        return removed;
+    }
 
-        if (triggerCondition != null) {
-            TaskConditionClass tcc = taskManager.getConditionClass(triggerCondition.getContainerClassContext());
-            if (tcc != null) {
-                return (tcc instanceof AbstractRuleConditionClass);
+    /**
+     * Looks up the task a restored rule fires.
+     *
+     * @param taskId the task ID
+     *
+     * @return the task (or null if the task manager no longer has it)
+     */
+    private HobsonTask getRestoredTask(String taskId) {
+        JSONObject rule = rules.get(taskId);
+        JSONArray actions = (rule != null) ? rule.optJSONArray("actions") : null;
+        if (actions != null && taskManager != null) {
+            for (int i=0; i < actions.length(); i++) {
+                JSONObject action = actions.getJSONObject(i);
+                if (ConditionConstants.FIRE_TRIGGER.equals(action.optString("method", null)) && action.has("arg1")) {
+                    TaskContext ctx = taskContexts.toObject(action.get("arg1").toString());
+                    if (ctx != null) {
+                        return taskManager.getTask(ctx);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies a single rule change to the active engine. The indexed engine is updated in place; JRuleEngine
+     * requires a new execution set so it is re-built from the in-memory rule JSON.
+     *
+     * @param taskId the task ID
+     * @param rule the new rule JSON (or null if the rule was removed)
+     *
+     * @throws Exception on failure
+     */
+    synchronized private void publishRule(String taskId, JSONObject rule) throws Exception {
+        if (!publishIndexedRule(taskId, rule)) {
+            publishAllRules();
+        }
+    }
+
+    /**
+     * Adds a batch of new or changed rules to the indexed engine in place as a single change.
+     *
+     * @param batch the rule JSON for each rule
+     *
+     * @return false if the indexed engine isn't active or couldn't apply the batch
+     */
+    synchronized private boolean publishIndexedRules(List<JSONObject> batch) {
+        IndexedRuleSet irs = indexedRules;
+        if (irs != null) {
+            try {
+                List<IndexedRule> compiled = new ArrayList<>(batch.size());
+                for (JSONObject rule : batch) {
+                    compiled.add(IndexedRuleSet.compileRule(rule, engineType == RuleEngineType.COMPILED));
+                }
+                irs.addAll(compiled);
+                return true;
+            } catch (HobsonRuntimeException e) {
+                logger.warn("Unable to update indexed rules; re-loading all rules", e);
             }
         }
+        return false;
+    }
 
+    /**
+     * Applies a single rule change to the indexed engine in place.
+     *
+     * @param taskId the task ID
+     * @param rule the new rule JSON (or null if the rule was removed)
+     *
+     * @return false if the indexed engine isn't active or couldn't apply the change
+     */
+    synchronized private boolean publishIndexedRule(String taskId, JSONObject rule) {
+        IndexedRuleSet irs = indexedRules;
+        if (irs != null) {
+            try {
+                if (rule != null) {
+                    irs.add(IndexedRuleSet.compileRule(rule, engineType == RuleEngineType.COMPILED));
+                } else {
+                    irs.remove(taskId);
+                }
+                return true;
+            } catch (HobsonRuntimeException e) {
+                logger.warn("Unable to update indexed rule " + taskId + "; re-loading all rules", e);
+            }
+        }
         return false;
     }
 
-    synchronized private void writeRuleFile() throws Exception {
-        if (rulesFile != null) {
-            logger.trace("Writing rules file");
+    synchronized private void publishAllRules() throws Exception {
+        List<JSONObject> loaded = getRules();
+        // rules loaded from a stream are replaced by the registered ones so the filter has to follow
+        if (streamRulesLoaded) {
+            for (JSONObject rule : loaded) {
+                eventFilter.put(rule);
+            }
+        }
+        loadRules(RuleSnapshots.createRuleSetJSON(loaded).toString());
+        if (streamRulesLoaded) {
+            retainEventFilter(loaded);
+            streamRulesLoaded = false;
+        }
+    }
 
-            FileWriter writer = new FileWriter(rulesFile);
-            JSONObject rootJson = new JSONObject();
-            rootJson.put("name", "Hobson Rules");
-            rootJson.put("description", "Hobson Rules");
+    /**
+     * Schedules a snapshot of the current rules to be written to the rules file. If a snapshot is already pending,
+     * this is a no-op since the pending snapshot will pick up the latest rules.
+     */
+    private void scheduleSnapshot() {
+        if (rulesFile != null && snapshotPending.compareAndSet(false, true)) {
+            snapshotExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    snapshotPending.set(false);
+                    try {
+                        persistRules();
+                    } catch (Exception e) {
+                        logger.error("Error writing rules file", e);
+                    }
+                }
+            });
+        }
+    }
 
-            if (tasks.size() > 0) {
-                JSONArray rulesArray = new JSONArray();
-                for (HobsonTask task : tasks.values()) {
-                    rulesArray.put(createTaskJSON(conditionClassProvider, task));
+    /**
+     * Makes the latest rule changes durable. With a journal, the records appended since the last call share a
+     * single fsync and the journal is compacted once it has grown past the compaction threshold; otherwise a full
+     * snapshot is written.
+     *
+     * @throws Exception on failure
+     */
+    private void persistRules() throws Exception {
+        synchronized (this) {
+            if (journal != null) {
+                journal.sync();
+                if (journal.getRecordCount() >= journalCompactionThreshold) {
+                    compactJournal();
                 }
-                rootJson.put("rules", rulesArray);
+                return;
             }
+        }
+        writeRuleFile();
+    }
+
+    /**
+     * Writes a full snapshot and empties the journal. The provider lock is held throughout so that no change can be
+     * journaled between the two.
+     *
+     * @throws Exception on failure
+     */
+    synchronized private void compactJournal() throws Exception {
+        writeRuleFile();
+        journal.reset();
+        logger.debug("Compacted rule journal into {}", rulesFile);
+    }
+
+    private void writeRuleFile() throws Exception {
+        List<JSONObject> snapshot;
+        RuleSnapshotFormat format;
+        File file;
+        synchronized (this) {
+            file = rulesFile;
+            format = rulesFileFormat;
+            snapshot = getRules();
+        }
 
-            writer.write(rootJson.toString());
-            writer.close();
+        if (file != null) {
+            logger.trace("Writing {} rules file", format);
+            synchronized (rulesFileLock) {
+                lastSnapshotBytes = RuleSnapshots.write(file, snapshot, format);
+            }
         } else {
             logger.warn("No rules file defined; unable to write changes");
         }
     }
 
-    private JSONObject createTaskJSON(TaskConditionClassProvider provider, HobsonTask task) {
+    private JSONObject createTaskJSON(HobsonTask task, TriggerConditionCache.Entry trigger) {
         JSONObject rule = new JSONObject();
         rule.put("name", task.getContext().getTaskId());
         if (task.getName() != null) {
@@ -272,20 +1296,7 @@ public class JRETaskProvider implements TaskProvider {
         }
         rule.put("enabled", task.isEnabled());
 
-        PropertyContainer triggerCondition = TaskHelper.getTriggerCondition(provider, task.getConditions());
-
-        if (triggerCondition != null) {
-            TaskConditionClass tcc = provider.getConditionClass(triggerCondition.getContainerClassContext());
-            if (tcc != null) {
-                if (tcc instanceof AbstractRuleConditionClass) {
-                    rule.put("assumptions", ((AbstractRuleConditionClass)tcc).createAssumptionJSON(triggerCondition));
-                } else {
-                    throw new HobsonRuntimeException("Unable to create rule with non-rule based trigger condition: " + triggerCondition);
-                }
-            } else {
-                throw new HobsonRuntimeException("Unable to create JSON for rule with unknown trigger condition: " + triggerCondition);
-            }
-        }
+        rule.put("assumptions", trigger.getConditionClass().createAssumptionJSON(trigger.getCondition()));
 
         JSONArray actions = new JSONArray();
         JSONObject action = new JSONObject();
@@ -296,4 +1307,52 @@ public class JRETaskProvider implements TaskProvider {
 
         return rule;
     }
+
+    /**
+     * A task along with everything derived from its conditions, ready to be registered.
+     */
+    private static class CompiledTask {
+        final HobsonTask task;
+        final JSONObject rule;
+        final ThresholdGate gate;
+        final TriggerThrottle throttle;
+        final String conditionClassId;
+
+        CompiledTask(HobsonTask task, JSONObject rule, ThresholdGate gate, TriggerThrottle throttle, String conditionClassId) {
+            this.task = task;
+            this.rule = rule;
+            this.gate = gate;
+            this.throttle = throttle;
+            this.conditionClassId = conditionClassId;
+        }
+    }
+
+    /**
+     * Compiles a range of task contexts by splitting it in half until the ranges are small enough to compile
+     * directly. Results are returned in the same order as the contexts.
+     */
+    private class CompileTasks extends RecursiveTask<List<CompiledTask>> {
+        private final List<TaskContext> ctxs;
+        private final int from;
+        private final int to;
+
+        CompileTasks(List<TaskContext> ctxs, int from, int to) {
+            this.ctxs = ctxs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<CompiledTask> compute() {
+            if (to - from <= REGISTRATION_SPLIT_SIZE) {
+                return compileTasks(ctxs, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            CompileTasks left = new CompileTasks(ctxs, from, mid);
+            left.fork();
+            List<CompiledTask> results = new CompileTasks(ctxs, mid, to).compute();
+            results.addAll(0, left.join());
+            return results;
+        }
+    }
 }
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.jruleengine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.rules.RuleRuntime;
+import javax.rules.StatelessRuleSession;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of stateless rule sessions bound to a single registered rule execution set URI. This avoids the cost
+ * of creating and releasing a JSR-94 session for every event that is processed.
+ *
+ * A pool is never re-pointed at a different URI. When a new execution set is registered, a replacement pool is
+ * created via rebuild() and the old one is drained so that no session for a stale execution set is ever handed out.
+ *
+ * @author Dan Noguerol
+ */
+public class RuleSessionPool {
+    private static final Logger logger = LoggerFactory.getLogger(RuleSessionPool.class);
+
+    private final RuleRuntime runtime;
+    private final String ruleUri;
+    private final int capacity;
+    private final BlockingQueue<StatelessRuleSession> idle;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param runtime the rule runtime used to create new sessions
+     * @param ruleUri the URI of the registered rule execution set
+     * @param capacity the maximum number of idle sessions to retain
+     */
+    public RuleSessionPool(RuleRuntime runtime, String ruleUri, int capacity) {
+        this(runtime, ruleUri, capacity, new AtomicLong(), new AtomicLong());
+    }
+
+    private RuleSessionPool(RuleRuntime runtime, String ruleUri, int capacity, AtomicLong hits, AtomicLong misses) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Session pool capacity must be at least 1");
+        }
+        this.runtime = runtime;
+        this.ruleUri = ruleUri;
+        this.capacity = capacity;
+        this.idle = new ArrayBlockingQueue<>(capacity);
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    public String getRuleUri() {
+        return ruleUri;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the number of acquisitions that were satisfied by an idle session.
+     *
+     * @return a long
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of acquisitions that required a new session to be created.
+     *
+     * @return a long
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Acquires a session from the pool, creating a new one if no idle session is available.
+     *
+     * @return a StatelessRuleSession
+     * @throws Exception on failure
+     */
+    public StatelessRuleSession acquire() throws Exception {
+        StatelessRuleSession session = idle.poll();
+        if (session != null) {
+            hits.incrementAndGet();
+            return session;
+        }
+        misses.incrementAndGet();
+        return (StatelessRuleSession)runtime.createRuleSession(ruleUri, new HashMap(), RuleRuntime.STATELESS_SESSION_TYPE);
+    }
+
+    /**
+     * Returns a session to the pool. If the pool is full or has been drained, the session is released instead.
+     *
+     * @param session the session to return
+     */
+    public void release(StatelessRuleSession session) {
+        if (closed || !idle.offer(session)) {
+            closeSession(session);
+        } else if (closed) {
+            // the pool was drained while the session was being returned
+            drain();
+        }
+    }
+
+    /**
+     * Discards a session that should not be re-used (e.g. because rule execution failed).
+     *
+     * @param session the session to discard
+     */
+    public void invalidate(StatelessRuleSession session) {
+        closeSession(session);
+    }
+
+    /**
+     * Creates a replacement pool for a newly registered rule execution set and drains this one. Hit and miss
+     * counters carry over to the new pool.
+     *
+     * @param newRuleUri the URI of the new rule execution set
+     * @param newCapacity the capacity of the new pool
+     *
+     * @return a new RuleSessionPool
+     */
+    public RuleSessionPool rebuild(String newRuleUri, int newCapacity) {
+        RuleSessionPool pool = new RuleSessionPool(runtime, newRuleUri, newCapacity, hits, misses);
+        drain();
+        return pool;
+    }
+
+    /**
+     * Releases all idle sessions and prevents any further sessions from being retained.
+     */
+    public void drain() {
+        closed = true;
+        StatelessRuleSession session;
+        while ((session = idle.poll()) != null) {
+            closeSession(session);
+        }
+    }
+
+    private void closeSession(StatelessRuleSession session) {
+        try {
+            session.release();
+        } catch (Exception e) {
+            logger.error("Error closing rule session", e);
+        }
+    }
+}
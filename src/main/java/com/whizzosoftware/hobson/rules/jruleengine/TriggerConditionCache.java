@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.jruleengine;
+
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.task.HobsonTask;
+import com.whizzosoftware.hobson.api.task.TaskHelper;
+import com.whizzosoftware.hobson.api.task.condition.TaskConditionClass;
+import com.whizzosoftware.hobson.api.task.condition.TaskConditionClassProvider;
+import com.whizzosoftware.hobson.rules.condition.AbstractRuleConditionClass;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches each task's resolved trigger condition and condition class by task ID so that re-compiling a task's rule
+ * doesn't require the task manager to resolve them again. Tasks whose trigger condition isn't rule-based are cached
+ * too so that they are only checked once. A trigger condition whose class can't be resolved isn't cached, since the
+ * class may simply not have been published yet.
+ *
+ * Entries must be invalidated whenever a task changes. This class is thread-safe.
+ *
+ * @author Dan Noguerol
+ */
+public class TriggerConditionCache {
+    private static final Entry NOT_OWNED = new Entry(null, null);
+
+    private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns a task's rule-based trigger condition, resolving it if it isn't already cached.
+     *
+     * @param task the task
+     * @param provider the provider used to resolve condition classes
+     *
+     * @return an Entry (or null if the task doesn't have a rule-based trigger condition)
+     */
+    public Entry get(HobsonTask task, TaskConditionClassProvider provider) {
+        String taskId = task.getContext().getTaskId();
+        Entry e = entries.get(taskId);
+        if (e != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            e = resolve(task, provider);
+            if (e == null) {
+                return null;
+            }
+            Entry existing = entries.putIfAbsent(taskId, e);
+            if (existing != null) {
+                e = existing;
+            }
+        }
+        return (e != NOT_OWNED) ? e : null;
+    }
+
+    /**
+     * Indicates whether a task's trigger condition resolved to a condition class that isn't rule-based. A task
+     * whose trigger condition can't be resolved yet is not considered unowned.
+     *
+     * @param task the task
+     * @param provider the provider used to resolve condition classes
+     *
+     * @return a boolean
+     */
+    public boolean isNotOwned(HobsonTask task, TaskConditionClassProvider provider) {
+        return (get(task, provider) == null && entries.get(task.getContext().getTaskId()) == NOT_OWNED);
+    }
+
+    /**
+     * Removes a task's cached trigger condition.
+     *
+     * @param taskId the task ID
+     */
+    public void invalidate(String taskId) {
+        entries.remove(taskId);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Resolves a task's trigger condition.
+     *
+     * @param task the task
+     * @param provider the provider used to resolve condition classes
+     *
+     * @return an Entry, NOT_OWNED if the trigger condition's class isn't rule-based or null if the trigger
+     * condition or its class couldn't be resolved (e.g. because the class hasn't been published yet)
+     */
+    private Entry resolve(HobsonTask task, TaskConditionClassProvider provider) {
+        PropertyContainer triggerCondition = TaskHelper.getTriggerCondition(provider, task.getConditions());
+        if (triggerCondition != null) {
+            TaskConditionClass tcc = provider.getConditionClass(triggerCondition.getContainerClassContext());
+            if (tcc instanceof AbstractRuleConditionClass) {
+                return new Entry(triggerCondition, (AbstractRuleConditionClass)tcc);
+            } else if (tcc != null) {
+                return NOT_OWNED;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A task's resolved trigger condition.
+     */
+    public static class Entry {
+        private final PropertyContainer condition;
+        private final AbstractRuleConditionClass conditionClass;
+
+        Entry(PropertyContainer condition, AbstractRuleConditionClass conditionClass) {
+            this.condition = condition;
+            this.conditionClass = conditionClass;
+        }
+
+        public PropertyContainer getCondition() {
+            return condition;
+        }
+
+        public AbstractRuleConditionClass getConditionClass() {
+            return conditionClass;
+        }
+
+        public String getConditionClassId() {
+            return (condition.getContainerClassContext() != null) ? condition.getContainerClassContext().getContainerClassId() : null;
+        }
+    }
+}
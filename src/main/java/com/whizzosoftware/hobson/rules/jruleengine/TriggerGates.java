@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.jruleengine;
+
+import com.whizzosoftware.hobson.rules.condition.ThresholdGate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The threshold gates of all edge-triggered tasks, keyed by the trigger string each task's rule fires. Gates are
+ * also indexed by device so that each event only has to be shown to the gates monitoring its devices.
+ *
+ * @author Dan Noguerol
+ */
+public class TriggerGates {
+    private static final ThresholdGate[] NONE = new ThresholdGate[0];
+
+    private final Map<String,ThresholdGate> byTrigger = new ConcurrentHashMap<>();
+    private volatile Map<String,ThresholdGate[]> byDevice = Collections.emptyMap();
+
+    /**
+     * Sets (or clears) the gate for a trigger. An existing gate for the trigger is kept, along with its per-device
+     * state, if the new gate is equivalent to it.
+     *
+     * @param trigger the trigger string
+     * @param gate the gate (or null to remove any existing gate)
+     */
+    synchronized public void put(String trigger, ThresholdGate gate) {
+        putAll(Collections.singletonMap(trigger, gate));
+    }
+
+    /**
+     * Sets (or clears) the gates for a number of triggers, updating the device index once for all of them.
+     *
+     * @param gates the gates keyed by trigger string (a null gate removes any existing gate for its trigger)
+     */
+    synchronized public void putAll(Map<String,ThresholdGate> gates) {
+        Map<String,ThresholdGate[]> index = null;
+        for (Map.Entry<String,ThresholdGate> e : gates.entrySet()) {
+            ThresholdGate gate = e.getValue();
+            ThresholdGate old = byTrigger.get(e.getKey());
+            if (old == gate || (old != null && old.isEquivalent(gate))) {
+                continue;
+            }
+            if (index == null) {
+                index = new HashMap<>(byDevice);
+            }
+            if (old != null) {
+                unindex(index, old);
+            }
+            if (gate != null) {
+                byTrigger.put(e.getKey(), gate);
+                index(index, gate);
+            } else {
+                byTrigger.remove(e.getKey());
+            }
+        }
+        if (index != null) {
+            byDevice = index;
+        }
+    }
+
+    synchronized public void remove(String trigger) {
+        put(trigger, null);
+    }
+
+    public ThresholdGate get(String trigger) {
+        return byTrigger.get(trigger);
+    }
+
+    public int size() {
+        return byTrigger.size();
+    }
+
+    /**
+     * Shows each event context to the gates monitoring its device. This must be called for every event before its
+     * rules are evaluated.
+     *
+     * @param ctxs the event contexts
+     */
+    public void observe(List<JREEventContext> ctxs) {
+        Map<String,ThresholdGate[]> index = byDevice;
+        if (!index.isEmpty()) {
+            for (int i=0; i < ctxs.size(); i++) {
+                JREEventContext ctx = ctxs.get(i);
+                if (ctx.deviceCtx() != null && ctx.variableName() != null) {
+                    ThresholdGate[] gates = index.get(ctx.deviceCtx());
+                    if (gates != null) {
+                        for (ThresholdGate gate : gates) {
+                            gate.observe(ctx.deviceCtx(), ctx.variableName(), ctx.variableValue());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines whether a trigger may fire for the current event.
+     *
+     * @param trigger the trigger string
+     * @param ctxs the current event's contexts
+     *
+     * @return true if the trigger has no gate or one of the event's updates crossed the gate's threshold
+     */
+    public boolean allow(String trigger, List<JREEventContext> ctxs) {
+        ThresholdGate gate = byTrigger.get(trigger);
+        if (gate == null) {
+            return true;
+        }
+        if (ctxs != null) {
+            for (int i=0; i < ctxs.size(); i++) {
+                if (gate.consumeCrossing(ctxs.get(i).deviceCtx())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void index(Map<String,ThresholdGate[]> index, ThresholdGate gate) {
+        for (String device : gate.getDevices()) {
+            ThresholdGate[] gates = index.get(device);
+            if (gates == null) {
+                index.put(device, new ThresholdGate[] {gate});
+            } else {
+                ThresholdGate[] a = Arrays.copyOf(gates, gates.length + 1);
+                a[gates.length] = gate;
+                index.put(device, a);
+            }
+        }
+    }
+
+    private void unindex(Map<String,ThresholdGate[]> index, ThresholdGate gate) {
+        for (String device : gate.getDevices()) {
+            ThresholdGate[] gates = index.get(device);
+            if (gates != null) {
+                List<ThresholdGate> l = new ArrayList<>(gates.length);
+                for (ThresholdGate g : gates) {
+                    if (g != gate) {
+                        l.add(g);
+                    }
+                }
+                if (l.isEmpty()) {
+                    index.remove(device);
+                } else {
+                    index.put(device, l.toArray(NONE));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.jruleengine;
+
+import com.whizzosoftware.hobson.rules.condition.TriggerThrottle;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enforces the debounce, minimum interval and rate limits of throttled tasks before their triggers are dispatched.
+ *
+ * Debounced triggers are deferred using a hashed wheel timer so that a large number of pending debounces costs
+ * little more than a slot in the wheel. When a debounce expires, the trigger is handed to the Dispatcher (on the
+ * timer thread) if the task's other limits allow it.
+ *
+ * @author Dan Noguerol
+ */
+public class TriggerLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(TriggerLimiter.class);
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    public enum Decision {
+        FIRE,
+        DEFER,
+        SUPPRESS
+    }
+
+    /**
+     * Fires triggers whose debounce period has expired.
+     */
+    public interface Dispatcher {
+        void dispatch(String trigger);
+    }
+
+    private final Dispatcher dispatcher;
+    private final Map<String,State> states = new ConcurrentHashMap<>();
+    private final AtomicLong deferredCount = new AtomicLong();
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private Timer timer;
+
+    public TriggerLimiter(Dispatcher dispatcher) {
+        this(dispatcher, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dispatcher the dispatcher for debounced triggers
+     * @param timer the timer used to schedule debounces (if null, a hashed wheel timer is created when first needed)
+     */
+    public TriggerLimiter(Dispatcher dispatcher, Timer timer) {
+        this.dispatcher = dispatcher;
+        this.timer = timer;
+    }
+
+    /**
+     * Sets (or clears) the limits for a trigger. If the trigger already has limits, its firing history is kept.
+     *
+     * @param trigger the trigger string
+     * @param throttle the limits (or null to remove any existing limits)
+     */
+    public void put(String trigger, TriggerThrottle throttle) {
+        if (throttle == null || !throttle.isEnabled()) {
+            remove(trigger);
+        } else {
+            State s = states.get(trigger);
+            if (s != null) {
+                synchronized (s) {
+                    s.throttle = throttle;
+                    if (!throttle.hasDebounce()) {
+                        s.cancelPending();
+                    }
+                }
+            } else {
+                states.put(trigger, new State(throttle));
+            }
+        }
+    }
+
+    /**
+     * Removes the limits for a trigger and cancels any pending debounce.
+     *
+     * @param trigger the trigger string
+     */
+    public void remove(String trigger) {
+        State s = states.remove(trigger);
+        if (s != null) {
+            synchronized (s) {
+                s.cancelPending();
+            }
+        }
+    }
+
+    public TriggerThrottle get(String trigger) {
+        State s = states.get(trigger);
+        return (s != null) ? s.throttle : null;
+    }
+
+    public int size() {
+        return states.size();
+    }
+
+    /**
+     * Decides what to do with a trigger whose rule has matched.
+     *
+     * @param trigger the trigger string
+     *
+     * @return FIRE if the trigger should be dispatched now, DEFER if it will be dispatched when its debounce
+     * expires or SUPPRESS if it should be dropped
+     */
+    public Decision offer(String trigger) {
+        return offer(trigger, now());
+    }
+
+    Decision offer(String trigger, long nowMillis) {
+        State s = states.get(trigger);
+        if (s == null) {
+            return Decision.FIRE;
+        }
+        synchronized (s) {
+            TriggerThrottle t = s.throttle;
+            if (t.hasDebounce()) {
+                s.cancelPending();
+                s.pending = getTimer().newTimeout(new DebounceTask(trigger, s), t.getDebounceMillis(), TimeUnit.MILLISECONDS);
+                deferredCount.incrementAndGet();
+                return Decision.DEFER;
+            } else if (s.tryAcquire(nowMillis)) {
+                return Decision.FIRE;
+            }
+        }
+        suppressedCount.incrementAndGet();
+        return Decision.SUPPRESS;
+    }
+
+    /**
+     * Returns the number of triggers currently waiting for their debounce to expire.
+     *
+     * @return an int
+     */
+    public int getPendingCount() {
+        int count = 0;
+        for (State s : states.values()) {
+            if (s.pending != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getDeferredCount() {
+        return deferredCount.get();
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    /**
+     * Cancels all pending debounces and stops the timer.
+     */
+    public void stop() {
+        for (State s : states.values()) {
+            synchronized (s) {
+                s.cancelPending();
+            }
+        }
+        synchronized (this) {
+            if (timer != null) {
+                timer.stop();
+                timer = null;
+            }
+        }
+    }
+
+    synchronized private Timer getTimer() {
+        if (timer == null) {
+            timer = new HashedWheelTimer(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Rules Trigger Debounce");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+        }
+        return timer;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private class DebounceTask implements TimerTask {
+        private final String trigger;
+        private final State state;
+
+        DebounceTask(String trigger, State state) {
+            this.trigger = trigger;
+            this.state = state;
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            boolean fire;
+            synchronized (state) {
+                // a later match or a task update may have superseded this debounce
+                if (state.pending != timeout || states.get(trigger) != state) {
+                    return;
+                }
+                state.pending = null;
+                fire = state.tryAcquire(now());
+            }
+            if (fire) {
+                try {
+                    dispatcher.dispatch(trigger);
+                } catch (Exception e) {
+                    logger.error("Error dispatching debounced trigger " + trigger, e);
+                }
+            } else {
+                suppressedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The firing history of a single trigger. All access is synchronized on the instance.
+     */
+    private static class State {
+        TriggerThrottle throttle;
+        volatile Timeout pending;
+        boolean fired;
+        long lastFire;
+        boolean bucketStarted;
+        double tokens;
+        long lastRefill;
+
+        State(TriggerThrottle throttle) {
+            this.throttle = throttle;
+        }
+
+        void cancelPending() {
+            if (pending != null) {
+                pending.cancel();
+                pending = null;
+            }
+        }
+
+        boolean tryAcquire(long now) {
+            if (throttle.getMinIntervalMillis() > 0 && fired && now - lastFire < throttle.getMinIntervalMillis()) {
+                return false;
+            }
+            if (throttle.hasRateLimit()) {
+                if (!bucketStarted) {
+                    tokens = throttle.getBurst();
+                    bucketStarted = true;
+                } else {
+                    tokens = Math.min(throttle.getBurst(), tokens + (now - lastRefill) * throttle.getRatePerMinute() / 60000.0);
+                }
+                lastRefill = now;
+                if (tokens < 1) {
+                    return false;
+                }
+                tokens -= 1;
+            }
+            fired = true;
+            lastFire = now;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.metrics;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with logarithmic buckets in the style of HdrHistogram. Each power of two is split
+ * into 8 linear sub-buckets so recorded values keep roughly 3 significant bits (a worst-case error of 12.5%)
+ * while the whole range from 1ns to ~18 minutes fits in a few hundred counters.
+ *
+ * Recording a value is a handful of atomic increments and never allocates.
+ *
+ * @author Dan Noguerol
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(getBucketIndex(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the largest recorded latency.
+     *
+     * @return the latency in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean recorded latency.
+     *
+     * @return the latency in nanoseconds
+     */
+    public long getMean() {
+        long c = count.get();
+        return (c > 0) ? total.get() / c : 0;
+    }
+
+    /**
+     * Returns the latency at or below which the given percentage of recorded values fall. The result is the upper
+     * bound of the bucket containing the percentile, capped at the largest recorded value.
+     *
+     * @param percentile the percentile (0-100)
+     *
+     * @return the latency in nanoseconds
+     */
+    public long getValueAtPercentile(double percentile) {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(c * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+        long seen = 0;
+        for (int i=0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                // the last bucket also holds everything beyond the tracked range
+                return (i == BUCKET_COUNT - 1) ? max.get() : Math.min(getBucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        for (int i=0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Returns a summary of the histogram with latencies in microseconds.
+     *
+     * @return a JSONObject
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("count", getCount());
+        json.put("mean", toMicros(getMean()));
+        json.put("p50", toMicros(getValueAtPercentile(50)));
+        json.put("p90", toMicros(getValueAtPercentile(90)));
+        json.put("p99", toMicros(getValueAtPercentile(99)));
+        json.put("p999", toMicros(getValueAtPercentile(99.9)));
+        json.put("max", toMicros(getMax()));
+        return json;
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int)value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_COUNT + (int)(value >> shift);
+    }
+
+    static long getBucketUpperBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    private long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
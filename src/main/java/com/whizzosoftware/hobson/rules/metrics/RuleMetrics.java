@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.metrics;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing and match statistics for rule evaluation. The four latency stages follow an event from the queue to the
+ * task manager so a late task can be attributed to the stage that delayed it:
+ *
+ * <ul>
+ *   <li>queue wait: time spent in the event queue before evaluation started</li>
+ *   <li>session acquisition: time spent acquiring a JRuleEngine session</li>
+ *   <li>evaluation: time spent matching the event against rules (excluding trigger dispatch)</li>
+ *   <li>trigger dispatch: time spent in TaskManager.fireTaskTrigger()</li>
+ * </ul>
+ *
+ * When triggers are dispatched asynchronously, the dispatch lag is the time a trigger waited for a dispatch
+ * thread (and for any earlier trigger of the same task to finish) before it was handed to the TaskManager.
+ *
+ * Matches are counted per rule and per condition class each time a rule fires its task trigger.
+ *
+ * @author Dan Noguerol
+ */
+public class RuleMetrics {
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram sessionAcquisition = new LatencyHistogram();
+    private final LatencyHistogram evaluation = new LatencyHistogram();
+    private final LatencyHistogram triggerDispatch = new LatencyHistogram();
+    private final LatencyHistogram dispatchLag = new LatencyHistogram();
+    private final LatencyHistogram taskRegistration = new LatencyHistogram();
+    private final AtomicLong eventCount = new AtomicLong();
+    private final AtomicLong filteredEventCount = new AtomicLong();
+    private final AtomicLong suppressedTriggerCount = new AtomicLong();
+    private final AtomicLong rejectedTriggerCount = new AtomicLong();
+    private final Map<String,RuleStats> rules = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,AtomicLong> conditionClassMatches = new ConcurrentHashMap<>();
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getSessionAcquisition() {
+        return sessionAcquisition;
+    }
+
+    public LatencyHistogram getEvaluation() {
+        return evaluation;
+    }
+
+    public LatencyHistogram getTriggerDispatch() {
+        return triggerDispatch;
+    }
+
+    public LatencyHistogram getDispatchLag() {
+        return dispatchLag;
+    }
+
+    /**
+     * Returns the time taken by each bulk task registration (e.g. the one performed at startup).
+     *
+     * @return a LatencyHistogram
+     */
+    public LatencyHistogram getTaskRegistration() {
+        return taskRegistration;
+    }
+
+    /**
+     * Returns the number of events that have been evaluated.
+     *
+     * @return a long
+     */
+    public long getEventCount() {
+        return eventCount.get();
+    }
+
+    public void recordEvent() {
+        eventCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of events that were discarded without being evaluated because no rule could match them.
+     *
+     * @return a long
+     */
+    public long getFilteredEventCount() {
+        return filteredEventCount.get();
+    }
+
+    public void recordFilteredEvent() {
+        filteredEventCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of matches that didn't fire their trigger because an edge-triggered condition's
+     * threshold wasn't crossed.
+     *
+     * @return a long
+     */
+    public long getSuppressedTriggerCount() {
+        return suppressedTriggerCount.get();
+    }
+
+    public void recordSuppressedTrigger() {
+        suppressedTriggerCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of triggers that were dropped because the trigger dispatcher was full or stopped.
+     *
+     * @return a long
+     */
+    public long getRejectedTriggerCount() {
+        return rejectedTriggerCount.get();
+    }
+
+    public void recordRejectedTrigger() {
+        rejectedTriggerCount.incrementAndGet();
+    }
+
+    /**
+     * Associates a rule's trigger with its task ID and condition class so that matches can be attributed. Match
+     * counts for a rule that is already registered are retained.
+     *
+     * @param trigger the trigger string the rule fires (i.e. the task context string)
+     * @param taskId the task ID
+     * @param conditionClassId the ID of the rule's trigger condition class (may be null)
+     */
+    public void registerRule(String trigger, String taskId, String conditionClassId) {
+        RuleStats stats = rules.get(trigger);
+        if (stats == null || !equals(stats.conditionClassId, conditionClassId)) {
+            rules.put(trigger, new RuleStats(taskId, conditionClassId, (stats != null) ? stats.matches : new AtomicLong()));
+        }
+    }
+
+    /**
+     * Stops tracking a rule.
+     *
+     * @param trigger the trigger string the rule fires
+     */
+    public void unregisterRule(String trigger) {
+        rules.remove(trigger);
+    }
+
+    /**
+     * Records that a rule fired its trigger.
+     *
+     * @param trigger the trigger string
+     */
+    public void recordMatch(String trigger) {
+        RuleStats stats = rules.get(trigger);
+        if (stats != null) {
+            stats.matches.incrementAndGet();
+            if (stats.conditionClassId != null) {
+                AtomicLong l = conditionClassMatches.get(stats.conditionClassId);
+                if (l == null) {
+                    l = new AtomicLong();
+                    AtomicLong existing = conditionClassMatches.putIfAbsent(stats.conditionClassId, l);
+                    if (existing != null) {
+                        l = existing;
+                    }
+                }
+                l.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of times each registered rule has matched.
+     *
+     * @return a Map of task ID to match count
+     */
+    public Map<String,Long> getRuleMatchCounts() {
+        Map<String,Long> results = new HashMap<>();
+        for (RuleStats stats : rules.values()) {
+            results.put(stats.taskId, stats.matches.get());
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of times rules of each condition class have matched.
+     *
+     * @return a Map of condition class ID to match count
+     */
+    public Map<String,Long> getConditionClassMatchCounts() {
+        Map<String,Long> results = new HashMap<>();
+        for (Map.Entry<String,AtomicLong> e : conditionClassMatches.entrySet()) {
+            results.put(e.getKey(), e.getValue().get());
+        }
+        return results;
+    }
+
+    /**
+     * Clears all timings and match counts. Registered rules remain registered.
+     */
+    public void reset() {
+        queueWait.reset();
+        sessionAcquisition.reset();
+        evaluation.reset();
+        triggerDispatch.reset();
+        dispatchLag.reset();
+        taskRegistration.reset();
+        eventCount.set(0);
+        filteredEventCount.set(0);
+        suppressedTriggerCount.set(0);
+        rejectedTriggerCount.set(0);
+        for (RuleStats stats : rules.values()) {
+            stats.matches.set(0);
+        }
+        conditionClassMatches.clear();
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("events", getEventCount());
+        json.put("filteredEvents", getFilteredEventCount());
+        json.put("suppressedTriggers", getSuppressedTriggerCount());
+        json.put("rejectedTriggers", getRejectedTriggerCount());
+        json.put("queueWait", queueWait.toJSON());
+        json.put("sessionAcquisition", sessionAcquisition.toJSON());
+        json.put("evaluation", evaluation.toJSON());
+        json.put("triggerDispatch", triggerDispatch.toJSON());
+        json.put("dispatchLag", dispatchLag.toJSON());
+        json.put("taskRegistration", taskRegistration.toJSON());
+        json.put("ruleMatches", toJSON(getRuleMatchCounts()));
+        json.put("conditionClassMatches", toJSON(getConditionClassMatchCounts()));
+        return json;
+    }
+
+    private JSONObject toJSON(Map<String,Long> counts) {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String,Long> e : counts.entrySet()) {
+            json.put(e.getKey(), (long)e.getValue());
+        }
+        return json;
+    }
+
+    private boolean equals(String s1, String s2) {
+        return (s1 == null) ? s2 == null : s1.equals(s2);
+    }
+
+    private static class RuleStats {
+        final String taskId;
+        final String conditionClassId;
+        final AtomicLong matches;
+
+        RuleStats(String taskId, String conditionClassId, AtomicLong matches) {
+            this.taskId = taskId;
+            this.conditionClassId = conditionClassId;
+            this.matches = matches;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An event processing stage that merges device variable updates for the same device variable that arrive within
+ * a configurable window. The merged update retains the first old value and the last new value so rules see one
+ * logical transition rather than a burst of redundant ones.
+ *
+ * The first update to arrive opens a window; every update received until it closes joins the same batch, which
+ * is then passed downstream as a single event. Updates that arrived together therefore stay together, so batch
+ * evaluation still sees them as one event.
+ *
+ * Events other than variable updates are passed through immediately, but if any pending update is for the same
+ * device the whole batch is flushed ahead of them. Batches and pass-through events are handed downstream one at a
+ * time so per-device ordering is preserved no matter which thread emits them.
+ *
+ * @author Dan Noguerol
+ */
+public class EventCoalescer implements EventProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(EventCoalescer.class);
+
+    private final EventProcessor downstream;
+    private final long windowMs;
+    private final ScheduledExecutorService scheduler;
+    private final Object emitLock = new Object();
+    private Map<String,Pending> pending = new LinkedHashMap<>();
+    private long pendingTimestamp;
+    private long batch;
+    private boolean flushScheduled;
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong mergedCount = new AtomicLong();
+    private final AtomicLong emittedCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param downstream the processor that receives coalesced events
+     * @param windowMs the coalescing window in milliseconds
+     */
+    public EventCoalescer(EventProcessor downstream, long windowMs) {
+        this(downstream, windowMs, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Rules Event Coalescer");
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param downstream the processor that receives coalesced events
+     * @param windowMs the coalescing window in milliseconds
+     * @param scheduler the scheduler used to flush pending updates when their window closes
+     */
+    public EventCoalescer(EventProcessor downstream, long windowMs, ScheduledExecutorService scheduler) {
+        if (windowMs < 1) {
+            throw new IllegalArgumentException("Coalescing window must be at least 1ms");
+        }
+        this.downstream = downstream;
+        this.windowMs = windowMs;
+        this.scheduler = scheduler;
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    /**
+     * Returns the number of variable updates received.
+     *
+     * @return a long
+     */
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * Returns the number of variable updates that were merged into an already pending update.
+     *
+     * @return a long
+     */
+    public long getMergedCount() {
+        return mergedCount.get();
+    }
+
+    /**
+     * Returns the number of coalesced variable updates passed downstream.
+     *
+     * @return a long
+     */
+    public long getEmittedCount() {
+        return emittedCount.get();
+    }
+
+    /**
+     * Returns the number of device variables with an update waiting for its window to close.
+     *
+     * @return an int
+     */
+    synchronized public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void processEvent(HobsonEvent event) {
+        if (event instanceof DeviceVariablesUpdateEvent) {
+            add((DeviceVariablesUpdateEvent)event);
+        } else {
+            String deviceKey = EventMerger.getOrderingKey(event);
+            if (deviceKey != null) {
+                synchronized (emitLock) {
+                    if (hasPendingForDevice(deviceKey)) {
+                        emit(takePending());
+                    }
+                    downstream.processEvent(event);
+                }
+            } else {
+                downstream.processEvent(event);
+            }
+        }
+    }
+
+    /**
+     * Flushes all pending updates and stops the scheduler.
+     */
+    public void stop() {
+        flush();
+        scheduler.shutdownNow();
+    }
+
+    private void add(DeviceVariablesUpdateEvent event) {
+        List<DeviceVariableUpdate> updates = event.getUpdates();
+        final long b;
+        receivedCount.addAndGet(updates.size());
+        synchronized (this) {
+            for (DeviceVariableUpdate update : updates) {
+                String key = EventMerger.getVariableKey(update);
+                Pending p = pending.get(key);
+                if (p != null) {
+                    p.update = EventMerger.merge(p.update, update);
+                    mergedCount.incrementAndGet();
+                } else {
+                    pending.put(key, new Pending(update.getContext().getDeviceContext().toString(), update));
+                }
+            }
+            pendingTimestamp = Math.max(pendingTimestamp, event.getTimestamp());
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+            b = batch;
+        }
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(b);
+                }
+            }, windowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the coalescer has been stopped; don't hold the updates
+            flush();
+        }
+    }
+
+    /**
+     * Passes the pending batch downstream.
+     */
+    void flush() {
+        synchronized (emitLock) {
+            emit(takePending());
+        }
+    }
+
+    /**
+     * Passes a batch downstream when its window closes unless it has already been flushed ahead of a pass-through
+     * event.
+     *
+     * @param b the batch number
+     */
+    private void flush(long b) {
+        synchronized (emitLock) {
+            HobsonEvent event = null;
+            synchronized (this) {
+                if (b == batch) {
+                    event = takePending();
+                }
+            }
+            emit(event);
+        }
+    }
+
+    synchronized private boolean hasPendingForDevice(String deviceKey) {
+        for (Pending p : pending.values()) {
+            if (p.deviceKey.equals(deviceKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized private HobsonEvent takePending() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        flushScheduled = false;
+        batch++;
+        List<DeviceVariableUpdate> updates = new ArrayList<>(pending.size());
+        for (Pending p : pending.values()) {
+            updates.add(p.update);
+        }
+        pending = new LinkedHashMap<>();
+        HobsonEvent event = new DeviceVariablesUpdateEvent(pendingTimestamp, updates);
+        pendingTimestamp = 0;
+        return event;
+    }
+
+    private void emit(HobsonEvent event) {
+        if (event != null) {
+            emittedCount.addAndGet(((DeviceVariablesUpdateEvent)event).getUpdates().size());
+            try {
+                downstream.processEvent(event);
+            } catch (Throwable t) {
+                logger.error("Error processing coalesced updates", t);
+            }
+        }
+    }
+
+    private static class Pending {
+        final String deviceKey;
+        DeviceVariableUpdate update;
+
+        Pending(String deviceKey, DeviceVariableUpdate update) {
+            this.deviceKey = deviceKey;
+            this.update = update;
+        }
+    }
+}
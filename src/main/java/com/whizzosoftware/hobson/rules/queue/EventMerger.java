@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceUnavailableEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.event.presence.PresenceUpdateNotificationEvent;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utility methods for routing and merging the events the rules plugin processes.
+ *
+ * @author Dan Noguerol
+ */
+public class EventMerger {
+    /**
+     * Returns the key that determines which events must be processed in order relative to each other. This is the
+     * device context for device events and the person context for presence events. A variable update event can
+     * contain updates for several devices; only the first device's context is returned, so callers that need
+     * every device should use getOrderingKeys().
+     *
+     * @param event the event
+     *
+     * @return a String (or null if the event has no natural ordering key)
+     */
+    static public String getOrderingKey(HobsonEvent event) {
+        if (event instanceof DeviceVariablesUpdateEvent) {
+            List<DeviceVariableUpdate> updates = ((DeviceVariablesUpdateEvent)event).getUpdates();
+            if (updates != null && updates.size() > 0) {
+                return updates.get(0).getContext().getDeviceContext().toString();
+            }
+        } else if (event instanceof DeviceUnavailableEvent) {
+            return ((DeviceUnavailableEvent)event).getDeviceContext().toString();
+        } else if (event instanceof PresenceUpdateNotificationEvent) {
+            return ((PresenceUpdateNotificationEvent)event).getEntityContext().toString();
+        }
+        return null;
+    }
+
+    /**
+     * Returns all the keys that determine which events must be processed in order relative to an event, i.e. the
+     * distinct device contexts of a variable update event in the order they first appear, or the single key
+     * returned by getOrderingKey() for any other event.
+     *
+     * @param event the event
+     *
+     * @return a List of keys (empty if the event has no natural ordering key)
+     */
+    static public List<String> getOrderingKeys(HobsonEvent event) {
+        if (event instanceof DeviceVariablesUpdateEvent) {
+            List<DeviceVariableUpdate> updates = ((DeviceVariablesUpdateEvent)event).getUpdates();
+            if (updates == null || updates.isEmpty()) {
+                return Collections.emptyList();
+            } else if (updates.size() == 1) {
+                return Collections.singletonList(updates.get(0).getContext().getDeviceContext().toString());
+            }
+            List<String> keys = new ArrayList<>(updates.size());
+            for (DeviceVariableUpdate u : updates) {
+                String key = u.getContext().getDeviceContext().toString();
+                if (!keys.contains(key)) {
+                    keys.add(key);
+                }
+            }
+            return keys;
+        }
+        String key = getOrderingKey(event);
+        return (key != null) ? Collections.singletonList(key) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Returns a key that uniquely identifies a device variable.
+     *
+     * @param update the variable update
+     *
+     * @return a String
+     */
+    static public String getVariableKey(DeviceVariableUpdate update) {
+        return update.getContext().getDeviceContext().toString() + "#" + update.getName();
+    }
+
+    /**
+     * Merges two updates to the same device variable into one logical transition that retains the first old
+     * value and the last new value.
+     *
+     * @param first the earlier update
+     * @param last the later update
+     *
+     * @return a DeviceVariableUpdate
+     */
+    static public DeviceVariableUpdate merge(DeviceVariableUpdate first, DeviceVariableUpdate last) {
+        return new DeviceVariableUpdate(last.getContext(), first.getOldValue(), last.getNewValue());
+    }
+
+    /**
+     * Attempts to merge a later event into an earlier one.
+     *
+     * @param earlier the earlier event
+     * @param later the later event
+     *
+     * @return the merged event or null if the two events can't be merged
+     */
+    static public HobsonEvent merge(HobsonEvent earlier, HobsonEvent later) {
+        if (earlier instanceof DeviceVariablesUpdateEvent && later instanceof DeviceVariablesUpdateEvent) {
+            Map<String,DeviceVariableUpdate> updates = new LinkedHashMap<>();
+            for (DeviceVariableUpdate u : ((DeviceVariablesUpdateEvent)earlier).getUpdates()) {
+                updates.put(getVariableKey(u), u);
+            }
+            for (DeviceVariableUpdate u : ((DeviceVariablesUpdateEvent)later).getUpdates()) {
+                String key = getVariableKey(u);
+                DeviceVariableUpdate first = updates.get(key);
+                updates.put(key, first != null ? merge(first, u) : u);
+            }
+            return new DeviceVariablesUpdateEvent(later.getTimestamp(), new ArrayList<>(updates.values()));
+        } else if (earlier instanceof DeviceUnavailableEvent && later instanceof DeviceUnavailableEvent) {
+            return later;
+        } else if (earlier instanceof PresenceUpdateNotificationEvent && later instanceof PresenceUpdateNotificationEvent) {
+            PresenceUpdateNotificationEvent e = (PresenceUpdateNotificationEvent)earlier;
+            PresenceUpdateNotificationEvent l = (PresenceUpdateNotificationEvent)later;
+            return new PresenceUpdateNotificationEvent(l.getTimestamp(), l.getEntityContext(), e.getOldLocation(), l.getNewLocation());
+        }
+        return null;
+    }
+}
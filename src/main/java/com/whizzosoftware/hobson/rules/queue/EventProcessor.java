@@ -0,0 +1,19 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+
+/**
+ * Interface for anything that evaluates events delivered by an EventQueue.
+ *
+ * @author Dan Noguerol
+ */
+public interface EventProcessor {
+    void processEvent(HobsonEvent event);
+}
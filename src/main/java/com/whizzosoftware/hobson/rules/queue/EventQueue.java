@@ -0,0 +1,457 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.rules.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue that decouples event delivery from rule evaluation. Events are submitted from the event bus
+ * thread and evaluated by a dedicated pool of worker threads.
+ *
+ * The queue is split into lanes, each served by a single worker. Events are assigned to a lane by their device
+ * (or person) context so events for the same device are always evaluated in the order they were submitted, while
+ * events for different devices can be evaluated in parallel. A variable update event with updates for devices
+ * that belong to different lanes is split so each lane receives an event containing only the updates for its own
+ * devices; this keeps every device ordered at the cost of evaluating those updates as separate batches. Updates
+ * for devices that share a lane stay in a single event.
+ *
+ * In the VIRTUAL execution mode, each lane's worker is a virtual thread rather than a platform thread so an
+ * evaluation that blocks doesn't tie up an OS thread.
+ *
+ * @author Dan Noguerol
+ */
+public class EventQueue {
+    private static final Logger logger = LoggerFactory.getLogger(EventQueue.class);
+
+    private final EventProcessor processor;
+    private final OverflowPolicy policy;
+    private final ExecutionMode mode;
+    private final Lane[] lanes;
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private volatile LatencyHistogram waitHistogram;
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     *
+     * @param processor the processor that evaluates dequeued events
+     * @param capacity the maximum number of queued events across all lanes
+     * @param laneCount the number of lanes (and worker threads)
+     * @param policy the policy to apply when a lane is full
+     */
+    public EventQueue(EventProcessor processor, int capacity, int laneCount, OverflowPolicy policy) {
+        this(processor, capacity, laneCount, policy, ExecutionMode.CLASSIC);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param processor the processor that evaluates dequeued events
+     * @param capacity the maximum number of queued events across all lanes
+     * @param laneCount the number of lanes (and worker threads)
+     * @param policy the policy to apply when a lane is full
+     * @param mode the kind of worker threads to use
+     */
+    public EventQueue(EventProcessor processor, int capacity, int laneCount, OverflowPolicy policy, ExecutionMode mode) {
+        if (capacity < 1 || laneCount < 1) {
+            throw new IllegalArgumentException("Event queue capacity and lane count must be at least 1");
+        }
+        this.processor = processor;
+        this.policy = policy;
+        this.mode = mode;
+        this.lanes = new Lane[laneCount];
+        int laneCapacity = Math.max(1, (capacity + laneCount - 1) / laneCount);
+        for (int i=0; i < laneCount; i++) {
+            lanes[i] = new Lane(laneCapacity);
+        }
+    }
+
+    /**
+     * Sets a histogram that records the time each event spends waiting in the queue.
+     *
+     * @param waitHistogram the histogram (or null to disable)
+     */
+    public void setWaitHistogram(LatencyHistogram waitHistogram) {
+        this.waitHistogram = waitHistogram;
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    synchronized public void start() {
+        if (!running) {
+            running = true;
+            ThreadFactory factory;
+            if (mode == ExecutionMode.VIRTUAL) {
+                factory = VirtualThreads.newThreadFactory("Rules Event Evaluator ");
+            } else {
+                final AtomicInteger threadNum = new AtomicInteger();
+                factory = new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Rules Event Evaluator " + threadNum.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                };
+            }
+            executor = Executors.newFixedThreadPool(lanes.length, factory);
+            for (final Lane lane : lanes) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        lane.drain();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads. Events already queued are evaluated before the workers exit.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the timeout units
+     *
+     * @return true if all workers exited within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized public boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+        if (running) {
+            running = false;
+            for (Lane lane : lanes) {
+                lane.wakeUp();
+            }
+            executor.shutdown();
+            return executor.awaitTermination(timeout, unit);
+        }
+        return true;
+    }
+
+    /**
+     * Submits an event for evaluation.
+     *
+     * @param event the event
+     *
+     * @return false if the queue has been stopped and the event (or part of a split event) was not accepted
+     * @throws InterruptedException if interrupted while waiting for space with the BLOCK policy
+     */
+    public boolean submit(HobsonEvent event) throws InterruptedException {
+        return submit(event, null);
+    }
+
+    /**
+     * Submits an event for evaluation. When an event is split across lanes, some lanes may accept their part
+     * before the queue is stopped; only the parts that weren't accepted are handed to the fallback processor so
+     * no update is evaluated twice.
+     *
+     * @param event the event
+     * @param fallback the processor that evaluates whatever the queue doesn't accept (or null to discard it)
+     *
+     * @return false if the queue has been stopped and the event (or part of a split event) was not accepted
+     * @throws InterruptedException if interrupted while waiting for space with the BLOCK policy
+     */
+    public boolean submit(HobsonEvent event, EventProcessor fallback) throws InterruptedException {
+        if (running) {
+            List<String> keys = EventMerger.getOrderingKeys(event);
+            long now = System.nanoTime();
+            if (keys.size() > 1 && lanes.length > 1) {
+                Map<Lane,List<DeviceVariableUpdate>> split = splitByLane((DeviceVariablesUpdateEvent)event);
+                if (split.size() > 1) {
+                    boolean accepted = true;
+                    for (Map.Entry<Lane,List<DeviceVariableUpdate>> e : split.entrySet()) {
+                        HobsonEvent laneEvent = new DeviceVariablesUpdateEvent(event.getTimestamp(), e.getValue());
+                        submittedCount.incrementAndGet();
+                        if (!e.getKey().put(new Entry(laneEvent, EventMerger.getOrderingKeys(laneEvent), now))) {
+                            accepted = false;
+                            if (fallback != null) {
+                                fallback.processEvent(laneEvent);
+                            }
+                        }
+                    }
+                    return accepted;
+                }
+            }
+            submittedCount.incrementAndGet();
+            if (getLane(keys.isEmpty() ? null : keys.get(0)).put(new Entry(event, keys, now))) {
+                return true;
+            }
+        }
+        if (fallback != null) {
+            fallback.processEvent(event);
+        }
+        return false;
+    }
+
+    private Map<Lane,List<DeviceVariableUpdate>> splitByLane(DeviceVariablesUpdateEvent event) {
+        Map<Lane,List<DeviceVariableUpdate>> split = new LinkedHashMap<>();
+        for (DeviceVariableUpdate u : event.getUpdates()) {
+            Lane lane = getLane(u.getContext().getDeviceContext().toString());
+            List<DeviceVariableUpdate> updates = split.get(lane);
+            if (updates == null) {
+                updates = new ArrayList<>();
+                split.put(lane, updates);
+            }
+            updates.add(u);
+        }
+        return split;
+    }
+
+    private Lane getLane(String key) {
+        return lanes[key != null ? (key.hashCode() & 0x7fffffff) % lanes.length : 0];
+    }
+
+    /**
+     * Returns the number of events currently waiting to be evaluated.
+     *
+     * @return an int
+     */
+    public int getDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.size();
+        }
+        return depth;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return mode;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * Returns the number of events discarded because a lane was full.
+     *
+     * @return a long
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of events merged into an already queued event.
+     *
+     * @return a long
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the mean time events spent waiting in the queue.
+     *
+     * @return the latency in microseconds
+     */
+    public long getMeanLatencyMicros() {
+        long count = processedCount.get();
+        return (count > 0) ? TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.get() / count) : 0;
+    }
+
+    /**
+     * Returns the longest time any event has spent waiting in the queue.
+     *
+     * @return the latency in microseconds
+     */
+    public long getMaxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get());
+    }
+
+    private void onDequeue(Entry entry) {
+        long latency = System.nanoTime() - entry.enqueueTime;
+        totalLatencyNanos.addAndGet(latency);
+        long max;
+        while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) {
+            // retry
+        }
+        LatencyHistogram h = waitHistogram;
+        if (h != null) {
+            h.record(latency);
+        }
+        try {
+            processor.processEvent(entry.event);
+        } catch (Throwable t) {
+            logger.error("Error evaluating event " + entry.event, t);
+        }
+        processedCount.incrementAndGet();
+    }
+
+    private static class Entry {
+        HobsonEvent event;
+        List<String> keys;
+        final long enqueueTime;
+
+        Entry(HobsonEvent event, List<String> keys, long enqueueTime) {
+            this.event = event;
+            this.keys = keys;
+            this.enqueueTime = enqueueTime;
+        }
+
+        boolean sharesKey(Entry entry) {
+            for (String key : entry.keys) {
+                if (keys.contains(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private class Lane {
+        private final ArrayDeque<Entry> entries;
+        private final int capacity;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+            this.entries = new ArrayDeque<>(capacity);
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean put(Entry entry) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                // checked under the lock so nothing is queued after a lane's worker has exited
+                if (!running) {
+                    return false;
+                }
+                while (entries.size() >= capacity) {
+                    if (!running) {
+                        return false;
+                    }
+                    switch (policy) {
+                        case COALESCE:
+                            if (coalesce(entry)) {
+                                coalescedCount.incrementAndGet();
+                                return true;
+                            }
+                            // fall through when there is nothing to merge with
+                        case DROP_OLDEST:
+                            Entry dropped = entries.poll();
+                            droppedCount.incrementAndGet();
+                            logger.debug("Event queue full; dropped event {}", dropped.event);
+                            break;
+                        default:
+                            notFull.await();
+                            break;
+                    }
+                }
+                entries.add(entry);
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Merges an entry into the most recent queued entry that shares any of its ordering keys. Merging with the
+         * most recent one preserves ordering since nothing for any of those keys is queued behind it.
+         *
+         * @param entry the new entry
+         *
+         * @return true if the entry was merged
+         */
+        private boolean coalesce(Entry entry) {
+            if (!entry.keys.isEmpty()) {
+                Iterator<Entry> it = entries.descendingIterator();
+                while (it.hasNext()) {
+                    Entry e = it.next();
+                    if (e.sharesKey(entry)) {
+                        HobsonEvent merged = EventMerger.merge(e.event, entry.event);
+                        if (merged != null) {
+                            e.event = merged;
+                            e.keys = EventMerger.getOrderingKeys(merged);
+                            return true;
+                        }
+                        return false;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void wakeUp() {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void drain() {
+            while (true) {
+                Entry entry;
+                lock.lock();
+                try {
+                    while (entries.isEmpty()) {
+                        if (!running) {
+                            return;
+                        }
+                        notEmpty.await();
+                    }
+                    entry = entries.poll();
+                    notFull.signal();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                onDequeue(entry);
+            }
+        }
+    }
+}
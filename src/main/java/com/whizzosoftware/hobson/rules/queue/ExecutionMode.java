@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+/**
+ * Determines what kind of threads the event queue and trigger dispatcher run on.
+ *
+ * @author Dan Noguerol
+ */
+public enum ExecutionMode {
+    /**
+     * Work runs on a fixed pool of platform threads.
+     */
+    CLASSIC,
+    /**
+     * Work runs on virtual threads. This requires a Java 21 (or later) runtime.
+     */
+    VIRTUAL
+}
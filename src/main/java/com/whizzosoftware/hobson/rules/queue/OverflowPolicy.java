@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+/**
+ * Determines what the event queue does when an event arrives and the queue is full.
+ *
+ * @author Dan Noguerol
+ */
+public enum OverflowPolicy {
+    /**
+     * The submitting thread waits until space is available.
+     */
+    BLOCK,
+    /**
+     * The oldest queued event is discarded to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * The event is merged into a queued event for the same device or person if there is one; otherwise the oldest
+     * queued event is discarded.
+     */
+    COALESCE
+}
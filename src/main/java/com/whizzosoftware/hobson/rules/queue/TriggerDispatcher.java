@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+import com.whizzosoftware.hobson.rules.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of threads that fires task triggers after rule evaluation has finished so that tasks talking to
+ * slow devices don't hold up the evaluation threads.
+ *
+ * Triggers are serialized by key (the task context string): a task's triggers run one at a time in the order they
+ * were submitted, while triggers for different tasks run in parallel. Once the number of waiting triggers reaches
+ * the dispatcher's capacity, further triggers are rejected.
+ *
+ * In the VIRTUAL execution mode, the thread count is ignored and each task's pending triggers are fired on their own
+ * virtual thread, so a large number of tasks blocked on slow devices can be waiting at once without a matching number
+ * of OS threads. The capacity still bounds the number of waiting triggers.
+ *
+ * @author Dan Noguerol
+ */
+public class TriggerDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(TriggerDispatcher.class);
+
+    private final int threadCount;
+    private final int capacity;
+    private final ExecutionMode mode;
+    private final ConcurrentHashMap<String,KeyQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile LatencyHistogram lagHistogram;
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     *
+     * @param threadCount the number of dispatch threads
+     * @param capacity the maximum number of triggers waiting to be dispatched
+     */
+    public TriggerDispatcher(int threadCount, int capacity) {
+        this(threadCount, capacity, ExecutionMode.CLASSIC);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threadCount the number of dispatch threads (ignored in the VIRTUAL mode)
+     * @param capacity the maximum number of triggers waiting to be dispatched
+     * @param mode the kind of dispatch threads to use
+     */
+    public TriggerDispatcher(int threadCount, int capacity, ExecutionMode mode) {
+        if (threadCount < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Trigger dispatcher thread count and capacity must be at least 1");
+        }
+        this.threadCount = threadCount;
+        this.capacity = capacity;
+        this.mode = mode;
+    }
+
+    /**
+     * Sets a histogram that records the time each trigger waits before it is dispatched.
+     *
+     * @param lagHistogram the histogram (or null to disable)
+     */
+    public void setLagHistogram(LatencyHistogram lagHistogram) {
+        this.lagHistogram = lagHistogram;
+    }
+
+    /**
+     * Starts the dispatch threads.
+     */
+    synchronized public void start() {
+        if (!running) {
+            if (mode == ExecutionMode.VIRTUAL) {
+                executor = VirtualThreads.newThreadPerTaskExecutor("Rules Trigger Dispatcher ");
+            } else {
+                final AtomicInteger threadNum = new AtomicInteger();
+                executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Rules Trigger Dispatcher " + threadNum.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            running = true;
+        }
+    }
+
+    /**
+     * Stops the dispatch threads. Triggers already accepted are dispatched before the threads exit.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the timeout units
+     *
+     * @return true if all threads exited within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized public boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+        if (running) {
+            running = false;
+            executor.shutdown();
+            return executor.awaitTermination(timeout, unit);
+        }
+        return true;
+    }
+
+    /**
+     * Submits a trigger for dispatch.
+     *
+     * @param key the serialization key
+     * @param trigger the work to perform
+     *
+     * @return false if the dispatcher is full or stopped and the trigger was rejected
+     */
+    public boolean submit(String key, Runnable trigger) {
+        if (!running) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        if (pendingCount.incrementAndGet() > capacity) {
+            pendingCount.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        submittedCount.incrementAndGet();
+        Entry entry = new Entry(trigger, System.nanoTime());
+
+        for (;;) {
+            KeyQueue q = queues.get(key);
+            if (q == null) {
+                q = new KeyQueue(key);
+                KeyQueue existing = queues.putIfAbsent(key, q);
+                if (existing != null) {
+                    q = existing;
+                }
+            }
+            synchronized (q) {
+                // an idle queue may have been retired between the lookup and the lock
+                if (q.retired) {
+                    continue;
+                }
+                q.entries.add(entry);
+                if (q.scheduled) {
+                    return true;
+                }
+                q.scheduled = true;
+            }
+            try {
+                executor.execute(q);
+                return true;
+            } catch (RejectedExecutionException e) {
+                q.rejectAll();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of triggers waiting to be dispatched.
+     *
+     * @return an int
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return mode;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * Returns the number of triggers discarded because the dispatcher was full or stopped.
+     *
+     * @return a long
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private void onDispatch(Entry entry) {
+        pendingCount.decrementAndGet();
+        LatencyHistogram h = lagHistogram;
+        if (h != null) {
+            h.record(System.nanoTime() - entry.submitTime);
+        }
+        try {
+            entry.trigger.run();
+        } catch (Throwable t) {
+            logger.error("Error dispatching task trigger", t);
+        }
+        dispatchedCount.incrementAndGet();
+    }
+
+    private static class Entry {
+        final Runnable trigger;
+        final long submitTime;
+
+        Entry(Runnable trigger, long submitTime) {
+            this.trigger = trigger;
+            this.submitTime = submitTime;
+        }
+    }
+
+    /**
+     * The triggers waiting for a single key. At most one thread drains a queue at a time, which is what keeps a
+     * task from running concurrently with itself.
+     */
+    private class KeyQueue implements Runnable {
+        private final String key;
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        private boolean scheduled;
+        private boolean retired;
+
+        KeyQueue(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                Entry entry;
+                synchronized (this) {
+                    entry = entries.poll();
+                    if (entry == null) {
+                        scheduled = false;
+                        retired = true;
+                        queues.remove(key, this);
+                        return;
+                    }
+                }
+                onDispatch(entry);
+            }
+        }
+
+        void rejectAll() {
+            int count;
+            synchronized (this) {
+                count = entries.size();
+                entries.clear();
+                scheduled = false;
+                retired = true;
+                queues.remove(key, this);
+            }
+            pendingCount.addAndGet(-count);
+            rejectedCount.addAndGet(count);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+import com.whizzosoftware.hobson.api.HobsonRuntimeException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on runtimes that support them. The plugin is built for older runtimes so the virtual
+ * thread API is looked up reflectively when this class is loaded.
+ *
+ * @author Dan Noguerol
+ */
+public class VirtualThreads {
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builderClass.getMethod("name", String.class, long.class);
+            factory = builderClass.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            // preview builds of Java 19 and 20 expose the API but refuse to use it
+            ofVirtual.invoke(null);
+        } catch (Exception | LinkageError e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() {}
+
+    /**
+     * Indicates whether the runtime supports virtual threads.
+     *
+     * @return a boolean
+     */
+    public static boolean isAvailable() {
+        return (OF_VIRTUAL != null);
+    }
+
+    /**
+     * Creates a factory for virtual threads.
+     *
+     * @param prefix the thread name prefix (each thread's name is the prefix followed by a sequence number)
+     *
+     * @return a ThreadFactory
+     * @throws HobsonRuntimeException if the runtime doesn't support virtual threads
+     */
+    public static ThreadFactory newThreadFactory(String prefix) {
+        if (!isAvailable()) {
+            throw new HobsonRuntimeException("Virtual threads require a Java 21 or later runtime");
+        }
+        return (ThreadFactory)invoke(FACTORY, invoke(NAME, invoke(OF_VIRTUAL, null), prefix, 1L));
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     *
+     * @param prefix the thread name prefix
+     *
+     * @return an ExecutorService
+     * @throws HobsonRuntimeException if the runtime doesn't support virtual threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        return (ExecutorService)invoke(NEW_THREAD_PER_TASK_EXECUTOR, null, newThreadFactory(prefix));
+    }
+
+    private static Object invoke(Method m, Object target, Object... args) {
+        try {
+            return m.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new HobsonRuntimeException("Unable to create virtual threads", e);
+        } catch (InvocationTargetException e) {
+            throw new HobsonRuntimeException("Unable to create virtual threads", e.getCause());
+        }
+    }
+}
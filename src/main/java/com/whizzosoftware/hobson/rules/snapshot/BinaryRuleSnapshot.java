@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.snapshot;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes and decodes the binary rule snapshot format. A snapshot is laid out as:
+ *
+ * <pre>
+ *   int     magic ("HRSB")
+ *   short   format version
+ *   int     record count
+ *   record* (int length followed by that many bytes of rule data)
+ *   int     CRC32 of all preceding bytes
+ * </pre>
+ *
+ * Each record holds a single rule: its name, description, enabled flag, assumptions (left term, operator and
+ * right term) and actions (method and argument). Strings are stored as a length-prefixed UTF-8 byte sequence with
+ * a length of -1 for null. A rule's assumption or action count is -1 if the rule has no such element.
+ *
+ * Because every record is length-prefixed, a reader can skip a rule without decoding it.
+ *
+ * @author Dan Noguerol
+ */
+public class BinaryRuleSnapshot {
+    public static final int MAGIC = 0x48525342;
+    public static final short VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER_LENGTH = 10;
+    private static final int TRAILER_LENGTH = 4;
+
+    /**
+     * Indicates whether a buffer starts with the binary snapshot header.
+     *
+     * @param buf the buffer (its position is not changed)
+     *
+     * @return a boolean
+     */
+    public static boolean isBinarySnapshot(ByteBuffer buf) {
+        return (buf.remaining() >= 4 && buf.getInt(buf.position()) == MAGIC);
+    }
+
+    /**
+     * Encodes a collection of rules.
+     *
+     * @param rules the JRuleEngine JSON for each rule
+     *
+     * @return a ByteBuffer ready to be written
+     * @throws IOException on failure
+     */
+    public static ByteBuffer encode(Collection<JSONObject> rules) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + rules.size() * 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(rules.size());
+        for (JSONObject rule : rules) {
+            recordBytes.reset();
+            writeRule(record, rule);
+            record.flush();
+            out.writeInt(recordBytes.size());
+            recordBytes.writeTo(out);
+        }
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        byte[] b = bytes.toByteArray();
+        crc.update(b, 0, b.length);
+
+        ByteBuffer buf = ByteBuffer.allocate(b.length + TRAILER_LENGTH);
+        buf.put(b);
+        buf.putInt((int)crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decodes a snapshot.
+     *
+     * @param buf the snapshot bytes
+     *
+     * @return the JRuleEngine JSON for each rule
+     * @throws IOException if the snapshot is corrupt or was written with an unsupported version
+     */
+    public static List<JSONObject> decode(ByteBuffer buf) throws IOException {
+        buf = buf.slice();
+        if (buf.remaining() < HEADER_LENGTH + TRAILER_LENGTH || buf.getInt() != MAGIC) {
+            throw new IOException("Not a binary rule snapshot");
+        }
+        short version = buf.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported rule snapshot version: " + version);
+        }
+
+        // verify the checksum before trusting any lengths
+        int end = buf.limit() - TRAILER_LENGTH;
+        CRC32 crc = new CRC32();
+        if (buf.hasArray()) {
+            crc.update(buf.array(), buf.arrayOffset(), end);
+        } else {
+            byte[] b = new byte[end];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(0);
+            dup.get(b);
+            crc.update(b, 0, b.length);
+        }
+        if ((int)crc.getValue() != buf.getInt(end)) {
+            throw new IOException("Rule snapshot checksum mismatch");
+        }
+
+        try {
+            int count = buf.getInt();
+            List<JSONObject> rules = new ArrayList<>(count);
+            for (int i=0; i < count; i++) {
+                int length = buf.getInt();
+                int next = buf.position() + length;
+                if (length < 0 || next > end) {
+                    throw new IOException("Invalid rule record length: " + length);
+                }
+                rules.add(readRule(buf));
+                buf.position(next);
+            }
+            return rules;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Rule snapshot is truncated", e);
+        }
+    }
+
+    /**
+     * Determines whether two rules are the same as far as a snapshot is concerned, i.e. whether they have the same
+     * name, description, enabled flag, assumptions and actions. Values are compared by their string form so a
+     * restored rule (whose action arguments are strings) matches a freshly created one.
+     *
+     * @param r1 the first rule
+     * @param r2 the second rule
+     *
+     * @return a boolean
+     */
+    public static boolean isSameRule(JSONObject r1, JSONObject r2) {
+        if (!isSameString(r1, r2, "name") ||
+            !isSameString(r1, r2, "description") ||
+            r1.optBoolean("enabled", true) != r2.optBoolean("enabled", true)) {
+            return false;
+        }
+
+        JSONArray a1 = r1.optJSONArray("assumptions");
+        JSONArray a2 = r2.optJSONArray("assumptions");
+        if (a1 == null || a2 == null) {
+            if (a1 != a2) {
+                return false;
+            }
+        } else if (a1.length() != a2.length()) {
+            return false;
+        } else {
+            for (int i=0; i < a1.length(); i++) {
+                JSONObject o1 = a1.getJSONObject(i);
+                JSONObject o2 = a2.getJSONObject(i);
+                if (!isSameString(o1, o2, "leftTerm") || !isSameString(o1, o2, "op") || !isSameString(o1, o2, "rightTerm")) {
+                    return false;
+                }
+            }
+        }
+
+        a1 = r1.optJSONArray("actions");
+        a2 = r2.optJSONArray("actions");
+        if (a1 == null || a2 == null) {
+            return (a1 == a2);
+        } else if (a1.length() != a2.length()) {
+            return false;
+        }
+        for (int i=0; i < a1.length(); i++) {
+            JSONObject o1 = a1.getJSONObject(i);
+            JSONObject o2 = a2.getJSONObject(i);
+            if (!isSameString(o1, o2, "method") || !isSameString(o1, o2, "arg1")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void writeRule(DataOutputStream out, JSONObject rule) throws IOException {
+        writeString(out, rule.optString("name", null));
+        writeString(out, rule.optString("description", null));
+        out.writeBoolean(rule.optBoolean("enabled", true));
+
+        JSONArray assumptions = rule.optJSONArray("assumptions");
+        if (assumptions != null) {
+            out.writeInt(assumptions.length());
+            for (int i=0; i < assumptions.length(); i++) {
+                JSONObject a = assumptions.getJSONObject(i);
+                writeString(out, a.optString("leftTerm", null));
+                writeString(out, a.optString("op", null));
+                writeString(out, a.optString("rightTerm", null));
+            }
+        } else {
+            out.writeInt(-1);
+        }
+
+        JSONArray actions = rule.optJSONArray("actions");
+        if (actions != null) {
+            out.writeInt(actions.length());
+            for (int i=0; i < actions.length(); i++) {
+                JSONObject a = actions.getJSONObject(i);
+                writeString(out, a.optString("method", null));
+                writeString(out, a.has("arg1") ? a.get("arg1").toString() : null);
+            }
+        } else {
+            out.writeInt(-1);
+        }
+    }
+
+    static JSONObject readRule(ByteBuffer buf) throws IOException {
+        JSONObject rule = new JSONObject();
+        putString(rule, "name", readString(buf));
+        putString(rule, "description", readString(buf));
+        rule.put("enabled", buf.get() != 0);
+
+        int count = buf.getInt();
+        if (count >= 0) {
+            JSONArray assumptions = new JSONArray();
+            for (int i=0; i < count; i++) {
+                JSONObject a = new JSONObject();
+                putString(a, "leftTerm", readString(buf));
+                putString(a, "op", readString(buf));
+                putString(a, "rightTerm", readString(buf));
+                assumptions.put(a);
+            }
+            rule.put("assumptions", assumptions);
+        }
+
+        count = buf.getInt();
+        if (count >= 0) {
+            JSONArray actions = new JSONArray();
+            for (int i=0; i < count; i++) {
+                JSONObject a = new JSONObject();
+                putString(a, "method", readString(buf));
+                putString(a, "arg1", readString(buf));
+                actions.put(a);
+            }
+            rule.put("actions", actions);
+        }
+
+        return rule;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(UTF8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    static String readString(ByteBuffer buf) throws IOException {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        } else if (length > buf.remaining()) {
+            throw new IOException("Invalid string length in rule snapshot: " + length);
+        }
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, UTF8);
+            buf.position(buf.position() + length);
+        } else {
+            byte[] b = new byte[length];
+            buf.get(b);
+            s = new String(b, UTF8);
+        }
+        return s;
+    }
+
+    private static boolean isSameString(JSONObject o1, JSONObject o2, String key) {
+        String s1 = o1.optString(key, null);
+        String s2 = o2.optString(key, null);
+        return (s1 != null ? s1.equals(s2) : s2 == null);
+    }
+
+    private static void putString(JSONObject json, String key, String value) {
+        if (value != null) {
+            json.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.snapshot;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of rule changes. Together with a rule snapshot, the journal lets the rule set be restored
+ * on startup without re-compiling every task.
+ *
+ * The journal is laid out as:
+ *
+ * <pre>
+ *   int     magic ("HRJL")
+ *   short   format version (the binary snapshot version)
+ *   record* (int length, then that many bytes of record data, then an int CRC32 of the record data)
+ * </pre>
+ *
+ * Each record is either a PUT (record type, task ID and the rule in the binary snapshot rule encoding) or a REMOVE
+ * (record type and task ID). Records are written as they occur but only forced to disk when sync() is called so
+ * a burst of changes can share a single fsync. When the journal is replayed, it stops at the first torn or corrupt
+ * record (e.g. one that was being written when power was lost) and truncates the journal there.
+ *
+ * This class is not thread-safe; callers must serialize access to it.
+ *
+ * @author Dan Noguerol
+ */
+public class RuleJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(RuleJournal.class);
+
+    public static final int MAGIC = 0x48524A4C;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int HEADER_LENGTH = 6;
+
+    private final File file;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private int recordCount;
+    private boolean dirty;
+
+    public RuleJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Applies the journal's records to a rule map and opens the journal for appending. A journal written with a
+     * different format version is discarded.
+     *
+     * @param rules the rules restored from the latest snapshot, keyed by task ID
+     *
+     * @return the number of records applied
+     * @throws IOException on failure
+     */
+    public int replay(Map<String,JSONObject> rules) throws IOException {
+        close();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recordCount = 0;
+
+        ByteBuffer buf = ByteBuffer.allocate((int)channel.size());
+        while (buf.hasRemaining() && channel.read(buf, buf.position()) > -1) {
+            // keep reading
+        }
+        buf.flip();
+
+        if (buf.remaining() < HEADER_LENGTH || buf.getInt() != MAGIC || buf.getShort() != BinaryRuleSnapshot.VERSION) {
+            if (buf.limit() > 0) {
+                logger.warn("Discarding unreadable rule journal: {}", file);
+            }
+            truncate(0);
+            writeHeader();
+            return 0;
+        }
+
+        int valid = buf.position();
+        try {
+            while (buf.remaining() >= 4) {
+                int length = buf.getInt();
+                if (length < 1 || buf.remaining() < length + 4) {
+                    break;
+                }
+                crc.reset();
+                crc.update(buf.array(), buf.arrayOffset() + buf.position(), length);
+                if ((int)crc.getValue() != buf.getInt(buf.position() + length)) {
+                    break;
+                }
+                int next = buf.position() + length + 4;
+                byte type = buf.get();
+                String taskId = BinaryRuleSnapshot.readString(buf);
+                if (type == PUT) {
+                    rules.put(taskId, BinaryRuleSnapshot.readRule(buf));
+                } else if (type == REMOVE) {
+                    rules.remove(taskId);
+                }
+                buf.position(next);
+                valid = next;
+                recordCount++;
+            }
+        } catch (BufferUnderflowException e) {
+            logger.debug("Rule journal record is truncated", e);
+        }
+
+        if (valid < buf.limit()) {
+            logger.warn("Discarding {} bytes of incomplete rule journal records", buf.limit() - valid);
+            truncate(valid);
+            channel.force(false);
+        }
+        channel.position(valid);
+        return recordCount;
+    }
+
+    /**
+     * Appends a record that adds or replaces a rule.
+     *
+     * @param taskId the task ID
+     * @param rule the rule JSON
+     *
+     * @throws IOException on failure
+     */
+    public void appendPut(String taskId, JSONObject rule) throws IOException {
+        recordBytes.reset();
+        record.writeByte(PUT);
+        BinaryRuleSnapshot.writeString(record, taskId);
+        BinaryRuleSnapshot.writeRule(record, rule);
+        append();
+    }
+
+    /**
+     * Appends a record that removes a rule.
+     *
+     * @param taskId the task ID
+     *
+     * @throws IOException on failure
+     */
+    public void appendRemove(String taskId) throws IOException {
+        recordBytes.reset();
+        record.writeByte(REMOVE);
+        BinaryRuleSnapshot.writeString(record, taskId);
+        append();
+    }
+
+    /**
+     * Forces any records appended since the last sync to disk.
+     *
+     * @return true if there was anything to sync
+     * @throws IOException on failure
+     */
+    public boolean sync() throws IOException {
+        if (dirty && channel != null) {
+            channel.force(false);
+            dirty = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Discards all records. This should only be called once a snapshot containing every journaled change has been
+     * written.
+     *
+     * @throws IOException on failure
+     */
+    public void reset() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        truncate(0);
+        writeHeader();
+        recordCount = 0;
+    }
+
+    /**
+     * Returns the number of records in the journal.
+     *
+     * @return an int
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the size of the journal.
+     *
+     * @return the size in bytes
+     * @throws IOException on failure
+     */
+    public long getSize() throws IOException {
+        return (channel != null) ? channel.size() : file.length();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            try {
+                sync();
+            } finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private void append() throws IOException {
+        if (channel == null) {
+            throw new IOException("Rule journal is not open");
+        }
+        record.flush();
+        crc.reset();
+        byte[] b = recordBytes.toByteArray();
+        crc.update(b, 0, b.length);
+
+        ByteBuffer buf = ByteBuffer.allocate(b.length + 8);
+        buf.putInt(b.length);
+        buf.put(b);
+        buf.putInt((int)crc.getValue());
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        recordCount++;
+        dirty = true;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH);
+        buf.putInt(MAGIC);
+        buf.putShort(BinaryRuleSnapshot.VERSION);
+        buf.flip();
+        channel.position(0);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        channel.force(false);
+        dirty = false;
+    }
+
+    private void truncate(long size) throws IOException {
+        channel.truncate(size);
+        channel.position(size);
+    }
+}
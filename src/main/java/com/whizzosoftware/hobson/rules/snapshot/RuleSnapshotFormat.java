@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.snapshot;
+
+/**
+ * The formats the rules file can be written in.
+ *
+ * @author Dan Noguerol
+ */
+public enum RuleSnapshotFormat {
+    /**
+     * The JRuleEngine JSON rule set. This is human readable and can be loaded directly by JRuleEngine.
+     */
+    JSON,
+    /**
+     * A compact, versioned binary format with length-prefixed rule records and a checksum.
+     */
+    BINARY
+}
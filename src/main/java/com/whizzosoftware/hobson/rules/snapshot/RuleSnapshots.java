@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.snapshot;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reads and writes rule snapshot files.
+ *
+ * Snapshots are written to a temporary file in the same directory, forced to disk and then renamed over the
+ * existing file so that a crash or power loss mid-write never leaves a partial rules file behind.
+ *
+ * @author Dan Noguerol
+ */
+public class RuleSnapshots {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Creates the JRuleEngine JSON rule set for a collection of rules.
+     *
+     * @param rules the JSON for each rule
+     *
+     * @return a JSONObject
+     */
+    public static JSONObject createRuleSetJSON(Collection<JSONObject> rules) {
+        JSONObject rootJson = new JSONObject();
+        rootJson.put("name", "Hobson Rules");
+        rootJson.put("description", "Hobson Rules");
+
+        if (rules.size() > 0) {
+            JSONArray rulesArray = new JSONArray();
+            for (JSONObject rule : rules) {
+                rulesArray.put(rule);
+            }
+            rootJson.put("rules", rulesArray);
+        }
+
+        return rootJson;
+    }
+
+    /**
+     * Encodes a collection of rules.
+     *
+     * @param rules the JSON for each rule
+     * @param format the snapshot format
+     *
+     * @return a ByteBuffer ready to be written
+     * @throws IOException on failure
+     */
+    public static ByteBuffer encode(Collection<JSONObject> rules, RuleSnapshotFormat format) throws IOException {
+        if (format == RuleSnapshotFormat.BINARY) {
+            return BinaryRuleSnapshot.encode(rules);
+        } else {
+            return ByteBuffer.wrap(createRuleSetJSON(rules).toString().getBytes(UTF8));
+        }
+    }
+
+    /**
+     * Decodes a snapshot in either format. The format is detected from the snapshot's header.
+     *
+     * @param buf the snapshot bytes
+     *
+     * @return the JSON for each rule
+     * @throws IOException if the snapshot is corrupt
+     */
+    public static List<JSONObject> decode(ByteBuffer buf) throws IOException {
+        if (BinaryRuleSnapshot.isBinarySnapshot(buf)) {
+            return BinaryRuleSnapshot.decode(buf);
+        } else {
+            String s = new String(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), UTF8);
+            JSONArray a = new JSONObject(new JSONTokener(s)).optJSONArray("rules");
+            List<JSONObject> rules = new ArrayList<>();
+            if (a != null) {
+                for (int i=0; i < a.length(); i++) {
+                    rules.add(a.getJSONObject(i));
+                }
+            }
+            return rules;
+        }
+    }
+
+    /**
+     * Writes a snapshot file.
+     *
+     * @param file the file to write
+     * @param rules the JSON for each rule
+     * @param format the snapshot format
+     *
+     * @return the number of bytes written
+     * @throws IOException on failure
+     */
+    public static long write(File file, Collection<JSONObject> rules, RuleSnapshotFormat format) throws IOException {
+        return writeAtomically(file, encode(rules, format));
+    }
+
+    /**
+     * Reads a snapshot file in either format.
+     *
+     * @param file the file to read
+     *
+     * @return the JSON for each rule
+     * @throws IOException on failure
+     */
+    public static List<JSONObject> read(File file) throws IOException {
+        return decode(readFully(file));
+    }
+
+    /**
+     * Reads an entire file into a heap buffer.
+     *
+     * @param file the file to read
+     *
+     * @return a ByteBuffer
+     * @throws IOException on failure
+     */
+    public static ByteBuffer readFully(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Rule snapshot is too large: " + file);
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int)size);
+            while (buf.hasRemaining() && ch.read(buf) > -1) {
+                // keep reading
+            }
+            buf.flip();
+            return buf;
+        }
+    }
+
+    /**
+     * Writes a buffer to a file by way of a temporary file that is renamed over the target once it is on disk.
+     *
+     * @param file the file to write
+     * @param buf the data to write
+     *
+     * @return the number of bytes written
+     * @throws IOException on failure
+     */
+    public static long writeAtomically(File file, ByteBuffer buf) throws IOException {
+        Path target = file.toPath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        long count = 0;
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buf.hasRemaining()) {
+                    count += ch.write(buf);
+                }
+                ch.force(true);
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.condition;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import org.json.JSONArray;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+public class DeviceSetsTest {
+    @Test
+    public void testCreateTerm() {
+        List<DeviceContext> ctxs = new ArrayList<>();
+        ctxs.add(DeviceContext.createLocal("plugin1", "device1"));
+        ctxs.add(DeviceContext.createLocal("plugin1", "device2"));
+
+        String term = DeviceSets.createTerm(ctxs);
+        assertEquals("[local:plugin1:device1,local:plugin1:device2]", term);
+
+        Set<String> set = DeviceSets.forTerm(term);
+        assertEquals(2, set.size());
+        assertTrue(set.contains("local:plugin1:device1"));
+        assertTrue(set.contains("local:plugin1:device2"));
+        assertFalse(set.contains("local:plugin1:device3"));
+
+        // the same devices share a single set
+        assertSame(set, DeviceSets.forTerm(DeviceSets.createTerm(new ArrayList<>(ctxs))));
+        assertEquals("[]", DeviceSets.createTerm(Collections.<DeviceContext>emptyList()));
+        assertEquals("[null]", DeviceSets.createTerm(null));
+        assertEquals("[,local:plugin1:device2]", DeviceSets.createTerm(Arrays.asList(null, ctxs.get(1))));
+    }
+
+    @Test
+    public void testTableIsBounded() {
+        Set<String> hot = DeviceSets.forTerm("[local:plugin4:hot]");
+        for (int i=0; i < DeviceSets.MAX_SETS * 2; i++) {
+            DeviceSets.forTerm("[local:plugin4:device" + i + "]");
+            // a term that keeps being used is never dropped
+            assertSame(hot, DeviceSets.forTerm("[local:plugin4:hot]"));
+        }
+        assertTrue(DeviceSets.getSetCount() <= DeviceSets.MAX_SETS);
+    }
+
+    @Test
+    public void testForTermParsesUnknownTerms() {
+        Set<String> set = DeviceSets.forTerm(" [local:plugin2:device1, local:plugin2:device2] ");
+        assertEquals(2, set.size());
+        assertTrue(set.contains("local:plugin2:device2"));
+        assertSame(set, DeviceSets.forTerm(" [local:plugin2:device1, local:plugin2:device2] "));
+        assertTrue(DeviceSets.forTerm(null).isEmpty());
+    }
+
+    @Test
+    public void testConditionClassesShareSets() {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        List<DeviceContext> ctxs = Collections.singletonList(DeviceContext.createLocal("plugin3", "device1"));
+        Map<String,Object> values = new HashMap<>();
+        values.put("devices", ctxs);
+        values.put("inTempF", "80");
+
+        DeviceTurnsOnConditionClass on = new DeviceTurnsOnConditionClass(pctx);
+        DeviceIndoorTempAboveConditionClass temp = new DeviceIndoorTempAboveConditionClass(pctx);
+        JSONArray a1 = on.createAssumptionJSON(new PropertyContainer(on.getContext(), values));
+        JSONArray a2 = temp.createAssumptionJSON(new PropertyContainer(temp.getContext(), values));
+
+        String t1 = a1.getJSONObject(1).getString("rightTerm");
+        String t2 = a2.getJSONObject(1).getString("rightTerm");
+        assertEquals("[local:plugin3:device1]", t1);
+        assertSame(DeviceSets.forTerm(t1), DeviceSets.forTerm(t2));
+    }
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.condition;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+public class ThresholdGateTest {
+    @Test
+    public void testAboveWithHysteresis() {
+        ThresholdGate gate = new ThresholdGate(VariableConstants.INDOOR_TEMP_F, Collections.singleton("device1"), true, 80.0, 2.0);
+        assertTrue(observe(gate, 81.0));
+        assertFalse(observe(gate, 82.0));
+        assertFalse(observe(gate, 79.0));
+        assertFalse(observe(gate, 81.0));
+        assertFalse(observe(gate, 78.0));
+        assertTrue(observe(gate, "80.5"));
+        assertEquals(80.5, gate.getLastValue("device1"), 0.001);
+
+        // a crossing can only be consumed once
+        assertFalse(gate.consumeCrossing("device1"));
+    }
+
+    @Test
+    public void testBelowWithoutHysteresis() {
+        ThresholdGate gate = new ThresholdGate(VariableConstants.INDOOR_TEMP_F, Collections.singleton("device1"), false, 60.0, 0);
+        assertFalse(observe(gate, 61.0));
+        assertTrue(observe(gate, 59.0));
+        assertFalse(observe(gate, 58.0));
+        assertFalse(observe(gate, 60.0));
+        assertTrue(observe(gate, 59.5));
+    }
+
+    @Test
+    public void testIgnoresOtherDevicesAndVariables() {
+        ThresholdGate gate = new ThresholdGate(VariableConstants.INDOOR_TEMP_F, Collections.singleton("device1"), true, 80.0, 0);
+        gate.observe("device2", VariableConstants.INDOOR_TEMP_F, 81.0);
+        gate.observe("device1", VariableConstants.ON, 81.0);
+        gate.observe("device1", VariableConstants.INDOOR_TEMP_F, "foo");
+        assertEquals(0, gate.getStateCount());
+        assertFalse(gate.consumeCrossing("device2"));
+    }
+
+    @Test
+    public void testCreateFromCondition() {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        DeviceIndoorTempAboveConditionClass cc = new DeviceIndoorTempAboveConditionClass(pctx);
+        Map<String,Object> values = new HashMap<>();
+        values.put("devices", Collections.singletonList(DeviceContext.createLocal("plugin1", "device1")));
+        values.put(VariableConstants.INDOOR_TEMP_F, "80");
+        assertNull(cc.createThresholdGate(new PropertyContainer(cc.getContext(), values)));
+
+        values.put(ConditionConstants.EDGE_TRIGGERED, true);
+        values.put(ConditionConstants.HYSTERESIS, "1.5");
+        ThresholdGate gate = cc.createThresholdGate(new PropertyContainer(cc.getContext(), values));
+        assertNotNull(gate);
+        assertTrue(gate.isAbove());
+        assertEquals(80.0, gate.getThreshold(), 0.001);
+        assertEquals(1.5, gate.getHysteresis(), 0.001);
+        assertTrue(gate.getDevices().contains("local:plugin1:device1"));
+
+        assertNull(new DeviceTurnsOnConditionClass(pctx).createThresholdGate(new PropertyContainer(cc.getContext(), values)));
+    }
+
+    private boolean observe(ThresholdGate gate, Object value) {
+        gate.observe("device1", VariableConstants.INDOOR_TEMP_F, value);
+        return gate.consumeCrossing("device1");
+    }
+}
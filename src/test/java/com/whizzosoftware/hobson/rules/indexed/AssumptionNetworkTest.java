@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.condition.ConditionConstants;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class AssumptionNetworkTest {
+    @Test
+    public void testNodesAreShared() {
+        AssumptionNetwork network = new AssumptionNetwork();
+        IndexedRuleSet rs = new IndexedRuleSet(network);
+        rs.add(IndexedRuleSet.compileRule(createRuleJSON("task1", "device1", "on", "=", "true")));
+        rs.add(IndexedRuleSet.compileRule(createRuleJSON("task2", "[device2,device3]", "on", "=", "true")));
+        rs.add(IndexedRuleSet.compileRule(createRuleJSON("task3", "device1", "on", "=", "false")));
+        assertEquals(3, network.getRuleCount());
+        assertEquals(2, network.getNodeCount());
+        assertEquals(1, network.getSharedNodeCount());
+        assertEquals(3, network.getReferenceCount());
+
+        // a node stays until the last rule using it is removed
+        rs.remove("task1");
+        assertEquals(2, network.getNodeCount());
+        assertEquals(0, network.getSharedNodeCount());
+
+        // replacing a rule releases the nodes of the old one
+        rs.add(IndexedRuleSet.compileRule(createRuleJSON("task2", "device2", "on", "=", "false")));
+        assertEquals(2, network.getRuleCount());
+        assertEquals(1, network.getNodeCount());
+        assertEquals(1, network.getSharedNodeCount());
+        assertEquals(2, network.getReferenceCount());
+
+        // rules filed in several shards are only attached once
+        AssumptionNetwork sn = new AssumptionNetwork();
+        ShardedRuleSet srs = new ShardedRuleSet(4, null, sn);
+        srs.add(IndexedRuleSet.compileRule(createRuleJSON("task1", "[device1,device2,device3,device4]", "on", "=", "true")));
+        srs.add(IndexedRuleSet.compileRule(createRuleJSON("task2", null, "on", "=", "true")));
+        assertEquals(2, sn.getRuleCount());
+        assertEquals(1, sn.getNodeCount());
+        assertEquals(2, sn.getReferenceCount());
+        srs.remove("task1");
+        assertEquals(1, sn.getRuleCount());
+        assertEquals(0, sn.getSharedNodeCount());
+
+        JSONObject json = network.toJSON();
+        assertEquals(2, json.getLong("rules"));
+        assertEquals(1, json.getLong("sharedNodes"));
+    }
+
+    @Test
+    public void testSharedResultsMatchUnsharedResults() {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        List<IndexedRule> rules = new ArrayList<>();
+        int n = 0;
+        for (String ctx : Arrays.asList("device1", "device2", "[device1,device2]", null)) {
+            for (String value : Arrays.asList("true", "false")) {
+                rules.add(IndexedRuleSet.compileRule(createRuleJSON("task" + n++, ctx, VariableConstants.ON, "=", value)));
+            }
+            for (String op : Arrays.asList(">", "<=")) {
+                for (String value : Arrays.asList("70", "80")) {
+                    rules.add(IndexedRuleSet.compileRule(createRuleJSON("task" + n++, ctx, VariableConstants.INDOOR_TEMP_F, op, value)));
+                }
+            }
+        }
+
+        IndexedRuleSet plain = new IndexedRuleSet();
+        plain.addAll(rules);
+        AssumptionNetwork network = new AssumptionNetwork();
+        IndexedRuleSet shared = new IndexedRuleSet(network);
+        shared.addAll(rules);
+        IndexedRuleSet sharded = new ShardedRuleSet(3, null, new AssumptionNetwork());
+        sharded.addAll(rules);
+        assertEquals(6, network.getNodeCount());
+        assertEquals(6, network.getSharedNodeCount());
+
+        for (String device : Arrays.asList("device1", "device2", "device3")) {
+            DeviceContext dctx = DeviceContext.create(pctx, device);
+            List<JREEventContext> ctxs = Arrays.asList(
+                new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, VariableConstants.ON), false, true)),
+                new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, VariableConstants.ON), true, false)),
+                new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, VariableConstants.INDOOR_TEMP_F), 70, 75)),
+                new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, VariableConstants.INDOOR_TEMP_F), 75, 85))
+            );
+            for (JREEventContext ctx : ctxs) {
+                Set<IndexedRule> expected = new HashSet<>();
+                plain.match(ctx, expected);
+                Set<IndexedRule> actual = new HashSet<>();
+                shared.match(ctx, actual);
+                assertEquals(expected, actual);
+                actual.clear();
+                sharded.match(ctx, actual);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testInterpretedNetworkNeverCompiles() {
+        DeviceContext dctx = DeviceContext.create(PluginContext.createLocal("plugin"), "device1");
+        JREEventContext ctx = new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, VariableConstants.INDOOR_TEMP_F), 70, 85));
+        for (boolean compiled : new boolean[] {false, true}) {
+            AssumptionNetwork network = new AssumptionNetwork(compiled);
+            assertEquals(compiled, network.isCompiled());
+            IndexedRuleSet rs = new IndexedRuleSet(network);
+            rs.add(IndexedRuleSet.compileRule(createRuleJSON("task1", null, VariableConstants.INDOOR_TEMP_F, ">", "80"), compiled));
+            rs.add(IndexedRuleSet.compileRule(createRuleJSON("task2", null, VariableConstants.INDOOR_TEMP_F, ">", "80"), compiled));
+
+            Set<IndexedRule> matches = new HashSet<>();
+            rs.match(ctx, matches);
+            assertEquals(2, matches.size());
+            for (IndexedRule rule : matches) {
+                // rules attached to a network are only evaluated through its nodes
+                assertFalse(rule.hasPredicate());
+                for (AssumptionNetwork.Node node : rule.getNodes()) {
+                    assertEquals(compiled, node.predicate != null);
+                }
+            }
+        }
+    }
+
+    private JSONObject createRuleJSON(String name, String deviceCtx, String variableName, String op, String value) {
+        JSONArray assumptions = new JSONArray();
+        assumptions.put(createAssumptionJSON(ConditionConstants.EVENT_ID, "=", DeviceVariablesUpdateEvent.ID));
+        if (deviceCtx != null) {
+            assumptions.put(createAssumptionJSON(ConditionConstants.DEVICE_CTX, deviceCtx.startsWith("[") ? "containsatleastone" : "=", deviceCtx));
+        }
+        assumptions.put(createAssumptionJSON(ConditionConstants.VARIABLE_NAME, "=", variableName));
+        assumptions.put(createAssumptionJSON(ConditionConstants.VARIABLE_VALUE, op, value));
+
+        JSONObject rule = new JSONObject();
+        rule.put("name", name);
+        rule.put("assumptions", assumptions);
+        JSONArray actions = new JSONArray();
+        JSONObject action = new JSONObject();
+        action.put("method", ConditionConstants.FIRE_TRIGGER);
+        action.put("arg1", "local:" + name);
+        actions.put(action);
+        rule.put("actions", actions);
+        return rule;
+    }
+
+    private JSONObject createAssumptionJSON(String leftTerm, String op, String rightTerm) {
+        JSONObject a = new JSONObject();
+        a.put("leftTerm", leftTerm);
+        a.put("op", op);
+        a.put("rightTerm", rightTerm);
+        return a;
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.rules.condition.ConditionConstants;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class EventFilterTest {
+    @Test
+    public void testKeysAreReferenceCounted() {
+        EventFilter filter = new EventFilter();
+        filter.put(createRuleJSON("task1", "varUpdate", "device1", "on"));
+        filter.put(createRuleJSON("task2", "varUpdate", "device1", "on"));
+        filter.put(createRuleJSON("task3", "deviceUnavailable", "[device2,device3]", null));
+        assertEquals(3, filter.getRuleCount());
+        assertEquals(3, filter.getKeyCount());
+
+        assertTrue(filter.accepts("varUpdate", "device1", "on"));
+        assertFalse(filter.accepts("varUpdate", "device1", "level"));
+        assertFalse(filter.accepts("varUpdate", "device2", "on"));
+        assertTrue(filter.accepts("deviceUnavailable", "device3", null));
+        assertFalse(filter.accepts("deviceUnavailable", "device1", null));
+        assertFalse(filter.accepts("presenceUpdate", "person1", null));
+
+        // a key stays until the last rule using it is removed
+        filter.remove("task1");
+        assertTrue(filter.accepts("varUpdate", "device1", "on"));
+        filter.remove("task2");
+        assertFalse(filter.accepts("varUpdate", "device1", "on"));
+        assertEquals(2, filter.getKeyCount());
+
+        // replacing a rule replaces its keys
+        filter.put(createRuleJSON("task3", "deviceUnavailable", "device4", null));
+        assertFalse(filter.accepts("deviceUnavailable", "device3", null));
+        assertTrue(filter.accepts("deviceUnavailable", "device4", null));
+        assertEquals(1, filter.getKeyCount());
+    }
+
+    @Test
+    public void testWildcards() {
+        EventFilter filter = new EventFilter();
+
+        // a rule without a context or variable assumption matches any device or variable
+        filter.put(createRuleJSON("task1", "varUpdate", null, "on"));
+        assertTrue(filter.accepts("varUpdate", "device9", "on"));
+        assertFalse(filter.accepts("varUpdate", "device9", "level"));
+        filter.put(createRuleJSON("task2", "deviceUnavailable", "device1", null));
+        assertTrue(filter.accepts("deviceUnavailable", "device1", "on"));
+
+        // a rule that can't be indexed could match anything
+        JSONObject rule = createRuleJSON("task3", null, "device1", null);
+        filter.put(rule);
+        assertEquals(1, filter.getUnindexedRuleCount());
+        assertTrue(filter.accepts("presenceUpdate", "person1", null));
+        filter.put(rule);
+        assertEquals(1, filter.getUnindexedRuleCount());
+        filter.remove("task3");
+        assertEquals(0, filter.getUnindexedRuleCount());
+        assertFalse(filter.accepts("presenceUpdate", "person1", null));
+
+        filter.clear();
+        assertEquals(0, filter.getRuleCount());
+        assertFalse(filter.accepts("varUpdate", "device9", "on"));
+    }
+
+    @Test
+    public void testRetainAll() {
+        EventFilter filter = new EventFilter();
+        filter.put(createRuleJSON("task1", "varUpdate", "device1", "on"));
+        filter.put(createRuleJSON("task2", "varUpdate", "device1", "on"));
+        filter.put(createRuleJSON("task3", null, "device2", null));
+        assertEquals(1, filter.getUnindexedRuleCount());
+
+        // rules that aren't kept release their keys, including the unindexed ones
+        filter.retainAll(Collections.singleton("task2"));
+        assertEquals(1, filter.getRuleCount());
+        assertEquals(0, filter.getUnindexedRuleCount());
+        assertTrue(filter.accepts("varUpdate", "device1", "on"));
+        assertFalse(filter.accepts("presenceUpdate", "person1", null));
+
+        filter.retainAll(Collections.<String>emptySet());
+        assertEquals(0, filter.getRuleCount());
+        assertEquals(0, filter.getKeyCount());
+        assertFalse(filter.accepts("varUpdate", "device1", "on"));
+    }
+
+    private JSONObject createRuleJSON(String name, String eventId, String deviceCtx, String variableName) {
+        JSONArray assumptions = new JSONArray();
+        if (eventId != null) {
+            assumptions.put(createAssumptionJSON(ConditionConstants.EVENT_ID, "=", eventId));
+        }
+        if (deviceCtx != null) {
+            assumptions.put(createAssumptionJSON(ConditionConstants.DEVICE_CTX, deviceCtx.startsWith("[") ? "containsatleastone" : "=", deviceCtx));
+        }
+        if (variableName != null) {
+            assumptions.put(createAssumptionJSON(ConditionConstants.VARIABLE_NAME, "=", variableName));
+        }
+
+        JSONObject rule = new JSONObject();
+        rule.put("name", name);
+        rule.put("assumptions", assumptions);
+        JSONArray actions = new JSONArray();
+        JSONObject action = new JSONObject();
+        action.put("method", ConditionConstants.FIRE_TRIGGER);
+        action.put("arg1", "local:" + name);
+        actions.put(action);
+        rule.put("actions", actions);
+        return rule;
+    }
+
+    private JSONObject createAssumptionJSON(String leftTerm, String op, String rightTerm) {
+        JSONObject a = new JSONObject();
+        a.put("leftTerm", leftTerm);
+        a.put("op", op);
+        a.put("rightTerm", rightTerm);
+        return a;
+    }
+}
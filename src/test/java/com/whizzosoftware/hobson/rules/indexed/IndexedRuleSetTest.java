@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.api.HobsonRuntimeException;
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.device.DeviceUnavailableEvent;
+import com.whizzosoftware.hobson.api.event.presence.PresenceUpdateNotificationEvent;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.presence.PresenceEntityContext;
+import com.whizzosoftware.hobson.api.presence.PresenceLocationContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.condition.*;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IndexedRuleSetTest {
+    @Test
+    public void testDeviceVariableMatching() {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        DeviceIndoorTempAboveConditionClass cc = new DeviceIndoorTempAboveConditionClass(pctx);
+
+        Map<String,Object> values = new HashMap<>();
+        values.put("devices", Arrays.asList(DeviceContext.create(pctx, "device1"), DeviceContext.create(pctx, "device2")));
+        values.put(VariableConstants.INDOOR_TEMP_F, "80");
+        JSONArray assumptions = cc.createAssumptionJSON(new PropertyContainer(cc.getContext(), values));
+
+        IndexedRuleSet rs = IndexedRuleSet.compile(createRuleSetJSON(createRuleJSON("task1", assumptions)));
+        assertEquals(1, rs.getRuleCount());
+
+        List<IndexedRule> results = new ArrayList<>();
+        rs.match(new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.INDOOR_TEMP_F), null, 81.0)), results);
+        assertEquals(1, results.size());
+        assertEquals("task1", results.get(0).getName());
+        assertEquals(Collections.singletonList("local:task1"), results.get(0).getTriggers());
+
+        // value below threshold
+        results.clear();
+        rs.match(new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device2", VariableConstants.INDOOR_TEMP_F), null, 79.0)), results);
+        assertEquals(0, results.size());
+
+        // device not in the rule's device list
+        results.clear();
+        rs.match(new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device3", VariableConstants.INDOOR_TEMP_F), null, 81.0)), results);
+        assertEquals(0, results.size());
+
+        // wrong variable
+        results.clear();
+        rs.match(new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device2", VariableConstants.ON), null, 81.0)), results);
+        assertEquals(0, results.size());
+
+        // wrong event
+        results.clear();
+        rs.match(new JREEventContext(new DeviceUnavailableEvent(System.currentTimeMillis(), DeviceContext.create(pctx, "device1"))), results);
+        assertEquals(0, results.size());
+    }
+
+    @Test
+    public void testPresenceMatching() {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        PresenceArrivalConditionClass cc = new PresenceArrivalConditionClass(pctx);
+
+        Map<String,Object> values = new HashMap<>();
+        values.put("person", PresenceEntityContext.createLocal("person1"));
+        values.put("location", PresenceLocationContext.createLocal("location2"));
+        IndexedRuleSet rs = IndexedRuleSet.compile(createRuleSetJSON(createRuleJSON("task1", cc.createAssumptionJSON(new PropertyContainer(cc.getContext(), values)))));
+
+        List<IndexedRule> results = new ArrayList<>();
+        rs.match(new JREEventContext(new PresenceUpdateNotificationEvent(System.currentTimeMillis(), PresenceEntityContext.createLocal("person1"), PresenceLocationContext.createLocal("location1"), PresenceLocationContext.createLocal("location2"))), results);
+        assertEquals(1, results.size());
+
+        // first arrival has no old location
+        results.clear();
+        rs.match(new JREEventContext(new PresenceUpdateNotificationEvent(System.currentTimeMillis(), PresenceEntityContext.createLocal("person1"), null, PresenceLocationContext.createLocal("location2"))), results);
+        assertEquals(1, results.size());
+
+        results.clear();
+        rs.match(new JREEventContext(new PresenceUpdateNotificationEvent(System.currentTimeMillis(), PresenceEntityContext.createLocal("person2"), PresenceLocationContext.createLocal("location1"), PresenceLocationContext.createLocal("location2"))), results);
+        assertEquals(0, results.size());
+
+        results.clear();
+        rs.match(new JREEventContext(new PresenceUpdateNotificationEvent(System.currentTimeMillis(), PresenceEntityContext.createLocal("person1"), PresenceLocationContext.createLocal("location2"), PresenceLocationContext.createLocal("location2"))), results);
+        assertEquals(0, results.size());
+    }
+
+    @Test
+    public void testDisabledRule() {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        DeviceUnavailableConditionClass cc = new DeviceUnavailableConditionClass(pctx);
+        JSONObject rule = createRuleJSON("task1", cc.createAssumptionJSON(new PropertyContainer(cc.getContext(), Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device1"))))));
+        rule.put("enabled", false);
+        IndexedRuleSet rs = IndexedRuleSet.compile(createRuleSetJSON(rule));
+
+        List<IndexedRule> results = new ArrayList<>();
+        rs.match(new JREEventContext(new DeviceUnavailableEvent(System.currentTimeMillis(), DeviceContext.create(pctx, "device1"))), results);
+        assertEquals(0, results.size());
+    }
+
+    @Test
+    public void testUnsupportedOperator() {
+        JSONArray assumptions = new JSONArray();
+        JSONObject a = new JSONObject();
+        a.put("leftTerm", ConditionConstants.EVENT_ID);
+        a.put("op", "matches");
+        a.put("rightTerm", "foo");
+        assumptions.put(a);
+        try {
+            IndexedRuleSet.compile(createRuleSetJSON(createRuleJSON("task1", assumptions)));
+            fail("Should have thrown exception");
+        } catch (HobsonRuntimeException ignored) {
+        }
+    }
+
+    @Test
+    public void testNumericComparison() {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        DeviceVariableContext dvctx = DeviceVariableContext.create(pctx, "device1", VariableConstants.INDOOR_TEMP_F);
+
+        RuleAssumption a = RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, ">", "80");
+        assertTrue(a.isNumeric());
+        assertTrue(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, null, 81.0))));
+        assertTrue(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, null, 81))));
+        assertTrue(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, null, "80.5"))));
+        assertFalse(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, null, 80.0))));
+        assertFalse(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, null, "abc"))));
+        assertFalse(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, null, null))));
+
+        a = RuleAssumption.create(ConditionConstants.VARIABLE_OLD_VALUE, "<=", "70");
+        assertTrue(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, 70L, 81.0))));
+        assertFalse(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, 70.1f, 81.0))));
+
+        a = RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, "=", "80");
+        assertTrue(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, null, 80.0))));
+        assertTrue(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, null, "80"))));
+
+        // non-numeric thresholds never match a numeric comparison
+        a = RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, ">", "hot");
+        assertFalse(a.isNumeric());
+        assertFalse(a.evaluate(new JREEventContext(new DeviceVariableUpdate(dvctx, null, 81.0))));
+    }
+
+    private JSONObject createRuleSetJSON(JSONObject rule) {
+        JSONObject json = new JSONObject();
+        json.put("name", "Hobson Rules");
+        JSONArray rules = new JSONArray();
+        rules.put(rule);
+        json.put("rules", rules);
+        return json;
+    }
+
+    private JSONObject createRuleJSON(String name, JSONArray assumptions) {
+        JSONObject rule = new JSONObject();
+        rule.put("name", name);
+        rule.put("assumptions", assumptions);
+        JSONArray actions = new JSONArray();
+        JSONObject action = new JSONObject();
+        action.put("method", ConditionConstants.FIRE_TRIGGER);
+        action.put("arg1", "local:" + name);
+        actions.put(action);
+        rule.put("actions", actions);
+        return rule;
+    }
+}
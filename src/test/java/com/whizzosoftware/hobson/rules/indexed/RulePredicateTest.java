@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.device.DeviceUnavailableEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.condition.ConditionConstants;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RulePredicateTest {
+    @Test
+    public void testCompiledMatchesInterpreted() {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        DeviceContext dctx = DeviceContext.create(pctx, "device1");
+        DeviceVariableContext temp = DeviceVariableContext.create(dctx, VariableConstants.INDOOR_TEMP_F);
+        DeviceVariableContext on = DeviceVariableContext.create(dctx, VariableConstants.ON);
+
+        List<RuleAssumption> assumptions = Arrays.asList(
+            RuleAssumption.create(ConditionConstants.EVENT_ID, "=", DeviceVariablesUpdateEvent.ID),
+            RuleAssumption.create(ConditionConstants.EVENT_ID, "<>", DeviceVariablesUpdateEvent.ID),
+            RuleAssumption.create(ConditionConstants.DEVICE_CTX, "=", dctx.toString()),
+            RuleAssumption.create(ConditionConstants.DEVICE_CTX, "containsatleastone", "[" + dctx.toString() + ",other]"),
+            RuleAssumption.create(ConditionConstants.VARIABLE_NAME, "=", VariableConstants.ON),
+            RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, "=", "true"),
+            RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, "=", "80"),
+            RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, ">", "80"),
+            RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, ">=", "80"),
+            RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, "<", "80"),
+            RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, "<=", "80"),
+            RuleAssumption.create(ConditionConstants.VARIABLE_VALUE, ">", "hot"),
+            RuleAssumption.create(ConditionConstants.VARIABLE_OLD_VALUE, "<=", "70"),
+            RuleAssumption.create(ConditionConstants.VARIABLE_OLD_VALUE, ">", "70"),
+            RuleAssumption.create(ConditionConstants.PERSON_CTX, "=", "person1")
+        );
+        List<JREEventContext> ctxs = Arrays.asList(
+            new JREEventContext(new DeviceVariableUpdate(temp, 70L, 81.0)),
+            new JREEventContext(new DeviceVariableUpdate(temp, 70.1f, 80)),
+            new JREEventContext(new DeviceVariableUpdate(temp, null, "79.5")),
+            new JREEventContext(new DeviceVariableUpdate(temp, null, "abc")),
+            new JREEventContext(new DeviceVariableUpdate(temp, null, null)),
+            new JREEventContext(new DeviceVariableUpdate(on, false, true)),
+            new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device2", VariableConstants.ON), true, false)),
+            new JREEventContext(new DeviceUnavailableEvent(System.currentTimeMillis(), dctx))
+        );
+
+        // every assumption on its own
+        for (RuleAssumption a : assumptions) {
+            RulePredicate p = RulePredicate.compile(a);
+            for (JREEventContext ctx : ctxs) {
+                assertEquals(a + " for " + ctx.variableValue(), a.evaluate(ctx), p.test(ctx));
+            }
+        }
+
+        // and in lists of each length that has its own combinator
+        for (int length=0; length <= 4; length++) {
+            for (int i=0; i + length <= assumptions.size(); i++) {
+                List<RuleAssumption> list = assumptions.subList(i, i + length);
+                RulePredicate p = RulePredicate.compile(list);
+                for (JREEventContext ctx : ctxs) {
+                    boolean expected = true;
+                    for (RuleAssumption a : list) {
+                        expected &= a.evaluate(ctx);
+                    }
+                    assertEquals(list.toString(), expected, p.test(ctx));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.indexed;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.device.DeviceUnavailableEvent;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.condition.*;
+import com.whizzosoftware.hobson.rules.jruleengine.JREEventContext;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ShardedRuleSetTest {
+    @Test
+    public void testFilingAndMatching() {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        DeviceTurnsOnConditionClass turnsOn = new DeviceTurnsOnConditionClass(pctx);
+        DeviceUnavailableConditionClass unavailable = new DeviceUnavailableConditionClass(pctx);
+
+        // one rule per device plus a rule monitoring every device
+        JSONArray rules = new JSONArray();
+        List<DeviceContext> all = new ArrayList<>();
+        for (int i=0; i < 8; i++) {
+            DeviceContext dctx = DeviceContext.create(pctx, "device" + i);
+            all.add(dctx);
+            rules.put(createRuleJSON("task" + i, turnsOn.createAssumptionJSON(new PropertyContainer(turnsOn.getContext(), Collections.singletonMap("devices", (Object)Collections.singletonList(dctx))))));
+        }
+        rules.put(createRuleJSON("all", unavailable.createAssumptionJSON(new PropertyContainer(unavailable.getContext(), Collections.singletonMap("devices", (Object)all)))));
+        JSONObject json = new JSONObject();
+        json.put("rules", rules);
+
+        ShardedRuleSet rs = ShardedRuleSet.compile(json, 4, null);
+        assertEquals(4, rs.getShardCount());
+        assertEquals(9, rs.getRuleCount());
+
+        // the multi-device rule is filed once in the shard of each of its devices
+        Set<Integer> shards = new HashSet<>();
+        for (DeviceContext dctx : all) {
+            shards.add((dctx.toString().hashCode() & 0x7fffffff) % 4);
+        }
+        int filed = 0;
+        for (int count : rs.getShardRuleCounts()) {
+            filed += count;
+        }
+        assertEquals(8 + shards.size(), filed);
+        assertEquals(0, rs.getGlobalRuleCount());
+
+        List<IndexedRule> results = new ArrayList<>();
+        rs.match(new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device5", VariableConstants.ON), false, true)), results);
+        assertEquals(1, results.size());
+        assertEquals("task5", results.get(0).getName());
+
+        results.clear();
+        rs.match(new JREEventContext(new DeviceUnavailableEvent(System.currentTimeMillis(), DeviceContext.create(pctx, "device3"))), results);
+        assertEquals(1, results.size());
+        assertEquals("all", results.get(0).getName());
+
+        // removing a rule removes it from every shard
+        assertNotNull(rs.remove("all"));
+        assertEquals(8, rs.getRuleCount());
+        filed = 0;
+        for (int count : rs.getShardRuleCounts()) {
+            filed += count;
+        }
+        assertEquals(8, filed);
+        results.clear();
+        rs.match(new JREEventContext(new DeviceUnavailableEvent(System.currentTimeMillis(), DeviceContext.create(pctx, "device3"))), results);
+        assertEquals(0, results.size());
+
+        // replacing a rule re-files it under its new device
+        rs.add(IndexedRuleSet.compileRule(createRuleJSON("task5", turnsOn.createAssumptionJSON(new PropertyContainer(turnsOn.getContext(), Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device9"))))))));
+        assertEquals(8, rs.getRuleCount());
+        results.clear();
+        rs.match(new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device5", VariableConstants.ON), false, true)), results);
+        assertEquals(0, results.size());
+        rs.match(new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device9", VariableConstants.ON), false, true)), results);
+        assertEquals(1, results.size());
+    }
+
+    @Test
+    public void testReplaceAcrossShardsWhileMatching() throws Exception {
+        final PluginContext pctx = PluginContext.createLocal("plugin");
+        DeviceUnavailableConditionClass unavailable = new DeviceUnavailableConditionClass(pctx);
+
+        // three devices that each land in a different shard
+        List<DeviceContext> devices = new ArrayList<>();
+        Set<Integer> used = new HashSet<>();
+        for (int i=0; devices.size() < 3; i++) {
+            DeviceContext dctx = DeviceContext.create(pctx, "device" + i);
+            if (used.add((dctx.toString().hashCode() & 0x7fffffff) % 4)) {
+                devices.add(dctx);
+            }
+        }
+        final IndexedRule r1 = IndexedRuleSet.compileRule(createRuleJSON("task1", unavailable.createAssumptionJSON(new PropertyContainer(unavailable.getContext(), Collections.singletonMap("devices", (Object)Arrays.asList(devices.get(0), devices.get(1)))))));
+        final IndexedRule r2 = IndexedRuleSet.compileRule(createRuleJSON("task1", unavailable.createAssumptionJSON(new PropertyContainer(unavailable.getContext(), Collections.singletonMap("devices", (Object)Arrays.asList(devices.get(1), devices.get(2)))))));
+
+        final ShardedRuleSet rs = new ShardedRuleSet(4, null);
+        rs.add(r1);
+
+        // the device both versions monitor must match throughout every replacement
+        final DeviceContext shared = devices.get(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<String> errors = new CopyOnWriteArrayList<>();
+        Thread matcher = new Thread() {
+            public void run() {
+                List<IndexedRule> results = new ArrayList<>();
+                while (running.get()) {
+                    results.clear();
+                    rs.match(new JREEventContext(new DeviceUnavailableEvent(System.currentTimeMillis(), shared)), results);
+                    if (results.isEmpty()) {
+                        errors.add("No rule matched");
+                        return;
+                    }
+                }
+            }
+        };
+        matcher.start();
+        for (int i=0; i < 2000 && errors.isEmpty(); i++) {
+            rs.add(i % 2 == 0 ? r2 : r1);
+        }
+        running.set(false);
+        matcher.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        // once settled the rule is only filed where its devices are
+        rs.add(r2);
+        assertEquals(1, rs.getRuleCount());
+        int filed = 0;
+        for (int count : rs.getShardRuleCounts()) {
+            filed += count;
+        }
+        assertEquals(2, filed);
+        List<IndexedRule> results = new ArrayList<>();
+        rs.match(new JREEventContext(new DeviceUnavailableEvent(System.currentTimeMillis(), devices.get(0))), results);
+        assertEquals(0, results.size());
+        rs.match(new JREEventContext(new DeviceUnavailableEvent(System.currentTimeMillis(), devices.get(2))), results);
+        assertEquals(1, results.size());
+    }
+
+    private JSONObject createRuleJSON(String name, JSONArray assumptions) {
+        JSONObject rule = new JSONObject();
+        rule.put("name", name);
+        rule.put("assumptions", assumptions);
+        JSONArray actions = new JSONArray();
+        JSONObject action = new JSONObject();
+        action.put("method", ConditionConstants.FIRE_TRIGGER);
+        action.put("arg1", "local:" + name);
+        actions.put(action);
+        rule.put("actions", actions);
+        return rule;
+    }
+}
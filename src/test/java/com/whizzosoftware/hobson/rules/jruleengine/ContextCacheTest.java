@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.jruleengine;
+
+import com.whizzosoftware.hobson.api.hub.HubContext;
+import com.whizzosoftware.hobson.api.task.TaskContext;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class ContextCacheTest {
+    @Test
+    public void testBidirectionalLookup() {
+        final int[] parses = new int[1];
+        ContextCache<TaskContext> cache = new ContextCache<>(10, new ContextCache.Parser<TaskContext>() {
+            @Override
+            public TaskContext parse(String s) {
+                parses[0]++;
+                return TaskContext.create(s);
+            }
+        });
+
+        TaskContext ctx = TaskContext.create(HubContext.createLocal(), "task1");
+        String s = cache.toString(ctx);
+        assertEquals(ctx.toString(), s);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // the reverse direction was populated by the first conversion
+        assertSame(ctx, cache.toObject(s));
+        assertSame(s, cache.toString(ctx));
+        assertEquals(0, parses[0]);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2.0 / 3.0, cache.getHitRate(), 0.001);
+
+        // unknown strings are parsed once
+        String s2 = TaskContext.create(HubContext.createLocal(), "task2").toString();
+        TaskContext ctx2 = cache.toObject(s2);
+        assertEquals("task2", ctx2.getTaskId());
+        assertSame(ctx2, cache.toObject(s2));
+        assertEquals(1, parses[0]);
+    }
+
+    @Test
+    public void testEviction() {
+        ContextCache<TaskContext> cache = new ContextCache<>(2, null);
+        TaskContext t1 = TaskContext.create(HubContext.createLocal(), "task1");
+        TaskContext t2 = TaskContext.create(HubContext.createLocal(), "task2");
+        TaskContext t3 = TaskContext.create(HubContext.createLocal(), "task3");
+
+        cache.put(t1);
+        cache.put(t2);
+        assertSame(t1, cache.toObject(t1.toString()));
+        cache.put(t3);
+
+        // task2 was least recently used
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.toObject(t2.toString()));
+        assertSame(t1, cache.toObject(t1.toString()));
+        assertSame(t3, cache.toObject(t3.toString()));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final ContextCache<TaskContext> cache = new ContextCache<>(64, new ContextCache.Parser<TaskContext>() {
+            @Override
+            public TaskContext parse(String s) {
+                return TaskContext.create(s);
+            }
+        });
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        Thread[] threads = new Thread[4];
+        for (int t=0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        for (int i=0; i < 10000; i++) {
+                            TaskContext ctx = TaskContext.create(HubContext.createLocal(), "task" + r.nextInt(128));
+                            String s = cache.toString(ctx);
+                            assertEquals(ctx.toString(), s);
+                            assertEquals(ctx.getTaskId(), cache.toObject(s).getTaskId());
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue("size=" + cache.getSize(), cache.getSize() <= 64);
+        assertTrue(cache.getEvictionCount() > 0);
+    }
+}
@@ -18,23 +18,38 @@ import com.whizzosoftware.hobson.api.plugin.PluginContext;
 import com.whizzosoftware.hobson.api.presence.PresenceEntityContext;
 import com.whizzosoftware.hobson.api.presence.PresenceLocationContext;
 import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.api.property.PropertyContainerClassContext;
 import com.whizzosoftware.hobson.api.property.PropertyContainerSet;
 import com.whizzosoftware.hobson.api.task.*;
 import com.whizzosoftware.hobson.api.task.condition.TaskConditionClass;
 import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
 import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
 import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.RuleEngineType;
 import com.whizzosoftware.hobson.rules.condition.*;
+import com.whizzosoftware.hobson.rules.indexed.ShardedRuleSet;
+import com.whizzosoftware.hobson.rules.metrics.RuleMetrics;
+import com.whizzosoftware.hobson.rules.queue.TriggerDispatcher;
+import com.whizzosoftware.hobson.rules.snapshot.RuleSnapshotFormat;
+import com.whizzosoftware.hobson.rules.snapshot.RuleSnapshots;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
+import org.junit.Assume;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class JRETaskProviderTest {
     @Test
@@ -238,6 +253,177 @@ public class JRETaskProviderTest {
         assertEquals(3, rules.length());
     }
 
+    @Test
+    public void testBinaryRuleFileWrite() throws Exception {
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+        File rulesFile = File.createTempFile("hobson-rules", ".snapshot");
+        rulesFile.deleteOnExit();
+        final MockTaskManager taskManager = createMockTaskManager(pcc);
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setRulesFile(rulesFile, RuleSnapshotFormat.BINARY);
+        assertTrue(RuleSnapshots.read(rulesFile).isEmpty());
+
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        for (int i=0; i < 2; i++) {
+            createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+                pcc.getContext(),
+                Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device" + i)))
+            )));
+        }
+
+        List<JSONObject> rules = RuleSnapshots.read(rulesFile);
+        assertEquals(2, rules.size());
+        assertEquals(4, rules.get(0).getJSONArray("assumptions").length());
+        assertEquals(rulesFile.length(), engine.getLastSnapshotBytes());
+
+        // the binary snapshot can be loaded directly
+        engine.loadRules(new FileInputStream(rulesFile));
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true)));
+        assertEquals(1, taskManager.getTaskExecutions().size());
+
+        // the event filter follows the rules that were loaded
+        engine.loadRules(new ByteArrayInputStream(RuleSnapshots.createRuleSetJSON(rules.subList(1, 2)).toString().getBytes("UTF-8")));
+        assertEquals(1, engine.getEventFilter().getRuleCount());
+        assertFalse(engine.isEventRelevant(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device0", VariableConstants.ON), false, true))));
+        assertTrue(engine.isEventRelevant(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true))));
+
+        // JSON is still available as an export format
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        engine.exportRules(baos);
+        JSONObject json = new JSONObject(new JSONTokener(baos.toString("UTF-8")));
+        assertPrefix(json);
+        assertEquals(2, json.getJSONArray("rules").length());
+    }
+
+    @Test
+    public void testRuleJournalRestore() throws Exception {
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+        File rulesFile = File.createTempFile("hobson-rules", ".snapshot");
+        rulesFile.deleteOnExit();
+        File journalFile = File.createTempFile("hobson-rules", ".journal");
+        journalFile.deleteOnExit();
+        final Set<String> deletedTaskIds = new HashSet<>();
+        final MockTaskManager taskManager = new MockTaskManager() {
+            @Override
+            public HobsonTask getTask(TaskContext ctx) {
+                return deletedTaskIds.contains(ctx.getTaskId()) ? null : super.getTask(ctx);
+            }
+        };
+        taskManager.publishConditionClass(pcc);
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setRulesFile(rulesFile, RuleSnapshotFormat.BINARY, journalFile);
+
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        for (int i=0; i < 2; i++) {
+            createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+                pcc.getContext(),
+                Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device" + i)))
+            )));
+        }
+
+        // the changes are only in the journal since it hasn't been compacted
+        assertEquals(2, engine.getJournalRecordCount());
+        assertTrue(RuleSnapshots.read(rulesFile).isEmpty());
+
+        // a new provider restores the rules without any tasks being registered (i.e. after a crash)
+        JRETaskProvider engine2 = new JRETaskProvider(ctx, taskManager);
+        engine2.setTaskManager(taskManager);
+        engine2.setRulesFile(rulesFile, RuleSnapshotFormat.BINARY, journalFile);
+        assertEquals(2, engine2.getRestoredTaskIds().size());
+        assertEquals(0, engine2.getJournalRecordCount());
+        assertEquals(2, RuleSnapshots.read(rulesFile).size());
+        engine2.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true)));
+        assertEquals(1, taskManager.getTaskExecutions().size());
+
+        // registering an unchanged task doesn't journal anything but a task that no longer exists is removed
+        HobsonTask task = null;
+        for (HobsonTask t : taskManager.getTasks(HubContext.createLocal())) {
+            if (task == null || t.getContext().getTaskId().compareTo(task.getContext().getTaskId()) < 0) {
+                task = t;
+            }
+        }
+        for (HobsonTask t : taskManager.getTasks(HubContext.createLocal())) {
+            if (t != task) {
+                deletedTaskIds.add(t.getContext().getTaskId());
+            }
+        }
+        engine2.onRegisterTasks(Collections.singletonList(task.getContext()));
+        assertTrue(engine2.getRestoredTaskIds().isEmpty());
+        assertEquals(1, engine2.getJournalRecordCount());
+
+        // stopping compacts the journal
+        engine2.stop();
+        List<JSONObject> rules = RuleSnapshots.read(rulesFile);
+        assertEquals(1, rules.size());
+        assertEquals(task.getContext().getTaskId(), rules.get(0).getString("name"));
+    }
+
+    @Test
+    public void testRestoreBeforeConditionClassIsPublished() throws Exception {
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+        File rulesFile = File.createTempFile("hobson-rules", ".snapshot");
+        rulesFile.deleteOnExit();
+        File journalFile = File.createTempFile("hobson-rules", ".journal");
+        journalFile.deleteOnExit();
+        final AtomicBoolean published = new AtomicBoolean(true);
+        final MockTaskManager taskManager = new MockTaskManager() {
+            @Override
+            public TaskConditionClass getConditionClass(PropertyContainerClassContext pccc) {
+                return published.get() ? super.getConditionClass(pccc) : null;
+            }
+        };
+        taskManager.publishConditionClass(pcc);
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setRulesFile(rulesFile, RuleSnapshotFormat.BINARY, journalFile);
+
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        for (int i=0; i < 2; i++) {
+            createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+                pcc.getContext(),
+                Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device" + i)))
+            )));
+        }
+        engine.stop();
+        List<TaskContext> tctxs = new ArrayList<>();
+        for (HobsonTask t : taskManager.getTasks(HubContext.createLocal())) {
+            tctxs.add(t.getContext());
+        }
+
+        // tasks registered before the condition class is published keep their restored rules
+        published.set(false);
+        JRETaskProvider engine2 = new JRETaskProvider(ctx, taskManager);
+        engine2.setTaskManager(taskManager);
+        engine2.setRulesFile(rulesFile, RuleSnapshotFormat.BINARY, journalFile);
+        engine2.onRegisterTasks(tctxs);
+        assertEquals(2, engine2.getRestoredTaskIds().size());
+        assertEquals(0, engine2.getJournalRecordCount());
+        engine2.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true)));
+        assertEquals(1, taskManager.getTaskExecutions().size());
+
+        // tasks registered over several calls keep the rules of the ones that haven't been registered yet
+        published.set(true);
+        engine2.onRegisterTasks(Collections.singletonList(tctxs.get(0)));
+        assertEquals(1, engine2.getRestoredTaskIds().size());
+        engine2.onRegisterTasks(Collections.singletonList(tctxs.get(1)));
+        assertTrue(engine2.getRestoredTaskIds().isEmpty());
+        assertEquals(0, engine2.getJournalRecordCount());
+
+        engine2.stop();
+        assertEquals(2, RuleSnapshots.read(rulesFile).size());
+    }
+
     @Test
     public void testProcessEventForTemperatureOutOfRange() throws Exception {
         File rulesFile = createEmptyRulesFile();
@@ -280,6 +466,55 @@ public class JRETaskProviderTest {
         assertEquals(2, taskManager.getTaskExecutions().size());
     }
 
+    @Test
+    public void testProcessEventWithIndexedEngine() throws Exception {
+        File rulesFile = createEmptyRulesFile();
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceIndoorTempAboveConditionClass pcc = new DeviceIndoorTempAboveConditionClass(ctx);
+
+        final MockTaskManager taskManager = createMockTaskManager(pcc);
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setRuleEngineType(RuleEngineType.INDEXED);
+        engine.setRulesFile(rulesFile);
+        assertEquals(RuleEngineType.INDEXED, engine.getActiveRuleEngineType());
+        // assumptions are shared by default and the shared nodes are interpreted like the rules they came from
+        assertNotNull(engine.getAssumptionNetwork());
+        assertFalse(engine.getAssumptionNetwork().isCompiled());
+
+        PluginContext pctx = PluginContext.createLocal("plugin");
+
+        Map<String,Object> propValues = new HashMap<>();
+        ArrayList<DeviceContext> ctxs = new ArrayList<>();
+        ctxs.add(DeviceContext.create(pctx, "device1"));
+        ctxs.add(DeviceContext.create(pctx, "device2"));
+        propValues.put("devices", ctxs);
+        propValues.put("inTempF", "80");
+        createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+            pcc.getContext(),
+            propValues
+        )));
+
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.INDOOR_TEMP_F), null, 81.0)));
+        assertEquals(1, taskManager.getTaskExecutions().size());
+
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.INDOOR_TEMP_F), null, 79.0)));
+        assertEquals(1, taskManager.getTaskExecutions().size());
+
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device3", VariableConstants.INDOOR_TEMP_F), null, 81.0)));
+        assertEquals(1, taskManager.getTaskExecutions().size());
+
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device2", VariableConstants.INDOOR_TEMP_F), null, 81.0)));
+        assertEquals(2, taskManager.getTaskExecutions().size());
+
+        // switching engines re-loads the current rules
+        engine.setRuleEngineType(RuleEngineType.JRULEENGINE);
+        assertEquals(RuleEngineType.JRULEENGINE, engine.getActiveRuleEngineType());
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device2", VariableConstants.INDOOR_TEMP_F), null, 81.0)));
+        assertEquals(3, taskManager.getTaskExecutions().size());
+    }
+
     @Test
     public void testProcessEventForDeviceUnavailable() throws Exception {
         File rulesFile = createEmptyRulesFile();
@@ -446,6 +681,590 @@ public class JRETaskProviderTest {
         assertEquals(0, taskManager.getTaskExecutions().size());
     }
 
+    @Test
+    public void testSessionPoolReuse() throws Exception {
+        File rulesFile = createEmptyRulesFile();
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+        final MockTaskManager taskManager = createMockTaskManager(pcc);
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setSessionPoolSize(2);
+        engine.setRulesFile(rulesFile);
+
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+            pcc.getContext(),
+            Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device1")))
+        )));
+        assertEquals(0, engine.getSessionPoolHits());
+        assertEquals(0, engine.getSessionPoolMisses());
+
+        // first event creates a session, subsequent events re-use it
+        for (int i=0; i < 3; i++) {
+            engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true)));
+        }
+        assertEquals(3, taskManager.getTaskExecutions().size());
+        assertEquals(1, engine.getSessionPoolMisses());
+        assertEquals(2, engine.getSessionPoolHits());
+
+        // re-loading rules drains the pool so the next event needs a new session
+        createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+            pcc.getContext(),
+            Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device2")))
+        )));
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device2", VariableConstants.ON), false, true)));
+        assertEquals(4, taskManager.getTaskExecutions().size());
+        assertEquals(2, engine.getSessionPoolMisses());
+        assertEquals(2, engine.getSessionPoolHits());
+    }
+
+    @Test
+    public void testAsynchronousSnapshot() throws Exception {
+        File rulesFile = createEmptyRulesFile();
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+        final MockTaskManager taskManager = createMockTaskManager(pcc);
+        final List<Runnable> snapshots = new ArrayList<>();
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setRulesFile(rulesFile);
+        engine.setSnapshotExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                snapshots.add(command);
+            }
+        });
+
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+            pcc.getContext(),
+            Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device1")))
+        )));
+        createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+            pcc.getContext(),
+            Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device2")))
+        )));
+
+        // rules are live before the snapshot is written
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device2", VariableConstants.ON), false, true)));
+        assertEquals(1, taskManager.getTaskExecutions().size());
+
+        // both changes are coalesced into a single pending snapshot
+        assertEquals(1, snapshots.size());
+        assertFalse(new JSONObject(new JSONTokener(new FileReader(rulesFile))).has("rules"));
+        snapshots.get(0).run();
+        assertEquals(2, new JSONObject(new JSONTokener(new FileReader(rulesFile))).getJSONArray("rules").length());
+    }
+
+    @Test
+    public void testIncrementalDelete() throws Exception {
+        File rulesFile = createEmptyRulesFile();
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+        final MockTaskManager taskManager = createMockTaskManager(pcc);
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setRuleEngineType(RuleEngineType.INDEXED);
+        engine.setRulesFile(rulesFile);
+
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+            pcc.getContext(),
+            Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device1")))
+        )));
+
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true)));
+        assertEquals(1, taskManager.getTaskExecutions().size());
+
+        engine.onDeleteTask(taskManager.getTasks(HubContext.createLocal()).iterator().next().getContext());
+        assertEquals(RuleEngineType.INDEXED, engine.getActiveRuleEngineType());
+
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true)));
+        assertEquals(1, taskManager.getTaskExecutions().size());
+        assertFalse(new JSONObject(new JSONTokener(new FileReader(rulesFile))).has("rules"));
+    }
+
+    @Test
+    public void testBatchEvaluation() throws Exception {
+        for (RuleEngineType type : RuleEngineType.values()) {
+            File rulesFile = createEmptyRulesFile();
+            PluginContext ctx = PluginContext.createLocal("plugin1");
+            DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+            final MockTaskManager taskManager = createMockTaskManager(pcc);
+
+            JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+            engine.setTaskManager(taskManager);
+            engine.setRuleEngineType(type);
+            engine.setRulesFile(rulesFile);
+
+            PluginContext pctx = PluginContext.createLocal("plugin");
+            List<DeviceContext> devices = new ArrayList<>();
+            devices.add(DeviceContext.create(pctx, "device1"));
+            devices.add(DeviceContext.create(pctx, "device2"));
+            createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+                pcc.getContext(),
+                Collections.singletonMap("devices", (Object)devices)
+            )));
+
+            List<DeviceVariableUpdate> updates = new ArrayList<>();
+            updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true));
+            updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device2", VariableConstants.ON), false, true));
+
+            // both updates match the same task but it only fires once
+            assertTrue(engine.isBatchEvaluation());
+            engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), updates));
+            assertEquals(type.toString(), 1, taskManager.getTaskExecutions().size());
+
+            // without batching, each matching update fires the task
+            engine.setBatchEvaluation(false);
+            engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), updates));
+            assertEquals(type.toString(), 3, taskManager.getTaskExecutions().size());
+        }
+    }
+
+    @Test
+    public void testShardedEvaluation() throws Exception {
+        File rulesFile = createEmptyRulesFile();
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+        final MockTaskManager taskManager = createMockTaskManager(pcc);
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setRuleEngineType(RuleEngineType.INDEXED);
+        engine.setEvaluationPool(pool);
+        engine.setEvaluationShards(4);
+        engine.setRulesFile(rulesFile);
+        assertTrue(engine.getIndexedRules() instanceof ShardedRuleSet);
+
+        // one task per device plus a task monitoring all of them
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        List<DeviceContext> devices = new ArrayList<>();
+        for (int i=0; i < 10; i++) {
+            DeviceContext dctx = DeviceContext.create(pctx, "device" + i);
+            devices.add(dctx);
+            createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+                pcc.getContext(),
+                Collections.singletonMap("devices", (Object)Collections.singletonList(dctx))
+            )));
+        }
+        createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+            pcc.getContext(),
+            Collections.singletonMap("devices", (Object)devices)
+        )));
+        assertEquals(11, engine.getIndexedRules().getRuleCount());
+
+        // the shards are matched in parallel and the task monitoring every device still only fires once
+        List<DeviceVariableUpdate> updates = new ArrayList<>();
+        for (DeviceContext dctx : devices) {
+            updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, VariableConstants.ON), false, true));
+        }
+        engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), updates));
+        assertEquals(11, taskManager.getTaskExecutions().size());
+
+        // changing the shard count re-loads the rules
+        engine.setEvaluationShards(1);
+        assertFalse(engine.getIndexedRules() instanceof ShardedRuleSet);
+        assertEquals(11, engine.getIndexedRules().getRuleCount());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        for (RuleEngineType type : RuleEngineType.values()) {
+            File rulesFile = createEmptyRulesFile();
+            PluginContext ctx = PluginContext.createLocal("plugin1");
+            DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+            final MockTaskManager taskManager = createMockTaskManager(pcc);
+
+            JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+            engine.setTaskManager(taskManager);
+            engine.setRuleEngineType(type);
+            engine.setRulesFile(rulesFile);
+
+            PluginContext pctx = PluginContext.createLocal("plugin");
+            createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+                pcc.getContext(),
+                Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device1")))
+            )));
+            String taskId = taskManager.getTasks(HubContext.createLocal()).iterator().next().getContext().getTaskId();
+
+            engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true)));
+            engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device2", VariableConstants.ON), false, true)));
+            assertEquals(1, taskManager.getTaskExecutions().size());
+
+            RuleMetrics metrics = engine.getMetrics();
+            assertEquals(type.toString(), 2, metrics.getEventCount());
+            assertEquals(type.toString(), 2, metrics.getEvaluation().getCount());
+            assertEquals(type.toString(), 1, metrics.getTriggerDispatch().getCount());
+            assertEquals(type.toString(), type == RuleEngineType.JRULEENGINE ? 2 : 0, metrics.getSessionAcquisition().getCount());
+            assertEquals(type.toString(), 1, (long)metrics.getRuleMatchCounts().get(taskId));
+            assertEquals(type.toString(), 1, (long)metrics.getConditionClassMatchCounts().get(DeviceTurnsOnConditionClass.ID));
+
+            // deleting the task stops tracking its matches
+            engine.onDeleteTask(taskManager.getTasks(HubContext.createLocal()).iterator().next().getContext());
+            assertFalse(metrics.getRuleMatchCounts().containsKey(taskId));
+        }
+    }
+
+    @Test
+    public void testEdgeTriggeredTemperature() throws Exception {
+        for (RuleEngineType type : RuleEngineType.values()) {
+            File rulesFile = createEmptyRulesFile();
+            PluginContext ctx = PluginContext.createLocal("plugin1");
+            DeviceIndoorTempAboveConditionClass pcc = new DeviceIndoorTempAboveConditionClass(ctx);
+
+            final MockTaskManager taskManager = createMockTaskManager(pcc);
+
+            JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+            engine.setTaskManager(taskManager);
+            engine.setRuleEngineType(type);
+            engine.setRulesFile(rulesFile);
+
+            PluginContext pctx = PluginContext.createLocal("plugin");
+            Map<String,Object> values = new HashMap<>();
+            values.put("devices", Collections.singletonList(DeviceContext.create(pctx, "device1")));
+            values.put(VariableConstants.INDOOR_TEMP_F, "80");
+            values.put(ConditionConstants.EDGE_TRIGGERED, true);
+            values.put(ConditionConstants.HYSTERESIS, 2);
+            createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(pcc.getContext(), values)));
+            assertEquals(1, engine.getTriggerGates().size());
+
+            // only the first report above 80 and the first one after falling to 78 or below fire the task
+            double[] temps = new double[] {81, 82, 79, 81, 77, 81, 83};
+            for (double t : temps) {
+                engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.INDOOR_TEMP_F), null, t)));
+            }
+            assertEquals(type.toString(), 2, taskManager.getTaskExecutions().size());
+            assertEquals(type.toString(), 3, engine.getMetrics().getSuppressedTriggerCount());
+
+            engine.onDeleteTask(taskManager.getTasks(HubContext.createLocal()).iterator().next().getContext());
+            assertEquals(0, engine.getTriggerGates().size());
+        }
+    }
+
+    @Test
+    public void testTriggerConditionCache() throws Exception {
+        File rulesFile = createEmptyRulesFile();
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+        final MockTaskManager taskManager = createMockTaskManager(pcc);
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setRulesFile(rulesFile);
+
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+            pcc.getContext(),
+            Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device1")))
+        )));
+        TriggerConditionCache cache = engine.getTriggerConditionCache();
+        assertEquals(1, cache.size());
+        long misses = cache.getMissCount();
+
+        // re-registering an unchanged task doesn't resolve its trigger condition again
+        TaskContext tctx = taskManager.getTasks(HubContext.createLocal()).iterator().next().getContext();
+        engine.onRegisterTasks(Collections.singletonList(tctx));
+        assertEquals(misses, cache.getMissCount());
+        assertTrue(cache.getHitCount() > 0);
+
+        // an update re-resolves it
+        engine.onUpdateTask(tctx);
+        assertEquals(misses + 1, cache.getMissCount());
+
+        // a deleted task is removed from the cache
+        engine.onDeleteTask(tctx);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testTriggerConditionCacheBeforeConditionClassIsPublished() throws Exception {
+        File rulesFile = createEmptyRulesFile();
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+        final MockTaskManager taskManager = new MockTaskManager();
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setRulesFile(rulesFile);
+
+        // a task registered before its condition class is published isn't cached as not owned
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+            pcc.getContext(),
+            Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device1")))
+        )));
+        TriggerConditionCache cache = engine.getTriggerConditionCache();
+        assertEquals(0, cache.size());
+
+        // so it is picked up once the class is published
+        taskManager.publishConditionClass(pcc);
+        TaskContext tctx = taskManager.getTasks(HubContext.createLocal()).iterator().next().getContext();
+        engine.onRegisterTasks(Collections.singletonList(tctx));
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get(taskManager.getTask(tctx), taskManager));
+    }
+
+    @Test
+    public void testParallelTaskRegistration() throws Exception {
+        for (RuleEngineType type : RuleEngineType.values()) {
+            File rulesFile = createEmptyRulesFile();
+            PluginContext ctx = PluginContext.createLocal("plugin1");
+            DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+            final MockTaskManager taskManager = createMockTaskManager(pcc);
+            ForkJoinPool pool = new ForkJoinPool(4);
+
+            JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+            engine.setTaskManager(taskManager);
+            engine.setRuleEngineType(type);
+            engine.setRulesFile(rulesFile);
+            engine.setRegistrationPool(pool);
+
+            PluginContext pctx = PluginContext.createLocal("plugin");
+            HubContext hctx = HubContext.createLocal();
+            int count = JRETaskProvider.REGISTRATION_BATCH_SIZE + 50;
+            for (int i=0; i < count; i++) {
+                taskManager.createTask(hctx, "task" + i, null, Collections.singletonList(new PropertyContainer(
+                    pcc.getContext(),
+                    Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device" + i)))
+                )), new PropertyContainerSet("actionset1", null));
+            }
+            List<TaskContext> ctxs = new ArrayList<>();
+            for (HobsonTask task : taskManager.getTasks(hctx)) {
+                ctxs.add(task.getContext());
+            }
+            engine.onRegisterTasks(ctxs);
+            pool.shutdown();
+
+            assertEquals(type.toString(), type, engine.getActiveRuleEngineType());
+            assertEquals(type.toString(), 1, engine.getMetrics().getTaskRegistration().getCount());
+
+            // rules are kept in registration order
+            List<JSONObject> rules = RuleSnapshots.read(rulesFile);
+            assertEquals(type.toString(), count, rules.size());
+            for (int i=0; i < count; i++) {
+                assertEquals(type.toString(), ctxs.get(i).getTaskId(), rules.get(i).getString("name"));
+            }
+
+            engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device" + (count - 1), VariableConstants.ON), false, true)));
+            assertEquals(type.toString(), 1, taskManager.getTaskExecutions().size());
+        }
+    }
+
+    @Test
+    public void testConcurrentTaskChangesDuringEvaluation() throws Exception {
+        for (RuleEngineType type : RuleEngineType.values()) {
+            File rulesFile = createEmptyRulesFile();
+            PluginContext ctx = PluginContext.createLocal("plugin1");
+            DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+            final AtomicLong triggers = new AtomicLong();
+            final MockTaskManager taskManager = new MockTaskManager() {
+                @Override
+                public void fireTaskTrigger(TaskContext ctx) {
+                    triggers.incrementAndGet();
+                }
+            };
+            taskManager.publishConditionClass(pcc);
+
+            final JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+            engine.setTaskManager(taskManager);
+            engine.setRuleEngineType(type);
+            engine.setRulesFile(rulesFile);
+
+            final PluginContext pctx = PluginContext.createLocal("plugin");
+            HubContext hctx = HubContext.createLocal();
+            final int count = 20;
+            for (int i=0; i < count; i++) {
+                taskManager.createTask(hctx, "task" + i, null, Collections.singletonList(new PropertyContainer(
+                    pcc.getContext(),
+                    Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device" + i)))
+                )), new PropertyContainerSet("actionset1", null));
+            }
+            final List<TaskContext> ctxs = new ArrayList<>();
+            for (HobsonTask task : taskManager.getTasks(hctx)) {
+                ctxs.add(task.getContext());
+            }
+            engine.onRegisterTasks(ctxs);
+
+            // tasks are updated, deleted and re-registered while other threads evaluate events
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final AtomicBoolean running = new AtomicBoolean(true);
+            List<Thread> threads = new ArrayList<>();
+            for (int t=0; t < 2; t++) {
+                final int seed = t;
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        Random r = new Random(seed);
+                        try {
+                            for (int i=0; i < 100; i++) {
+                                TaskContext tctx = ctxs.get(r.nextInt(count));
+                                switch (r.nextInt(3)) {
+                                    case 0:
+                                        engine.onUpdateTask(tctx);
+                                        break;
+                                    case 1:
+                                        engine.onDeleteTask(tctx);
+                                        break;
+                                    default:
+                                        engine.onRegisterTasks(Collections.singletonList(tctx));
+                                        break;
+                                }
+                                engine.getRules();
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+            }
+            for (int t=0; t < 2; t++) {
+                final int seed = 100 + t;
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        Random r = new Random(seed);
+                        try {
+                            while (running.get()) {
+                                engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device" + r.nextInt(count), VariableConstants.ON), false, true)));
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+            }
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (int t=0; t < 2; t++) {
+                threads.get(t).join(30000);
+            }
+            running.set(false);
+            for (Thread t : threads) {
+                t.join(30000);
+            }
+            assertNull(type.toString(), failure.get());
+
+            // once every task is registered again, the rules and indexes are consistent
+            engine.onRegisterTasks(ctxs);
+            assertEquals(type.toString(), count, engine.getRules().size());
+            for (TaskContext tctx : ctxs) {
+                assertTrue(type.toString(), engine.hasTask(tctx.getTaskId()));
+            }
+            triggers.set(0);
+            for (int i=0; i < count; i++) {
+                engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device" + i, VariableConstants.ON), false, true)));
+            }
+            assertEquals(type.toString(), count, triggers.get());
+        }
+    }
+
+    @Test
+    public void testAsynchronousTriggerDispatch() throws Exception {
+        for (RuleEngineType type : RuleEngineType.values()) {
+            File rulesFile = createEmptyRulesFile();
+            PluginContext ctx = PluginContext.createLocal("plugin1");
+            DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+            final MockTaskManager taskManager = createMockTaskManager(pcc);
+
+            JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+            engine.setTaskManager(taskManager);
+            engine.setRuleEngineType(type);
+            engine.setRulesFile(rulesFile);
+
+            // a dispatcher that hasn't been started rejects everything
+            TriggerDispatcher dispatcher = new TriggerDispatcher(2, 10);
+            dispatcher.setLagHistogram(engine.getMetrics().getDispatchLag());
+            engine.setTriggerDispatcher(dispatcher);
+
+            PluginContext pctx = PluginContext.createLocal("plugin");
+            createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+                pcc.getContext(),
+                Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device1")))
+            )));
+
+            engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true)));
+            assertEquals(type.toString(), 0, taskManager.getTaskExecutions().size());
+            assertEquals(type.toString(), 1, engine.getMetrics().getRejectedTriggerCount());
+
+            dispatcher.start();
+            engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true)));
+            engine.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device1", VariableConstants.ON), false, true)));
+            assertTrue(dispatcher.stop(5, TimeUnit.SECONDS));
+
+            assertEquals(type.toString(), 2, taskManager.getTaskExecutions().size());
+            assertEquals(type.toString(), 2, dispatcher.getDispatchedCount());
+            assertEquals(type.toString(), 2, engine.getMetrics().getDispatchLag().getCount());
+            assertEquals(type.toString(), 2, engine.getMetrics().getTriggerDispatch().getCount());
+        }
+    }
+
+    @Test
+    public void testSteadyStateAllocation() throws Exception {
+        java.lang.management.ThreadMXBean mxb = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(mxb instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)mxb).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean tmxb = (com.sun.management.ThreadMXBean)mxb;
+        tmxb.setThreadAllocatedMemoryEnabled(true);
+
+        File rulesFile = createEmptyRulesFile();
+        PluginContext ctx = PluginContext.createLocal("plugin1");
+        DeviceTurnsOnConditionClass pcc = new DeviceTurnsOnConditionClass(ctx);
+
+        final MockTaskManager taskManager = createMockTaskManager(pcc);
+
+        JRETaskProvider engine = new JRETaskProvider(ctx, taskManager);
+        engine.setTaskManager(taskManager);
+        engine.setRuleEngineType(RuleEngineType.INDEXED);
+        engine.setRulesFile(rulesFile);
+
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        createTask(taskManager, engine, HubContext.createLocal(), Collections.singletonList(new PropertyContainer(
+            pcc.getContext(),
+            Collections.singletonMap("devices", (Object)Collections.singletonList(DeviceContext.create(pctx, "device1")))
+        )));
+
+        // one event is rejected by the rule's assumptions, the other has no candidate rules at all; each event in the
+        // pool is a distinct object with its own contexts (as events from the bus are) so nothing can be cached by
+        // identity
+        DeviceVariablesUpdateEvent[] events = new DeviceVariablesUpdateEvent[256];
+        for (int i=0; i < events.length; i += 2) {
+            events[i] = new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(DeviceContext.create(pctx, "device1"), VariableConstants.ON), true, false));
+            events[i + 1] = new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(DeviceContext.create(pctx, "device2"), VariableConstants.ON), false, true));
+        }
+
+        for (int i=0; i < 100000; i++) {
+            engine.processEvent(events[i % events.length]);
+        }
+
+        long tid = Thread.currentThread().getId();
+        long before = tmxb.getThreadAllocatedBytes(tid);
+        for (int i=0; i < 20000; i++) {
+            engine.processEvent(events[i % events.length]);
+        }
+        long allocated = tmxb.getThreadAllocatedBytes(tid) - before;
+
+        assertEquals(0, taskManager.getTaskExecutions().size());
+        assertTrue("Allocated " + allocated + " bytes for 20000 events", allocated < 20000);
+    }
+
     private void assertPrefix(JSONObject json) throws JSONException {
         assertEquals("Hobson Rules", json.getString("name"));
         assertEquals("Hobson Rules", json.getString("description"));
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.jruleengine;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.rules.condition.ThresholdGate;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+public class TriggerGatesTest {
+    @Test
+    public void testEquivalentGateKeepsState() {
+        DeviceContext dctx = DeviceContext.create(PluginContext.createLocal("plugin"), "device1");
+        TriggerGates gates = new TriggerGates();
+        ThresholdGate gate = createGate(dctx, 80.0);
+        gates.put("task1", gate);
+        gates.observe(createContexts(dctx, 81.0));
+        assertEquals(1, gate.getStateCount());
+
+        // re-registering the same condition keeps the existing gate and the device's state
+        gates.put("task1", createGate(dctx, 80.0));
+        assertSame(gate, gates.get("task1"));
+        assertTrue(gates.allow("task1", createContexts(dctx, 81.0)));
+
+        // a changed condition replaces it
+        ThresholdGate gate2 = createGate(dctx, 85.0);
+        gates.put("task1", gate2);
+        assertSame(gate2, gates.get("task1"));
+        gates.observe(createContexts(dctx, 90.0));
+        assertEquals(81.0, gate.getLastValue(dctx.toString()), 0.001);
+        assertEquals(1, gate2.getStateCount());
+
+        gates.remove("task1");
+        assertEquals(0, gates.size());
+    }
+
+    @Test
+    public void testPutAll() {
+        PluginContext pctx = PluginContext.createLocal("plugin");
+        DeviceContext dctx1 = DeviceContext.create(pctx, "device1");
+        DeviceContext dctx2 = DeviceContext.create(pctx, "device2");
+        TriggerGates gates = new TriggerGates();
+        Map<String,ThresholdGate> m = new HashMap<>();
+        m.put("task1", createGate(dctx1, 80.0));
+        m.put("task2", createGate(dctx1, 85.0));
+        m.put("task3", createGate(dctx2, 80.0));
+        gates.putAll(m);
+        assertEquals(3, gates.size());
+
+        gates.observe(createContexts(dctx1, 82.0));
+        assertEquals(1, gates.get("task1").getStateCount());
+        assertEquals(1, gates.get("task2").getStateCount());
+        assertEquals(0, gates.get("task3").getStateCount());
+
+        // removed gates are no longer shown events for their devices
+        ThresholdGate gate2 = gates.get("task2");
+        m.clear();
+        m.put("task2", null);
+        gates.putAll(m);
+        assertEquals(2, gates.size());
+        gates.observe(createContexts(dctx1, 90.0));
+        assertEquals(82.0, gate2.getLastValue(dctx1.toString()), 0.001);
+        assertEquals(90.0, gates.get("task1").getLastValue(dctx1.toString()), 0.001);
+    }
+
+    private ThresholdGate createGate(DeviceContext dctx, double threshold) {
+        return new ThresholdGate(VariableConstants.INDOOR_TEMP_F, Collections.singleton(dctx.toString()), true, threshold, 0);
+    }
+
+    private List<JREEventContext> createContexts(DeviceContext dctx, double value) {
+        return Collections.singletonList(new JREEventContext(new DeviceVariableUpdate(DeviceVariableContext.create(dctx, VariableConstants.INDOOR_TEMP_F), null, value)));
+    }
+}
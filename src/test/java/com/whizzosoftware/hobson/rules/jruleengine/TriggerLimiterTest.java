@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.jruleengine;
+
+import com.whizzosoftware.hobson.api.HobsonRuntimeException;
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.property.PropertyContainer;
+import com.whizzosoftware.hobson.rules.condition.ConditionConstants;
+import com.whizzosoftware.hobson.rules.condition.DeviceTurnsOnConditionClass;
+import com.whizzosoftware.hobson.rules.condition.TriggerThrottle;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TriggerLimiterTest {
+    @Test
+    public void testUnthrottledTrigger() {
+        TriggerLimiter limiter = new TriggerLimiter(null);
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 0));
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 0));
+        limiter.put("task1", new TriggerThrottle(0, 0, 0, 0));
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    public void testMinInterval() {
+        TriggerLimiter limiter = new TriggerLimiter(null);
+        limiter.put("task1", new TriggerThrottle(0, 1000, 0, 0));
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 5000));
+        assertEquals(TriggerLimiter.Decision.SUPPRESS, limiter.offer("task1", 5500));
+        assertEquals(TriggerLimiter.Decision.SUPPRESS, limiter.offer("task1", 5999));
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 6000));
+        assertEquals(2, limiter.getSuppressedCount());
+
+        // other triggers are unaffected
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task2", 6001));
+    }
+
+    @Test
+    public void testRateLimit() {
+        TriggerLimiter limiter = new TriggerLimiter(null);
+        limiter.put("task1", new TriggerThrottle(0, 0, 6, 2));
+
+        // the burst is available immediately
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 0));
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 1));
+        assertEquals(TriggerLimiter.Decision.SUPPRESS, limiter.offer("task1", 2));
+
+        // 6 per minute refills a token every 10 seconds
+        assertEquals(TriggerLimiter.Decision.SUPPRESS, limiter.offer("task1", 9000));
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 10002));
+        assertEquals(TriggerLimiter.Decision.SUPPRESS, limiter.offer("task1", 10003));
+
+        // the bucket never holds more than the burst
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 600000));
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 600001));
+        assertEquals(TriggerLimiter.Decision.SUPPRESS, limiter.offer("task1", 600002));
+    }
+
+    @Test
+    public void testUpdateKeepsHistory() {
+        TriggerLimiter limiter = new TriggerLimiter(null);
+        limiter.put("task1", new TriggerThrottle(0, 1000, 0, 0));
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 0));
+        limiter.put("task1", new TriggerThrottle(0, 2000, 0, 0));
+        assertEquals(TriggerLimiter.Decision.SUPPRESS, limiter.offer("task1", 1500));
+        limiter.remove("task1");
+        assertEquals(TriggerLimiter.Decision.FIRE, limiter.offer("task1", 1500));
+    }
+
+    @Test
+    public void testDebounce() throws Exception {
+        final List<String> fired = new CopyOnWriteArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        TriggerLimiter limiter = new TriggerLimiter(new TriggerLimiter.Dispatcher() {
+            @Override
+            public void dispatch(String trigger) {
+                fired.add(trigger);
+                latch.countDown();
+            }
+        });
+        try {
+            limiter.put("task1", new TriggerThrottle(100, 0, 0, 0));
+            for (int i=0; i < 5; i++) {
+                assertEquals(TriggerLimiter.Decision.DEFER, limiter.offer("task1"));
+            }
+            assertEquals(1, limiter.getPendingCount());
+            assertEquals(5, limiter.getDeferredCount());
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            // a flurry of matches only fires once
+            Thread.sleep(250);
+            assertEquals(1, fired.size());
+            assertEquals("task1", fired.get(0));
+            assertEquals(0, limiter.getPendingCount());
+        } finally {
+            limiter.stop();
+        }
+    }
+
+    @Test
+    public void testRemoveCancelsDebounce() throws Exception {
+        final List<String> fired = new CopyOnWriteArrayList<>();
+        TriggerLimiter limiter = new TriggerLimiter(new TriggerLimiter.Dispatcher() {
+            @Override
+            public void dispatch(String trigger) {
+                fired.add(trigger);
+            }
+        });
+        try {
+            limiter.put("task1", new TriggerThrottle(50, 0, 0, 0));
+            assertEquals(TriggerLimiter.Decision.DEFER, limiter.offer("task1"));
+            limiter.remove("task1");
+            Thread.sleep(250);
+            assertTrue(fired.isEmpty());
+        } finally {
+            limiter.stop();
+        }
+    }
+
+    @Test
+    public void testCreateFromCondition() {
+        DeviceTurnsOnConditionClass cc = new DeviceTurnsOnConditionClass(PluginContext.createLocal("plugin"));
+        Map<String,Object> values = new HashMap<>();
+        values.put("devices", Collections.singletonList(DeviceContext.createLocal("plugin1", "device1")));
+        assertNull(cc.createTriggerThrottle(new PropertyContainer(cc.getContext(), values)));
+
+        values.put(ConditionConstants.DEBOUNCE_MS, 500);
+        values.put(ConditionConstants.MIN_INTERVAL_MS, "1000");
+        values.put(ConditionConstants.RATE_LIMIT, 10);
+        TriggerThrottle t = cc.createTriggerThrottle(new PropertyContainer(cc.getContext(), values));
+        assertNotNull(t);
+        assertEquals(500, t.getDebounceMillis());
+        assertEquals(1000, t.getMinIntervalMillis());
+        assertEquals(10, t.getRatePerMinute());
+        assertEquals(1, t.getBurst());
+
+        values.put(ConditionConstants.RATE_LIMIT, "-1");
+        try {
+            cc.createTriggerThrottle(new PropertyContainer(cc.getContext(), values));
+            fail("Should have thrown exception");
+        } catch (HobsonRuntimeException ignored) {}
+    }
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.metrics;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testBucketBoundaries() {
+        // every value falls in a bucket whose upper bound is within 12.5% of it
+        int lastIndex = -1;
+        for (long v = 0; v < 1000000; v++) {
+            int index = LatencyHistogram.getBucketIndex(v);
+            assertTrue(index == lastIndex || index == lastIndex + 1);
+            long upper = LatencyHistogram.getBucketUpperBound(index);
+            assertTrue(upper >= v);
+            assertTrue(upper - v <= v / 8);
+            lastIndex = index;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getValueAtPercentile(99));
+
+        for (int i=1; i <= 100; i++) {
+            h.record(i * 1000);
+        }
+        assertEquals(100, h.getCount());
+        assertEquals(50500, h.getMean());
+        assertEquals(100000, h.getMax());
+        assertEquals(100000, h.getValueAtPercentile(100));
+
+        long p50 = h.getValueAtPercentile(50);
+        assertTrue(p50 >= 50000 && p50 <= 50000 * 9 / 8);
+        long p90 = h.getValueAtPercentile(90);
+        assertTrue(p90 >= 90000 && p90 <= 90000 * 9 / 8);
+
+        JSONObject json = h.toJSON();
+        assertEquals(100, json.getLong("count"));
+        assertEquals(100, json.getLong("max"));
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+    }
+
+    @Test
+    public void testLargeValues() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(Long.MAX_VALUE);
+        h.record(-5);
+        assertEquals(2, h.getCount());
+        assertEquals(Long.MAX_VALUE, h.getMax());
+        assertEquals(0, h.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, h.getValueAtPercentile(100));
+    }
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceUnavailableEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventCoalescerTest {
+    private final PluginContext pctx = PluginContext.createLocal("plugin");
+
+    @Test
+    public void testMergeWithinWindow() throws Exception {
+        final List<HobsonEvent> events = new ArrayList<>();
+        ManualScheduler scheduler = new ManualScheduler();
+        EventCoalescer coalescer = new EventCoalescer(new EventProcessor() {
+            @Override
+            public void processEvent(HobsonEvent event) {
+                events.add(event);
+            }
+        }, 50, scheduler);
+
+        coalescer.processEvent(createEvent("device1", 70.0, 71.0));
+        coalescer.processEvent(createEvent("device1", 71.0, 72.0));
+        coalescer.processEvent(createEvent("device1", 72.0, 73.0));
+        assertEquals(1, coalescer.getPendingCount());
+        assertEquals(1, scheduler.tasks.size());
+        assertTrue(events.isEmpty());
+
+        // close the window
+        scheduler.runAll();
+
+        assertEquals(1, events.size());
+        DeviceVariableUpdate u = ((DeviceVariablesUpdateEvent)events.get(0)).getUpdates().get(0);
+        assertEquals(70.0, u.getOldValue());
+        assertEquals(73.0, u.getNewValue());
+        assertEquals(3, coalescer.getReceivedCount());
+        assertEquals(2, coalescer.getMergedCount());
+        assertEquals(1, coalescer.getEmittedCount());
+        assertEquals(0, coalescer.getPendingCount());
+        coalescer.stop();
+    }
+
+    @Test
+    public void testUpdatesInOneEventStayTogether() throws Exception {
+        final List<HobsonEvent> events = new ArrayList<>();
+        ManualScheduler scheduler = new ManualScheduler();
+        EventCoalescer coalescer = new EventCoalescer(new EventProcessor() {
+            @Override
+            public void processEvent(HobsonEvent event) {
+                events.add(event);
+            }
+        }, 50, scheduler);
+
+        List<DeviceVariableUpdate> updates = new ArrayList<>();
+        updates.add(createUpdate("device1", 70.0, 71.0));
+        updates.add(createUpdate("device2", 60.0, 61.0));
+        coalescer.processEvent(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), updates));
+        coalescer.processEvent(createEvent("device1", 71.0, 72.0));
+        coalescer.processEvent(createEvent("device3", 50.0, 51.0));
+        assertEquals(3, coalescer.getPendingCount());
+
+        // the whole window is passed downstream as a single event
+        scheduler.runAll();
+        assertEquals(1, events.size());
+        List<DeviceVariableUpdate> emitted = ((DeviceVariablesUpdateEvent)events.get(0)).getUpdates();
+        assertEquals(3, emitted.size());
+        assertEquals("device1", emitted.get(0).getContext().getDeviceContext().getDeviceId());
+        assertEquals(70.0, emitted.get(0).getOldValue());
+        assertEquals(72.0, emitted.get(0).getNewValue());
+        assertEquals("device2", emitted.get(1).getContext().getDeviceContext().getDeviceId());
+        assertEquals("device3", emitted.get(2).getContext().getDeviceContext().getDeviceId());
+        assertEquals(3, coalescer.getEmittedCount());
+
+        // a window flushed early by a pass-through event isn't emitted again when its timer fires
+        coalescer.processEvent(createEvent("device1", 72.0, 73.0));
+        coalescer.processEvent(new DeviceUnavailableEvent(System.currentTimeMillis(), DeviceContext.create(pctx, "device1")));
+        coalescer.processEvent(createEvent("device2", 61.0, 62.0));
+        assertEquals(3, events.size());
+        assertEquals(2, scheduler.tasks.size());
+        scheduler.runAll();
+        assertEquals(4, events.size());
+        assertEquals("device2", ((DeviceVariablesUpdateEvent)events.get(3)).getUpdates().get(0).getContext().getDeviceContext().getDeviceId());
+        coalescer.stop();
+    }
+
+    @Test
+    public void testPassThroughPreservesDeviceOrdering() throws Exception {
+        final List<HobsonEvent> events = new ArrayList<>();
+        EventCoalescer coalescer = new EventCoalescer(new EventProcessor() {
+            @Override
+            public void processEvent(HobsonEvent event) {
+                events.add(event);
+            }
+        }, 60000, new ManualScheduler());
+
+        coalescer.processEvent(createEvent("device1", 70.0, 71.0));
+        coalescer.processEvent(createEvent("device2", 60.0, 61.0));
+        coalescer.processEvent(createEvent("device1", 71.0, 72.0));
+        assertEquals(2, coalescer.getPendingCount());
+        assertTrue(events.isEmpty());
+
+        // an unavailable event for a device without pending updates passes straight through
+        coalescer.processEvent(new DeviceUnavailableEvent(System.currentTimeMillis(), DeviceContext.create(pctx, "device3")));
+        assertEquals(1, events.size());
+        assertEquals(2, coalescer.getPendingCount());
+
+        // an unavailable event for device1 flushes the pending window first
+        coalescer.processEvent(new DeviceUnavailableEvent(System.currentTimeMillis(), DeviceContext.create(pctx, "device1")));
+        assertEquals(3, events.size());
+        List<DeviceVariableUpdate> updates = ((DeviceVariablesUpdateEvent)events.get(1)).getUpdates();
+        assertEquals(2, updates.size());
+        assertEquals("device1", updates.get(0).getContext().getDeviceContext().getDeviceId());
+        assertEquals(70.0, updates.get(0).getOldValue());
+        assertEquals(72.0, updates.get(0).getNewValue());
+        assertEquals("device2", updates.get(1).getContext().getDeviceContext().getDeviceId());
+        assertTrue(events.get(2) instanceof DeviceUnavailableEvent);
+        assertEquals(0, coalescer.getPendingCount());
+
+        // stopping flushes everything else
+        coalescer.processEvent(createEvent("device2", 61.0, 62.0));
+        coalescer.stop();
+        assertEquals(4, events.size());
+        DeviceVariableUpdate u = ((DeviceVariablesUpdateEvent)events.get(3)).getUpdates().get(0);
+        assertEquals("device2", u.getContext().getDeviceContext().getDeviceId());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    private DeviceVariablesUpdateEvent createEvent(String deviceId, Object oldValue, Object newValue) {
+        return new DeviceVariablesUpdateEvent(System.currentTimeMillis(), createUpdate(deviceId, oldValue, newValue));
+    }
+
+    private DeviceVariableUpdate createUpdate(String deviceId, Object oldValue, Object newValue) {
+        return new DeviceVariableUpdate(DeviceVariableContext.create(pctx, deviceId, VariableConstants.INDOOR_TEMP_F), oldValue, newValue);
+    }
+
+    /**
+     * A scheduler that holds scheduled tasks until the test runs them.
+     */
+    private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        ManualScheduler() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            tasks.add(command);
+            return null;
+        }
+
+        void runAll() {
+            List<Runnable> l = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable r : l) {
+                r.run();
+            }
+        }
+    }
+}
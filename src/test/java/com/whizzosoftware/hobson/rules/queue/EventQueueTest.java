@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
+import com.whizzosoftware.hobson.api.plugin.PluginContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class EventQueueTest {
+    private final PluginContext pctx = PluginContext.createLocal("plugin");
+
+    @Test
+    public void testPerDeviceOrdering() throws Exception {
+        final Map<String,List<Object>> values = new HashMap<>();
+        EventQueue queue = new EventQueue(new EventProcessor() {
+            @Override
+            public void processEvent(HobsonEvent event) {
+                DeviceVariableUpdate u = ((DeviceVariablesUpdateEvent)event).getUpdates().get(0);
+                synchronized (values) {
+                    String key = u.getContext().getDeviceContext().toString();
+                    List<Object> l = values.get(key);
+                    if (l == null) {
+                        l = new ArrayList<>();
+                        values.put(key, l);
+                    }
+                    l.add(u.getNewValue());
+                }
+            }
+        }, 1000, 4, OverflowPolicy.BLOCK);
+        queue.start();
+
+        for (int i=0; i < 100; i++) {
+            for (int d=0; d < 8; d++) {
+                queue.submit(createEvent("device" + d, i - 1, i));
+            }
+        }
+        assertTrue(queue.stop(10, TimeUnit.SECONDS));
+
+        assertEquals(800, queue.getProcessedCount());
+        assertEquals(0, queue.getDepth());
+        assertEquals(8, values.size());
+        for (List<Object> l : values.values()) {
+            assertEquals(100, l.size());
+            for (int i=0; i < 100; i++) {
+                assertEquals(i, l.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testMultiDeviceEventOrdering() throws Exception {
+        final Map<String,List<Object>> values = new HashMap<>();
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+        EventQueue queue = new EventQueue(new EventProcessor() {
+            @Override
+            public void processEvent(HobsonEvent event) {
+                List<DeviceVariableUpdate> updates = ((DeviceVariablesUpdateEvent)event).getUpdates();
+                sizes.add(updates.size());
+                synchronized (values) {
+                    for (DeviceVariableUpdate u : updates) {
+                        String key = u.getContext().getDeviceContext().toString();
+                        List<Object> l = values.get(key);
+                        if (l == null) {
+                            l = new ArrayList<>();
+                            values.put(key, l);
+                        }
+                        l.add(u.getNewValue());
+                    }
+                }
+            }
+        }, 1000, 4, OverflowPolicy.BLOCK);
+        queue.start();
+
+        // even values arrive in one event for all devices and odd values in one event per device
+        for (int i=0; i < 100; i += 2) {
+            List<DeviceVariableUpdate> updates = new ArrayList<>();
+            for (int d=0; d < 8; d++) {
+                updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, "device" + d, VariableConstants.INDOOR_TEMP_F), i - 1, i));
+            }
+            queue.submit(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), updates));
+            for (int d=0; d < 8; d++) {
+                queue.submit(createEvent("device" + d, i, i + 1));
+            }
+        }
+        assertTrue(queue.stop(10, TimeUnit.SECONDS));
+
+        assertEquals(8, values.size());
+        for (List<Object> l : values.values()) {
+            assertEquals(100, l.size());
+            for (int i=0; i < 100; i++) {
+                assertEquals(i, l.get(i));
+            }
+        }
+        // each multi-device event was split into no more than one event per lane
+        int total = 0;
+        for (int size : sizes) {
+            total += size;
+        }
+        assertEquals(800, total);
+        assertTrue(sizes.size() <= 50 * 4 + 400);
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        BlockingProcessor processor = new BlockingProcessor();
+        EventQueue queue = new EventQueue(processor, 2, 1, OverflowPolicy.DROP_OLDEST);
+        queue.start();
+
+        queue.submit(createEvent("device1", 0, 1));
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+
+        queue.submit(createEvent("device1", 1, 2));
+        queue.submit(createEvent("device2", 0, 1));
+        queue.submit(createEvent("device1", 2, 3));
+        assertEquals(2, queue.getDepth());
+        assertEquals(1, queue.getDroppedCount());
+
+        processor.release.countDown();
+        assertTrue(queue.stop(5, TimeUnit.SECONDS));
+
+        assertEquals(3, processor.events.size());
+        assertEquals(1, getUpdate(processor.events.get(0)).getNewValue());
+        assertEquals("device2", getUpdate(processor.events.get(1)).getContext().getDeviceContext().getDeviceId());
+        assertEquals(3, getUpdate(processor.events.get(2)).getNewValue());
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        BlockingProcessor processor = new BlockingProcessor();
+        EventQueue queue = new EventQueue(processor, 2, 1, OverflowPolicy.COALESCE);
+        queue.start();
+
+        queue.submit(createEvent("device1", 0, 1));
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+
+        queue.submit(createEvent("device1", 70, 71));
+        queue.submit(createEvent("device2", 0, 1));
+        queue.submit(createEvent("device1", 71, 72));
+        assertEquals(2, queue.getDepth());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(1, queue.getCoalescedCount());
+
+        processor.release.countDown();
+        assertTrue(queue.stop(5, TimeUnit.SECONDS));
+
+        assertEquals(3, processor.events.size());
+        DeviceVariableUpdate u = getUpdate(processor.events.get(1));
+        assertEquals("device1", u.getContext().getDeviceContext().getDeviceId());
+        assertEquals(70, u.getOldValue());
+        assertEquals(72, u.getNewValue());
+        assertEquals("device2", getUpdate(processor.events.get(2)).getContext().getDeviceContext().getDeviceId());
+    }
+
+    @Test
+    public void testSubmitAfterStop() throws Exception {
+        BlockingProcessor processor = new BlockingProcessor();
+        processor.release.countDown();
+        EventQueue queue = new EventQueue(processor, 10, 1, OverflowPolicy.BLOCK);
+        assertFalse(queue.submit(createEvent("device1", 0, 1)));
+        queue.start();
+        assertTrue(queue.submit(createEvent("device1", 0, 1)));
+        assertTrue(queue.stop(5, TimeUnit.SECONDS));
+        assertFalse(queue.submit(createEvent("device1", 0, 1)));
+        assertEquals(1, processor.events.size());
+    }
+
+    @Test
+    public void testSplitEventRejectedByOneLane() throws Exception {
+        // two devices that belong to different lanes
+        List<String> devices = new ArrayList<>();
+        Set<Integer> used = new HashSet<>();
+        for (int i=0; devices.size() < 2; i++) {
+            String id = "device" + i;
+            if (used.add((DeviceContext.create(pctx, id).toString().hashCode() & 0x7fffffff) % 2)) {
+                devices.add(id);
+            }
+        }
+        final String d1 = devices.get(0);
+        final String d2 = devices.get(1);
+
+        final BlockingProcessor processor = new BlockingProcessor();
+        final EventQueue queue = new EventQueue(processor, 2, 2, OverflowPolicy.BLOCK);
+        queue.start();
+
+        // fill the first device's lane
+        queue.submit(createEvent(d1, 0, 1));
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+        queue.submit(createEvent(d1, 1, 2));
+
+        // the second device's lane accepts its part while the first device's part waits for space
+        final List<HobsonEvent> inline = Collections.synchronizedList(new ArrayList<HobsonEvent>());
+        final AtomicBoolean accepted = new AtomicBoolean(true);
+        Thread submitter = new Thread() {
+            public void run() {
+                List<DeviceVariableUpdate> updates = new ArrayList<>();
+                updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, d2, VariableConstants.INDOOR_TEMP_F), 0, 1));
+                updates.add(new DeviceVariableUpdate(DeviceVariableContext.create(pctx, d1, VariableConstants.INDOOR_TEMP_F), 2, 3));
+                try {
+                    accepted.set(queue.submit(new DeviceVariablesUpdateEvent(System.currentTimeMillis(), updates), new EventProcessor() {
+                        @Override
+                        public void processEvent(HobsonEvent event) {
+                            inline.add(event);
+                        }
+                    }));
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        submitter.start();
+        for (int i=0; i < 500 && submitter.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, submitter.getState());
+
+        // stopping the queue rejects only the part that was still waiting
+        queue.stop(10, TimeUnit.MILLISECONDS);
+        submitter.join(5000);
+        assertFalse(accepted.get());
+        assertEquals(1, inline.size());
+        List<DeviceVariableUpdate> updates = ((DeviceVariablesUpdateEvent)inline.get(0)).getUpdates();
+        assertEquals(1, updates.size());
+        assertEquals(d1, updates.get(0).getContext().getDeviceContext().getDeviceId());
+        assertEquals(3, updates.get(0).getNewValue());
+
+        // the queued parts are still evaluated by the workers, and nothing is evaluated twice
+        processor.release.countDown();
+        for (int i=0; i < 500 && queue.getProcessedCount() < 3; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, queue.getProcessedCount());
+        for (HobsonEvent event : processor.events) {
+            for (DeviceVariableUpdate u : ((DeviceVariablesUpdateEvent)event).getUpdates()) {
+                assertFalse(d1.equals(u.getContext().getDeviceContext().getDeviceId()) && u.getNewValue().equals(3));
+            }
+        }
+    }
+
+    private DeviceVariablesUpdateEvent createEvent(String deviceId, Object oldValue, Object newValue) {
+        return new DeviceVariablesUpdateEvent(System.currentTimeMillis(), new DeviceVariableUpdate(DeviceVariableContext.create(pctx, deviceId, VariableConstants.INDOOR_TEMP_F), oldValue, newValue));
+    }
+
+    private DeviceVariableUpdate getUpdate(HobsonEvent event) {
+        return ((DeviceVariablesUpdateEvent)event).getUpdates().get(0);
+    }
+
+    private class BlockingProcessor implements EventProcessor {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<HobsonEvent> events = Collections.synchronizedList(new ArrayList<HobsonEvent>());
+
+        @Override
+        public void processEvent(HobsonEvent event) {
+            events.add(event);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.queue;
+
+import com.whizzosoftware.hobson.rules.metrics.LatencyHistogram;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TriggerDispatcherTest {
+    @Test
+    public void testPerKeySerialization() throws Exception {
+        TriggerDispatcher dispatcher = new TriggerDispatcher(4, 1000);
+        dispatcher.start();
+
+        final Map<String,AtomicInteger> running = new HashMap<>();
+        final Map<String,List<Integer>> order = new HashMap<>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        for (int k=0; k < 4; k++) {
+            running.put("task" + k, new AtomicInteger());
+            order.put("task" + k, Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        for (int i=0; i < 100; i++) {
+            for (int k=0; k < 4; k++) {
+                final String key = "task" + k;
+                final int seq = i;
+                assertTrue(dispatcher.submit(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (running.get(key).incrementAndGet() > 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        order.get(key).add(seq);
+                        Thread.yield();
+                        running.get(key).decrementAndGet();
+                    }
+                }));
+            }
+        }
+
+        assertTrue(dispatcher.stop(5, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        assertEquals(400, dispatcher.getDispatchedCount());
+        assertEquals(0, dispatcher.getPendingCount());
+        for (List<Integer> l : order.values()) {
+            assertEquals(100, l.size());
+            for (int i=0; i < l.size(); i++) {
+                assertEquals(i, (int)l.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        TriggerDispatcher dispatcher = new TriggerDispatcher(1, 2);
+        LatencyHistogram lag = new LatencyHistogram();
+        dispatcher.setLagHistogram(lag);
+        dispatcher.start();
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        assertTrue(dispatcher.submit("task1", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {}
+        };
+        assertTrue(dispatcher.submit("task1", noop));
+        assertTrue(dispatcher.submit("task2", noop));
+        assertFalse(dispatcher.submit("task3", noop));
+        assertEquals(2, dispatcher.getPendingCount());
+        assertEquals(1, dispatcher.getRejectedCount());
+
+        release.countDown();
+        assertTrue(dispatcher.stop(5, TimeUnit.SECONDS));
+        assertEquals(3, dispatcher.getDispatchedCount());
+        assertEquals(3, lag.getCount());
+
+        // a stopped dispatcher rejects everything
+        assertFalse(dispatcher.submit("task1", noop));
+        assertEquals(2, dispatcher.getRejectedCount());
+    }
+
+    @Test
+    public void testVirtualExecutionMode() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isAvailable());
+
+        // every trigger blocks until all of them are running, which a single platform thread could never satisfy
+        TriggerDispatcher dispatcher = new TriggerDispatcher(1, 1000, ExecutionMode.VIRTUAL);
+        dispatcher.start();
+        final CountDownLatch running = new CountDownLatch(200);
+        final AtomicInteger timedOut = new AtomicInteger();
+        for (int i=0; i < 200; i++) {
+            assertTrue(dispatcher.submit("task" + i, new Runnable() {
+                @Override
+                public void run() {
+                    running.countDown();
+                    try {
+                        if (!running.await(5, TimeUnit.SECONDS)) {
+                            timedOut.incrementAndGet();
+                        }
+                    } catch (InterruptedException ignored) {}
+                }
+            }));
+        }
+
+        assertTrue(dispatcher.stop(10, TimeUnit.SECONDS));
+        assertEquals(0, timedOut.get());
+        assertEquals(200, dispatcher.getDispatchedCount());
+        assertEquals(ExecutionMode.VIRTUAL, dispatcher.getExecutionMode());
+    }
+}
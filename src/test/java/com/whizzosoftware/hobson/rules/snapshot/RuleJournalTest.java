@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.snapshot;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class RuleJournalTest {
+    @Test
+    public void testReplay() throws Exception {
+        File file = createJournalFile();
+
+        RuleJournal journal = new RuleJournal(file);
+        assertEquals(0, journal.replay(new LinkedHashMap<String,JSONObject>()));
+        journal.appendPut("task1", createRule("task1", "First"));
+        journal.appendPut("task2", createRule("task2", "Second"));
+        journal.appendPut("task1", createRule("task1", "First updated"));
+        journal.appendRemove("task2");
+        assertTrue(journal.sync());
+        assertFalse(journal.sync());
+        assertEquals(4, journal.getRecordCount());
+        journal.close();
+
+        // records are applied on top of the existing rules
+        Map<String,JSONObject> rules = new LinkedHashMap<>();
+        rules.put("task2", createRule("task2", "Second"));
+        rules.put("task3", createRule("task3", "Third"));
+        journal = new RuleJournal(file);
+        assertEquals(4, journal.replay(rules));
+        assertEquals(2, rules.size());
+        assertEquals("First updated", rules.get("task1").getString("description"));
+        assertEquals("local:task1", rules.get("task1").getJSONArray("actions").getJSONObject(0).getString("arg1"));
+        assertTrue(rules.containsKey("task3"));
+
+        // the journal can be appended to after it's been replayed
+        journal.appendRemove("task3");
+        journal.close();
+        rules.clear();
+        journal = new RuleJournal(file);
+        assertEquals(5, journal.replay(rules));
+        journal.close();
+    }
+
+    @Test
+    public void testTornRecordIsTruncated() throws Exception {
+        File file = createJournalFile();
+
+        RuleJournal journal = new RuleJournal(file);
+        journal.replay(new LinkedHashMap<String,JSONObject>());
+        journal.appendPut("task1", createRule("task1", "First"));
+        long size = journal.getSize();
+        journal.appendPut("task2", createRule("task2", "Second"));
+        journal.close();
+
+        // simulate a crash part way through writing the last record
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 5);
+        }
+
+        Map<String,JSONObject> rules = new LinkedHashMap<>();
+        journal = new RuleJournal(file);
+        assertEquals(1, journal.replay(rules));
+        assertEquals(1, rules.size());
+        assertEquals(size, file.length());
+
+        // new records follow the last good one
+        journal.appendPut("task3", createRule("task3", "Third"));
+        journal.close();
+        rules.clear();
+        journal = new RuleJournal(file);
+        assertEquals(2, journal.replay(rules));
+        assertTrue(rules.containsKey("task3"));
+        journal.close();
+    }
+
+    @Test
+    public void testCorruptRecordIsTruncated() throws Exception {
+        File file = createJournalFile();
+
+        RuleJournal journal = new RuleJournal(file);
+        journal.replay(new LinkedHashMap<String,JSONObject>());
+        journal.appendPut("task1", createRule("task1", "First"));
+        journal.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(15);
+            int b = raf.read();
+            raf.seek(15);
+            raf.write(b ^ 0x01);
+        }
+
+        Map<String,JSONObject> rules = new LinkedHashMap<>();
+        journal = new RuleJournal(file);
+        assertEquals(0, journal.replay(rules));
+        assertTrue(rules.isEmpty());
+        assertEquals(6, file.length());
+        journal.close();
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        File file = createJournalFile();
+
+        RuleJournal journal = new RuleJournal(file);
+        journal.replay(new LinkedHashMap<String,JSONObject>());
+        journal.appendPut("task1", createRule("task1", "First"));
+        journal.reset();
+        assertEquals(0, journal.getRecordCount());
+        journal.appendPut("task2", createRule("task2", "Second"));
+        journal.close();
+
+        Map<String,JSONObject> rules = new LinkedHashMap<>();
+        journal = new RuleJournal(file);
+        assertEquals(1, journal.replay(rules));
+        assertEquals("task2", rules.keySet().iterator().next());
+        journal.close();
+    }
+
+    private File createJournalFile() throws Exception {
+        File file = File.createTempFile("hobson-rules", ".journal");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private JSONObject createRule(String name, String description) {
+        JSONObject rule = new JSONObject();
+        rule.put("name", name);
+        rule.put("description", description);
+        rule.put("enabled", true);
+
+        JSONArray assumptions = new JSONArray();
+        JSONObject a = new JSONObject();
+        a.put("leftTerm", "com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.eventId");
+        a.put("op", "=");
+        a.put("rightTerm", "devVarsUpdate");
+        assumptions.put(a);
+        rule.put("assumptions", assumptions);
+
+        JSONArray actions = new JSONArray();
+        JSONObject action = new JSONObject();
+        action.put("method", "com.whizzosoftware.hobson.rules.jruleengine.JRETaskContext.fireTaskTrigger");
+        action.put("arg1", "local:" + name);
+        actions.put(action);
+        rule.put("actions", actions);
+
+        return rule;
+    }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package com.whizzosoftware.hobson.rules.snapshot;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class RuleSnapshotsTest {
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        List<JSONObject> rules = createRules(3);
+        rules.get(1).put("enabled", false);
+        rules.get(2).remove("assumptions");
+
+        ByteBuffer buf = BinaryRuleSnapshot.encode(rules);
+        assertTrue(BinaryRuleSnapshot.isBinarySnapshot(buf));
+
+        List<JSONObject> results = BinaryRuleSnapshot.decode(buf);
+        assertEquals(3, results.size());
+        for (int i=0; i < results.size(); i++) {
+            assertEquals(rules.get(i).toString(), results.get(i).toString());
+        }
+        assertFalse(results.get(1).getBoolean("enabled"));
+        assertFalse(results.get(2).has("assumptions"));
+    }
+
+    @Test
+    public void testIsSameRule() throws Exception {
+        List<JSONObject> rules = createRules(2);
+        List<JSONObject> restored = BinaryRuleSnapshot.decode(BinaryRuleSnapshot.encode(rules));
+        assertTrue(BinaryRuleSnapshot.isSameRule(rules.get(0), restored.get(0)));
+        assertFalse(BinaryRuleSnapshot.isSameRule(rules.get(0), restored.get(1)));
+
+        // action arguments are compared by their string form
+        rules.get(0).getJSONArray("actions").getJSONObject(0).put("arg1", new StringBuilder("local:task0"));
+        assertTrue(BinaryRuleSnapshot.isSameRule(rules.get(0), restored.get(0)));
+
+        rules.get(0).put("enabled", false);
+        assertFalse(BinaryRuleSnapshot.isSameRule(rules.get(0), restored.get(0)));
+        rules.get(0).put("enabled", true);
+        rules.get(0).getJSONArray("assumptions").getJSONObject(1).put("rightTerm", "[local:plugin:device2]");
+        assertFalse(BinaryRuleSnapshot.isSameRule(rules.get(0), restored.get(0)));
+        rules.get(0).remove("assumptions");
+        assertFalse(BinaryRuleSnapshot.isSameRule(rules.get(0), restored.get(0)));
+    }
+
+    @Test
+    public void testBinaryIsSmallerThanJSON() throws Exception {
+        List<JSONObject> rules = createRules(100);
+        int binary = RuleSnapshots.encode(rules, RuleSnapshotFormat.BINARY).remaining();
+        int json = RuleSnapshots.encode(rules, RuleSnapshotFormat.JSON).remaining();
+        assertTrue("binary=" + binary + ", json=" + json, binary < json);
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        ByteBuffer buf = BinaryRuleSnapshot.encode(createRules(2));
+        buf.put(20, (byte)(buf.get(20) ^ 0x01));
+        try {
+            BinaryRuleSnapshot.decode(buf);
+            fail("Should have thrown exception");
+        } catch (IOException ignored) {}
+
+        // a truncated snapshot fails the checksum too
+        buf = BinaryRuleSnapshot.encode(createRules(2));
+        buf.limit(buf.limit() - 10);
+        try {
+            BinaryRuleSnapshot.decode(buf);
+            fail("Should have thrown exception");
+        } catch (IOException ignored) {}
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws Exception {
+        ByteBuffer buf = BinaryRuleSnapshot.encode(createRules(1));
+        buf.putShort(4, (short)(BinaryRuleSnapshot.VERSION + 1));
+        try {
+            BinaryRuleSnapshot.decode(buf);
+            fail("Should have thrown exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("version"));
+        }
+    }
+
+    @Test
+    public void testFileWriteAndRead() throws Exception {
+        File file = File.createTempFile("hobson-rules", ".snapshot");
+        file.deleteOnExit();
+
+        for (RuleSnapshotFormat format : RuleSnapshotFormat.values()) {
+            List<JSONObject> rules = createRules(5);
+            long bytes = RuleSnapshots.write(file, rules, format);
+            assertEquals(format.toString(), file.length(), bytes);
+            assertFalse(new File(file.getParentFile(), file.getName() + ".tmp").exists());
+
+            // the format is detected when reading
+            List<JSONObject> results = RuleSnapshots.read(file);
+            assertEquals(format.toString(), 5, results.size());
+            assertEquals(format.toString(), "task4", results.get(4).getString("name"));
+        }
+    }
+
+    private List<JSONObject> createRules(int count) {
+        List<JSONObject> rules = new ArrayList<>();
+        for (int i=0; i < count; i++) {
+            JSONObject rule = new JSONObject();
+            rule.put("name", "task" + i);
+            rule.put("description", "My task " + i + " \u00e9");
+            rule.put("enabled", true);
+
+            JSONArray assumptions = new JSONArray();
+            assumptions.put(createAssumption("com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.eventId", "=", "devVarsUpdate"));
+            assumptions.put(createAssumption("com.whizzosoftware.hobson.rules.jruleengine.JREEventContext.deviceCtx", "containsatleastone", "[local:plugin:device" + i + "]"));
+            rule.put("assumptions", assumptions);
+
+            JSONArray actions = new JSONArray();
+            JSONObject action = new JSONObject();
+            action.put("method", "com.whizzosoftware.hobson.rules.jruleengine.JRETaskContext.fireTaskTrigger");
+            action.put("arg1", "local:task" + i);
+            actions.put(action);
+            rule.put("actions", actions);
+
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    private JSONObject createAssumption(String leftTerm, String op, String rightTerm) {
+        JSONObject json = new JSONObject();
+        json.put("leftTerm", leftTerm);
+        json.put("op", op);
+        json.put("rightTerm", rightTerm);
+        return json;
+    }
+}